@@ -113,7 +113,7 @@ public class AdminClient  {
         });
         clientManager.start();
         // nothing more to do but wait for client to finish
-        clientManager.join();
+        clientManager.awaitTermination();
         Utils.getInstance().cleanUp();
     }
 }
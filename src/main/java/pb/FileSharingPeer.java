@@ -1,18 +1,26 @@
 package pb;
 
 import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.net.UnknownHostException;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
@@ -22,13 +30,21 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
-import org.apache.commons.codec.binary.Base64;
 
 import pb.managers.ClientManager;
 import pb.managers.IOThread;
 import pb.managers.PeerManager;
 import pb.managers.ServerManager;
+import pb.fileshare.DataChannel;
+import pb.fileshare.Download;
+import pb.fileshare.Manifest;
+import pb.fileshare.MappedFiles;
+import pb.fileshare.RateLimiter;
+import pb.index.IndexBatch;
 import pb.managers.endpoint.Endpoint;
+import pb.protocols.Document;
+import pb.protocols.event.EventProtocol;
+import pb.utils.Timeout;
 import pb.utils.Utils;
 
 /**
@@ -48,7 +64,12 @@ public class FileSharingPeer {
 	
 	/**
 	 * Emitted when a peer wants to get a file from another peer.
-	 * The single argument is a string that is the filename to get.
+	 * The single argument is a JSON document string with the "filename"
+	 * to get, optionally the "offset" and "length" of the part of the file
+	 * to get, and whether to send it over a "channel", see {@link #fileChannel}.
+	 * Otherwise the "credit" is the number of chunks that can be sent before
+	 * waiting for {@link #fileCredit}.
+	 * A plain filename is also accepted.
 	 * <ul>
 	 * <li>{@code args[0] instanceof String}
 	 * </ul>
@@ -56,15 +77,47 @@ public class FileSharingPeer {
 	private static final String getFile = "GET_FILE";
 	
 	/**
-	 * Emitted when a peer is sending a chunk of a file to another peer.
-	 * The single argument is a string that is a Base64 encoded byte array
-	 * that represents the chunk of the file. If the argument
-	 * is the empty string "" then it indicates there are no more
-	 * chunks to receive.
+	 * Emitted in reply to {@link #getFile} when the file is sent over a
+	 * {@link pb.fileshare.DataChannel} rather than as {@link #fileContents}
+	 * events. The single argument is a JSON document string with the "port"
+	 * of the data channel, the "token" to connect with and the "length"
+	 * of the part of the file that will be sent.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	private static final String fileChannel = "FILE_CHANNEL";
+	
+	/**
+	 * Emitted when a peer wants to know about a file before getting it.
+	 * The single argument is the filename.
 	 * <ul>
 	 * <li>{@code args[0] instanceof String}
 	 * </ul>
 	 */
+	private static final String getFileInfo = "GET_FILE_INFO";
+	
+	/**
+	 * Emitted in reply to {@link #getFileInfo}. The single argument is a
+	 * JSON document string with the "filename", its "length" and its
+	 * "manifest", see {@link pb.fileshare.Manifest#toDocument()}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	private static final String fileInfo = "FILE_INFO";
+	
+	/**
+	 * Emitted when a peer is sending a chunk of a file to another peer.
+	 * The single argument is a byte array that is the chunk of the file,
+	 * which is received as a Base64 encoded String when the peers don't
+	 * both support binary events, see {@link EventProtocol#bytesOf(Object)}.
+	 * If the argument is empty then it indicates there are no more
+	 * chunks to receive, of the part of the file that was asked for.
+	 * <ul>
+	 * <li>{@code args[0] instanceof byte[]} or {@code args[0] instanceof String}
+	 * </ul>
+	 */
 	private static final String fileContents = "FILE_CONTENTS";
 	
 	/**
@@ -75,6 +128,16 @@ public class FileSharingPeer {
 	 */
 	private static final String fileError = "FILE_ERROR";
 	
+	/**
+	 * Emitted by a peer receiving {@link #fileContents} to allow the sending
+	 * peer to send more chunks. The single argument is the number of chunks,
+	 * as a string.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}
+	 * </ul>
+	 */
+	private static final String fileCredit = "FILE_CREDIT";
+	
 	/**
 	 * port to use for this peer's server
 	 */
@@ -97,60 +160,373 @@ public class FileSharingPeer {
 	private static int chunkSize=Utils.chunkSize;
 	
 	/**
-	 * buffer for file reading
+	 * number of chunks that a sending peer may get ahead of us by
 	 */
-	private static byte[] buffer = new byte[chunkSize];
+	private static int creditWindow=16;
 	
 	/**
-	 * Read up to chunkSize bytes of a file and send to client.
-	 * If we have not reached the end of the file then set a timeout
-	 * to read some more bytes. Since this is using the timer thread
-	 * we have the danger that the transmission will block and that
-	 * this will block all the other timeouts. We could either use another
-	 * thread for each file transfer or else allow for buffering of
-	 * outgoing messages at the endpoint, to overcome this issue.
-	 * @param in the file input stream
-	 * @param endpoint the endpoint to send the file
+	 * most bytes per second to send a file to another peer at, 0 for no limit
 	 */
-	public static void continueTransmittingFile(InputStream in,Endpoint endpoint) {
-		try {
-			int read = in.read(buffer);
-			if(read==-1) {
-				endpoint.emit(fileContents, ""); // signals no more bytes in file
-				in.close();
-			} else {
-				endpoint.emit(fileContents, new String(Base64.encodeBase64(
-						Arrays.copyOfRange(buffer, 0, read)),
-						StandardCharsets.US_ASCII));
-				if(read<chunkSize) {
-					endpoint.emit(fileContents, "");
-					in.close();
-				} else {
+	private static long rateLimit=0;
+	
+	/**
+	 * most peers to download a file from at once
+	 */
+	private static int maxSources=1;
+	
+	/**
+	 * whether to ask peers to send files over a data channel
+	 */
+	private static boolean useDataChannel=true;
+	
+	/**
+	 * the files that we share, by their absolute path, as only these are
+	 * given to other peers
+	 */
+	private static Set<Path> sharedFiles=Collections.emptySet();
+	
+	/**
+	 * data channel for sending files to other peers, opened when first needed
+	 */
+	private static DataChannel dataChannel=null;
+	
+	/**
+	 * time in ms to wait for the index server to say which version of our
+	 * files it has, before sending them one at a time as to an older server
+	 */
+	private static final int indexSyncTimeout=5000;
+	
+	/**
+	 * time in ms between telling the index server that we are still here,
+	 * while we share our files
+	 */
+	private static final int peerUpdateInterval=60*1000;
+	
+	/**
+	 * the version of our files that the index server last said it has, and
+	 * the files, so that only the changes need to be sent next time
+	 */
+	private static String syncedVersion=null;
+	private static List<String> syncedFiles=new ArrayList<>();
+	
+	/**
+	 * Sends a file as {@link #fileContents} events, a chunk for each credit
+	 * granted by the receiving peer with {@link #fileCredit}, so that the
+	 * sender never gets further ahead of the receiver than the receiver
+	 * allows and otherwise goes as fast as the connection does. If a rate
+	 * limit is set then chunks are also held back to keep to it. A receiver
+	 * that does not grant credit is sent a chunk every 100ms, as it would
+	 * have been before credit was introduced.
+	 * <br/>
+	 * Chunks are slices of the file's mapping in {@link #mappedFiles}, shared
+	 * with any other uploads of the file, or else are read from the file if
+	 * it can't be mapped.
+	 */
+	private static class Upload {
+		private final MappedFiles.Handle mapped;
+		private final FileChannel in;
+		private final Endpoint endpoint;
+		private final boolean legacy;
+		private final RateLimiter limiter;
+		private long position;
+		private final long end;
+		private int credit;
+		private boolean waiting=false;
+		private boolean done=false;
+		
+		/**
+		 * @param mapped the file's mapping, or null to read from the file
+		 * @param in the file, or null if it is mapped
+		 */
+		Upload(MappedFiles.Handle mapped,FileChannel in,long position,long end,
+				Endpoint endpoint,int credit) {
+			this.mapped=mapped;
+			this.in=in;
+			this.position=position;
+			this.end=end;
+			this.endpoint=endpoint;
+			this.legacy=credit<=0;
+			this.credit=legacy?1:credit;
+			limiter=rateLimit>0?new RateLimiter(rateLimit):null;
+		}
+		
+		/**
+		 * Allow more chunks to be sent.
+		 * @param chunks
+		 */
+		synchronized void grant(int chunks) {
+			// can't overflow, the window is never that large
+			credit=(int) Math.min(Integer.MAX_VALUE, (long) credit+chunks);
+			send();
+		}
+		
+		/**
+		 * Send chunks while there is credit for them, or until the end of
+		 * the file has been sent.
+		 */
+		synchronized void send() {
+			try {
+				while(!done && !waiting && credit>0) {
+					if(limiter!=null) {
+						long delay=limiter.delay();
+						if(delay>0) {
+							waiting=true;
+							Utils.getInstance().setTimeout(()->{
+								synchronized(this) {
+									waiting=false;
+									send();
+								}
+							}, delay);
+							return;
+						}
+					}
+					if(position>=end) break;
+					ByteBuffer chunk = read((int)Math.min(chunkSize,end-position));
+					if(chunk==null) {
+						endpoint.emit(fileContents, new byte[0]); // signals no more bytes to send
+						close();
+						return;
+					}
+					int read = chunk.remaining();
+					// the chunk is encoded by the time emit returns
+					endpoint.emit(fileContents, chunk);
+					position+=read;
+					credit--;
+					if(limiter!=null) limiter.sent(read);
+				}
+				if(!done && position>=end) {
+					endpoint.emit(fileContents, new byte[0]);
+					close();
+					return;
+				}
+				if(legacy && !done && credit==0) {
 					Utils.getInstance().setTimeout(()->{
-						continueTransmittingFile(in,endpoint);
-					},100); // limit throughput to about 160kB/s, hopefully your bandwidth can keep up :-)
+						grant(1);
+					},100); // limit throughput to about 160kB/s
 				}
+			} catch (IOException e) {
+				endpoint.emit(fileError,e.toString());
+				close();
 			}
+		}
+		
+		/**
+		 * Get the next chunk of the file.
+		 * @param length
+		 * @return the chunk, or null if the file has ended
+		 * @throws IOException
+		 */
+		private ByteBuffer read(int length) throws IOException {
+			if(mapped!=null) {
+				return position+length<=mapped.size() ? mapped.slice(position,length) : null;
+			}
+			// a buffer per chunk since transfers to several peers can happen at once
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+			int read = in.read(buffer,position);
+			if(read<=0) return null;
+			buffer.flip();
+			return buffer;
+		}
+		
+		/**
+		 * Stop sending and let go of the file.
+		 */
+		synchronized void close() {
+			if(done) return;
+			done=true;
+			uploads.remove(endpoint,this);
+			if(mapped!=null) {
+				mapped.close();
+				return;
+			}
+			try {
+				in.close();
+			} catch (IOException e) {
+				// nothing more to do
+			}
+		}
+	}
+	
+	/**
+	 * Shared files that are mapped for uploads.
+	 */
+	private static final MappedFiles mappedFiles=new MappedFiles();
+	
+	/**
+	 * Uploads in progress, by the endpoint they are being sent on.
+	 */
+	private static final Map<Endpoint,Upload> uploads=new ConcurrentHashMap<>();
+	
+	/**
+	 * Test for the file existence and then start transmitting it. Emit
+	 * {@link #fileError} if file can't be accessed. The caller must check
+	 * that the file is one that we share.
+	 * @param filename
+	 * @param offset where in the file to start
+	 * @param length how many bytes to send, or -1 for the rest of the file
+	 * @param endpoint
+	 * @param credit number of chunks to send before waiting for {@link #fileCredit},
+	 * or 0 if the receiving peer does not grant credit
+	 */
+	public static void startTransmittingFile(String filename,long offset,long length,
+			Endpoint endpoint,int credit) {
+		try {
+			Path path = Paths.get(filename);
+			MappedFiles.Handle mapped = mappedFiles.open(path);
+			FileChannel in = mapped==null ? FileChannel.open(path,StandardOpenOption.READ) : null;
+			long end = rangeEnd(mapped!=null ? mapped.size() : in.size(),offset,length);
+			if(end<0) {
+				if(mapped!=null) mapped.close(); else in.close();
+				endpoint.emit(fileError,"range is outside of the file: "+filename);
+				return;
+			}
+			Upload upload = new Upload(mapped,in,offset,end,endpoint,credit);
+			Upload previous = uploads.put(endpoint,upload);
+			if(previous!=null) previous.close();
+			upload.send();
 		} catch (IOException e) {
 			endpoint.emit(fileError,e.toString());
 		}
 	}
 	
 	/**
-	 * Test for the file existence and then start transmitting it. Emit
-	 * {@link #fileError} if file can't be accessed.
+	 * Work out where a requested range of a file ends.
+	 * @param size the size of the file
+	 * @param offset where the range starts
+	 * @param length how long the range is, or -1 for the rest of the file
+	 * @return where the range ends, or -1 if it does not start in the file
+	 */
+	private static long rangeEnd(long size,long offset,long length) {
+		if(offset<0 || offset>size) return -1;
+		return length<0 ? size : Math.min(size,offset+length);
+	}
+	
+	/**
+	 * Stop any upload on the endpoint, e.g. when the other peer has disconnected.
+	 * @param endpoint
+	 */
+	private static void stopTransmittingFile(Endpoint endpoint) {
+		Upload upload = uploads.remove(endpoint);
+		if(upload!=null) upload.close();
+	}
+	
+	/**
+	 * Offer the file on the data channel and tell the other peer how to get
+	 * it. Emit {@link #fileError} if file can't be accessed. The caller must
+	 * check that the file is one that we share.
 	 * @param filename
+	 * @param offset where in the file to start
+	 * @param length how many bytes to send, or -1 for the rest of the file
 	 * @param endpoint
 	 */
-	public static void startTransmittingFile(String filename,Endpoint endpoint) {
+	public static void offerFile(String filename,long offset,long length,Endpoint endpoint) {
 		try {
-			InputStream in = new FileInputStream(filename);
-			continueTransmittingFile(in,endpoint);
-		} catch (FileNotFoundException e) {
+			Path path = Paths.get(filename);
+			long end = rangeEnd(Files.size(path),offset,length);
+			if(end<0) {
+				endpoint.emit(fileError,"range is outside of the file: "+filename);
+				return;
+			}
+			length = end-offset;
+			DataChannel channel;
+			synchronized(FileSharingPeer.class) {
+				if(dataChannel==null) dataChannel = new DataChannel();
+				channel = dataChannel;
+			}
+			Document offer = new Document();
+			offer.append("port", channel.getPort());
+			offer.append("token", channel.offer(path, offset, length,
+					rateLimit>0?new RateLimiter(rateLimit):null));
+			offer.append("length", length);
+			endpoint.emit(fileChannel, offer.toJson());
+		} catch (IOException e) {
 			endpoint.emit(fileError,e.toString());
 		}
 	}
 	
+	/**
+	 * 
+	 * @param filename
+	 * @return true if the file is one that we share
+	 */
+	private static boolean isShared(String filename) {
+		try {
+			return sharedFiles.contains(Paths.get(filename).toAbsolutePath().normalize());
+		} catch (InvalidPathException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Tell the other peer about a file, including its manifest, which may
+	 * take a while to work out the first time so it isn't done by the calling
+	 * thread. Emit {@link #fileError} if file can't be accessed or is not one
+	 * that we share.
+	 * @param filename
+	 * @param endpoint
+	 */
+	public static void sendFileInfo(String filename,Endpoint endpoint) {
+		if(!isShared(filename)) {
+			endpoint.emit(fileError,"file is not shared: "+filename);
+			return;
+		}
+		Utils.getInstance().execute(()->{
+			try {
+				Manifest manifest = Manifest.of(Paths.get(filename));
+				Document info = new Document();
+				info.append("filename", filename);
+				info.append("length", manifest.getLength());
+				info.append("manifest", manifest.toDocument());
+				endpoint.emit(fileInfo, info.toJson());
+			} catch (IOException e) {
+				endpoint.emit(fileError,e.toString());
+			}
+		});
+	}
+	
+	/**
+	 * Send the index server the changes to our files since the version that
+	 * it has, if we know what that version had, or else all of the files.
+	 * @param peerport
+	 * @param filenames our files
+	 * @param version the version of our files
+	 * @param known the version that the index server has, or null if none
+	 * @param endpoint
+	 */
+	private static synchronized void emitIndexUpdateBatch(String peerport,List<String> filenames,
+			String version,String known,Endpoint endpoint) {
+		Document batch = new Document();
+		batch.append("peer", peerport);
+		batch.append("version", version);
+		ArrayList<String> adds = new ArrayList<>(filenames);
+		ArrayList<String> removes = new ArrayList<>();
+		if(known!=null && known.equals(syncedVersion)) {
+			adds.removeAll(syncedFiles);
+			removes.addAll(syncedFiles);
+			removes.removeAll(filenames);
+			batch.append("base", known);
+		} else {
+			batch.append("full", true);
+		}
+		batch.append("add", adds);
+		batch.append("remove", removes);
+		log.info("Sending index update batch: "+adds.size()+" to add, "+removes.size()+" to remove");
+		endpoint.emit(IndexServer.indexUpdateBatch, IndexBatch.encode(batch));
+	}
+	
+	/**
+	 * The index server has the given version of our files.
+	 * @param filenames
+	 * @param version
+	 * @return true if it did not have it before
+	 */
+	private static synchronized boolean indexSynced(List<String> filenames,String version) {
+		if(version.equals(syncedVersion)) return false;
+		syncedVersion=version;
+		syncedFiles=filenames;
+		return true;
+	}
+	
 	/**
 	 * Emit a filename as an index update if possible, close when all done.
 	 * @param filenames
@@ -171,9 +547,27 @@ public class FileSharingPeer {
 		}
 	}
 	
+	/**
+	 * Tell the index server every so often that we are still here, for as
+	 * long as the session with it is open, and check that it still has our
+	 * files, as it forgets peers that it has not seen for a while.
+	 * @param peerport
+	 * @param endpoint
+	 * @param open cleared when the session ends
+	 */
+	private static void keepPeerUpdated(String peerport,Endpoint endpoint,AtomicBoolean open) {
+		Utils.getInstance().setTimeout(()->{
+			if(!open.get()) return;
+			endpoint.emit(IndexServer.peerUpdate, peerport);
+			endpoint.emit(IndexServer.indexSync, peerport);
+			keepPeerUpdated(peerport,endpoint,open);
+		}, peerUpdateInterval);
+	}
+	
 	/**
 	 * Open a client connection to the index server and send the filenames to
-	 * update the index.
+	 * update the index. The connection is kept open while we share the files,
+	 * as the index server removes them when it closes.
 	 * @param filenames
 	 * @param peerManager
 	 * @throws InterruptedException 
@@ -183,22 +577,47 @@ public class FileSharingPeer {
 			String peerport) throws UnknownHostException, InterruptedException {
 		// connect to the index server and tell it the files we are sharing
         ClientManager clientManager = peerManager.connect(indexServerPort, host);
+		List<String> files = new ArrayList<>(filenames);
+		String version = IndexBatch.version(files);
+		AtomicReference<AtomicBoolean> session = new AtomicReference<>();
         clientManager.on(PeerManager.peerStarted, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
+			AtomicBoolean open = new AtomicBoolean(true);
+			session.set(open);
 			System.out.println("Connected to index server: "+endpoint.getOtherEndpointId());
 			endpoint.on(IndexServer.indexUpdateError, (args2)->{
 				String filename = (String) args2[0];
 				System.out.println("Index server did not accept the file: "+filename);
 			});
+			Timeout legacy = Utils.getInstance().setTimeout(()->{
+				System.out.println("Sending file list to the index server one file at a time.");
+				emitIndexUpdate(peerport,new ArrayList<>(files),endpoint,clientManager);
+			}, indexSyncTimeout);
+			endpoint.on(IndexServer.indexVersion, (args2)->{
+				// too late if the file list is already being sent one at a time
+				if(!legacy.cancel() && !legacy.isCancelled()) return;
+				Document doc = Document.parse((String) args2[0]);
+				String known = doc.containsKey("version") ? doc.getString("version") : null;
+				if(version.equals(known)) {
+					if(indexSynced(files,version)) System.out.println("Index server has our file list.");
+				} else {
+					System.out.println("Sending file list to the index server.");
+					emitIndexUpdateBatch(peerport,files,version,known,endpoint);
+				}
+			});
 			System.out.println("Telling the index server our peer:port="+peerport);
 			endpoint.emit(IndexServer.peerUpdate, peerport);
-			System.out.println("Sending file list to the index server.");
-			emitIndexUpdate(peerport,filenames,endpoint,clientManager);
+			endpoint.emit(IndexServer.indexSync, peerport);
+			keepPeerUpdated(peerport,endpoint,open);
 		}).on(PeerManager.peerStopped, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
+			AtomicBoolean open = session.getAndSet(null);
+			if(open!=null) open.set(false);
 			System.out.println("Disconnected from the index server: "+endpoint.getOtherEndpointId());
 		}).on(PeerManager.peerError, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
+			AtomicBoolean open = session.getAndSet(null);
+			if(open!=null) open.set(false);
 			System.out.println("There was an error communicating with the index server: "
 					+endpoint.getOtherEndpointId());
 		});
@@ -214,23 +633,72 @@ public class FileSharingPeer {
 	 */
 	private static void shareFiles(String[] files) throws InterruptedException, IOException {
 		List<String> filenames=new ArrayList<String>();
+		Set<Path> shared=new HashSet<>();
 		for(String file : files) {
 			filenames.add(file);
+			shared.add(Paths.get(file).toAbsolutePath().normalize());
 		}
+		sharedFiles=shared;
         PeerManager peerManager = new PeerManager(peerPort);
         peerManager.on(PeerManager.peerStarted, (args)->{
         	Endpoint endpoint = (Endpoint)args[0];
         	System.out.println("Connection from peer: "+endpoint.getOtherEndpointId());
         	endpoint.on(getFile,(args2)->{
-        		String filename = (String) args2[0];
+        		String request = (String) args2[0];
+        		Document doc = Document.parse(request);
+        		String filename;
+        		long offset,length,credit;
+        		boolean channel;
+        		try {
+        			filename = doc.containsKey("filename") ? doc.getString("filename") : request;
+        			offset = doc.containsKey("offset") ? doc.getLong("offset") : 0;
+        			length = doc.containsKey("length") ? doc.getLong("length") : -1;
+        			channel = doc.containsKey("channel") && doc.getBoolean("channel");
+        			credit = doc.containsKey("credit") ? doc.getLong("credit") : 0;
+        		} catch (ClassCastException e) {
+        			endpoint.emit(fileError,"bad file request: "+request);
+        			return;
+        		}
+        		if(filename==null || credit<0) {
+        			endpoint.emit(fileError,"bad file request: "+request);
+        			return;
+        		}
         		System.out.println("Peer is requesting file: "+filename);
-        		startTransmittingFile(filename,endpoint);
+        		// only the files that we share, not anything else that we can read
+        		if(!isShared(filename)) {
+        			endpoint.emit(fileError,"file is not shared: "+filename);
+        			return;
+        		}
+        		if(channel) {
+        			offerFile(filename,offset,length,endpoint);
+        		} else {
+        			startTransmittingFile(filename,offset,length,endpoint,
+        					(int) Math.min(Integer.MAX_VALUE,credit));
+        		}
+        	}).on(getFileInfo, (args2)->{
+        		sendFileInfo((String) args2[0],endpoint);
+        	}).on(fileCredit, (args2)->{
+        		String chunks = (String) args2[0];
+        		int granted=-1;
+        		try {
+        			granted=Integer.parseInt(chunks);
+        		} catch (NumberFormatException e) {
+        			// not valid, see below
+        		}
+        		if(granted<0) {
+        			endpoint.emit(fileError,"bad file credit: "+chunks);
+        			return;
+        		}
+        		Upload upload = uploads.get(endpoint);
+        		if(upload!=null) upload.grant(granted);
         	});
         }).on(PeerManager.peerStopped,(args)->{
         	Endpoint endpoint = (Endpoint)args[0];
+        	stopTransmittingFile(endpoint);
         	System.out.println("Disconnected from peer: "+endpoint.getOtherEndpointId());
         }).on(PeerManager.peerError,(args)->{
         	Endpoint endpoint = (Endpoint)args[0];
+        	stopTransmittingFile(endpoint);
         	System.out.println("There was an error communicating with the peer: "
         			+endpoint.getOtherEndpointId());
         }).on(PeerManager.peerServerManager, (args)->{
@@ -254,70 +722,258 @@ public class FileSharingPeer {
         input.readLine();
         System.out.println("RETURN pressed, stopping the peer");
         peerManager.shutdown();
+        synchronized(FileSharingPeer.class) {
+        	if(dataChannel!=null) dataChannel.close();
+        }
+        // virtual threads don't keep the JVM running, so wait for the peers to finish
+        peerManager.awaitTermination();
 	}
 	
 	/**
-	 * Process a query response from the index server and download the file
-	 * @param queryResponse
-	 * @throws InterruptedException 
+	 * A peer that a file is being downloaded from, one piece of the
+	 * {@link pb.fileshare.Download} at a time. If the connection to the peer
+	 * fails then its piece is given back for another source to take, and if
+	 * the client manager reconnects then the source carries on.
 	 */
-	private static void getFileFromPeer(PeerManager peerManager,String response) throws InterruptedException {
-		// Create a independent client manager (thread) for each download
-		// response has the format: PeerIP:PeerPort:filename
-		String[] parts=response.split(":",3);
-		ClientManager clientManager;
-		try {
-			clientManager = peerManager.connect(Integer.valueOf(parts[1]),parts[0]);
-		} catch (NumberFormatException e) {
-			System.out.println("Response from index server is bad, port is not a number: "+parts[1]);
-			return;
-		} catch (UnknownHostException e) {
-			System.out.println("Could not find the peer IP address: "+parts[0]);
-			return;
+	private static class Source {
+		private final Download download;
+		private final String filename;
+		private final String peerHost;
+		private final ClientManager clientManager;
+		
+		/**
+		 * All of the sources of the download, including this one.
+		 */
+		private final List<Source> sources;
+		
+		private Endpoint endpoint=null;
+		private Download.Piece piece=null;
+		private long received=0;
+		private int chunks=0;
+		private volatile boolean stopped=false;
+		
+		Source(Download download,String filename,String peerHost,
+				ClientManager clientManager,List<Source> sources) {
+			this.download=download;
+			this.filename=filename;
+			this.peerHost=peerHost;
+			this.clientManager=clientManager;
+			this.sources=sources;
 		}
-		try {
-			OutputStream out = new FileOutputStream(parts[2]);
+		
+		/**
+		 * The session with the peer has started, find out about the file.
+		 * @param endpoint
+		 */
+		synchronized void started(Endpoint endpoint) {
+			this.endpoint=endpoint;
+			endpoint.on(fileInfo, (args)->{
+				info(Document.parse((String) args[0]));
+			}).on(fileContents,(args)->{
+				chunk(EventProtocol.bytesOf(args[0]));
+			}).on(fileChannel, (args)->{
+				channel(Document.parse((String) args[0]));
+			}).on(fileError, (args)->{
+				System.out.println("Error downloading file "+filename+" from "+
+						endpoint.getOtherEndpointId()+": "+args[0]);
+				failed();
+				stop();
+			});
+			System.out.println("Getting file "+filename+" from "+endpoint.getOtherEndpointId());
+			endpoint.emit(getFileInfo, filename);
+		}
+		
+		private void info(Document info) {
+			try {
+				Manifest manifest = info.containsKey("manifest") ?
+						Manifest.fromDocument((Document) info.get("manifest")) : null;
+				if(!download.start(info.getLong("length"),manifest)) {
+					System.out.println("Peer has a different file "+filename+", not using it");
+					stop();
+					return;
+				}
+			} catch (ClassCastException | NullPointerException e) {
+				System.out.println("Peer sent bad file info for "+filename+", not using it");
+				stop();
+				return;
+			} catch (IOException e) {
+				System.out.println("Could not create file: "+filename);
+				download.close();
+				sources.forEach(Source::stop);
+				return;
+			}
+			requestNext();
+		}
+		
+		/**
+		 * Ask the peer for the next piece of the file, if there is one.
+		 */
+		synchronized void requestNext() {
+			if(stopped || endpoint==null || piece!=null) return;
+			piece=download.take(()->{
+				// not while the failing source is synchronized
+				Utils.getInstance().execute(this::requestNext);
+			});
+			if(piece==null) {
+				if(download.isClosed()) stop();
+				return;
+			}
+			received=0;
+			chunks=0;
+			Document request = new Document();
+			request.append("filename", filename);
+			request.append("offset", piece.offset);
+			request.append("length", piece.length);
+			request.append("channel", useDataChannel);
+			request.append("credit", creditWindow);
+			endpoint.emit(getFile, request.toJson());
+		}
+		
+		private synchronized void chunk(byte[] chunk) {
+			if(piece==null) return;
+			if(chunk.length==0) {
+				pieceEnded();
+				return;
+			}
+			try {
+				download.write(piece.offset+received, ByteBuffer.wrap(chunk));
+			} catch (IOException e) {
+				System.out.println("Error writing file chunk: "+e.getMessage());
+				failed();
+				stop();
+				return;
+			}
+			received+=chunk.length;
+			// give back credit in batches, to keep the window open
+			if(++chunks%(creditWindow/2)==0) {
+				endpoint.emit(fileCredit, Integer.toString(creditWindow/2));
+			}
+		}
+		
+		private synchronized void channel(Document offer) {
+			Download.Piece requested=piece;
+			if(requested==null) return;
+			int port;
+			long token, length;
+			try {
+				port=(int)offer.getLong("port");
+				token=offer.getLong("token");
+				length=offer.getLong("length");
+			} catch (ClassCastException | NullPointerException e) {
+				System.out.println("Peer sent a bad data channel offer for "+filename+", not using it");
+				failed();
+				stop();
+				return;
+			}
+			// the transfer blocks, so don't hold up the endpoint
+			Utils.getInstance().execute(()->{
+				long got=0;
+				try {
+					// a transfer that fails part way returns what it got, so the piece resumes from there
+					got = DataChannel.receive(peerHost,port,token,download.getChannel(),
+							requested.offset,length);
+				} catch (IOException e) {
+					System.out.println("Error downloading file over data channel: "+e.getMessage());
+				}
+				synchronized(this) {
+					if(piece!=requested) return; // given up on already
+					received=got;
+					pieceEnded();
+				}
+			});
+		}
+		
+		/**
+		 * The peer has sent all it is going to of the piece.
+		 */
+		private void pieceEnded() {
+			Download.Piece ended=piece;
+			piece=null;
+			if(received!=ended.length) {
+				System.out.println("Peer sent "+received+" bytes of a "+ended.length+
+						" byte piece of "+filename+", giving back the rest");
+				download.failed(ended,received);
+				// keep going while the peer makes progress, it may just have a flaky link
+				if(received>0) requestNext(); else stop();
+			} else if(download.done(ended)) {
+				System.out.println("Downloaded file "+filename);
+				sources.forEach(Source::stop);
+			} else {
+				requestNext();
+			}
+		}
+		
+		/**
+		 * Give back the piece being downloaded, if any.
+		 */
+		private synchronized void failed() {
+			if(piece!=null) download.failed(piece,received);
+			piece=null;
+		}
+		
+		/**
+		 * The session with the peer has ended.
+		 */
+		synchronized void disconnected() {
+			endpoint=null;
+			failed();
+		}
+		
+		/**
+		 * Stop using this source.
+		 */
+		void stop() {
+			if(stopped) return;
+			stopped=true;
+			clientManager.shutdown();
+		}
+	}
+	
+	/**
+	 * Download a file from the peers that have it, several pieces at once.
+	 * @param peerManager
+	 * @param filename
+	 * @param peers the peers that have the file, in the form "PeerIP:PeerPort"
+	 * @return the download
+	 * @throws InterruptedException 
+	 */
+	private static Download getFileFromPeers(PeerManager peerManager,String filename,
+			List<String> peers) throws InterruptedException {
+		// Create a independent client manager (thread) for each source
+		Download download = new Download(Paths.get(filename));
+		List<Source> sources = new ArrayList<>();
+		for(String peer : peers) {
+			String[] parts=peer.split(":",2);
+			ClientManager clientManager;
+			try {
+				clientManager = peerManager.connect(Integer.valueOf(parts[1]),parts[0]);
+			} catch (NumberFormatException e) {
+				System.out.println("Response from index server is bad, port is not a number: "+parts[1]);
+				continue;
+			} catch (UnknownHostException e) {
+				System.out.println("Could not find the peer IP address: "+parts[0]);
+				continue;
+			}
+			Source source = new Source(download,filename,parts[0],clientManager,sources);
+			sources.add(source);
 			clientManager.on(PeerManager.peerStarted, (args)->{
-				Endpoint endpoint = (Endpoint)args[0];
-				endpoint.on(fileContents,(args2)->{
-					String chunk = (String) args2[0];
-					if(chunk.length()==0) {
-						// file download complete
-						try {
-							out.close();
-						} catch (IOException e) {
-							System.out.println("Possible error with downloaded file: "+parts[2]);
-						}
-						clientManager.shutdown();
-					} else {
-						try {
-							out.write(Base64.decodeBase64(chunk));
-						} catch (IOException e) {
-							System.out.println("Error writing file chunk: "+chunk);
-						}
-					}
-				}).on(fileError, (args2)->{
-					System.out.println("Error downloading file");
-					clientManager.shutdown();
-				});
-				System.out.println("Getting file "+parts[2]+" from "+endpoint.getOtherEndpointId());
-				endpoint.emit(getFile, parts[2]);
+				source.started((Endpoint)args[0]);
 			}).on(PeerManager.peerStopped, (args)->{
 				Endpoint endpoint = (Endpoint)args[0];
+				source.disconnected();
 				System.out.println("Disconnected from peer: "+endpoint.getOtherEndpointId());
 			}).on(PeerManager.peerError, (args)->{
 				Endpoint endpoint = (Endpoint)args[0];
+				source.disconnected();
 				System.out.println("There was error while communication with peer: "
 						+endpoint.getOtherEndpointId());
 			});
-			clientManager.start();
-			// we can't call clientManager.join() because the thread that called this method is
-			// the endpoint thread from the query to the index server, which needs
-			// to continue to process its session, so we can join with this later
-		} catch (FileNotFoundException e) {
-			System.out.println("Could not create file: "+parts[2]);
-		}	
-		
+		}
+		// we can't call clientManager.awaitTermination() because the thread that called this method is
+		// the endpoint thread from the query to the index server, which needs
+		// to continue to process its session, so we can join with these later
+		sources.forEach((source)->source.clientManager.start());
+		return download;
 	}
 	
 	/**
@@ -330,29 +986,55 @@ public class FileSharingPeer {
 		String query = String.join(",",keywords);
 		// connect to the index server and tell it the files we are sharing
 		PeerManager peerManager = new PeerManager(peerPort);
+		// filename to the peers that have it, in the order the index gave them
+		Map<String,List<String>> hits = new LinkedHashMap<>();
+		List<Download> downloads = new ArrayList<>();
         ClientManager clientManager = peerManager.connect(indexServerPort, host);
         clientManager.on(PeerManager.peerStarted, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
 			System.out.println("Connected to index server: "+endpoint.getOtherEndpointId());
-			endpoint.on(IndexServer.queryResponse, (args2)->{
-				String response = (String) args2[0];
-				if(response.length()==0) {
-					System.out.println("Received all responses.");
-					clientManager.shutdown();
-				} else {
-					System.out.println("Received query response: "+response);
+			endpoint.on(IndexServer.queryResults, (args2)->{
+				Document batch = Document.parse((String) args2[0]);
+				if(batch.containsKey("total")) {
+					System.out.println("Index server found "+batch.getLong("total")+" files.");
+				}
+				try {
+					for(Object o : (List<?>) batch.get("hits")) {
+						Document hit = (Document) o;
+						String filename = hit.getString("filename");
+						System.out.println("Received query response: "+filename);
+						List<String> peers = hits.computeIfAbsent(filename,(k)->new ArrayList<>());
+						for(Object peer : (List<?>) hit.get("peers")) {
+							if(peers.size()<maxSources) peers.add((String) peer);
+						}
+					}
+				} catch (ClassCastException | NullPointerException e) {
+					System.out.println("Response from index server is bad: "+args2[0]);
+				}
+				if(!batch.containsKey("end")) {
+					endpoint.emit(IndexServer.queryCredit, "1");
+					return;
+				}
+				System.out.println("Received all responses.");
+				hits.forEach((filename,peers)->{
 					try {
-						getFileFromPeer(peerManager,response);
+						downloads.add(getFileFromPeers(peerManager,filename,peers));
 					} catch (InterruptedException e) {
-						System.out.println("interrupted while trying to download: "+response);
+						System.out.println("interrupted while trying to download: "+filename);
 					}
-				}
+				});
+				clientManager.shutdown();
 			}).on(IndexServer.queryError, (args2)->{
-				System.out.println("Index server did not accept the query: "+query);
+				System.out.println("Index server did not accept the query: "+query+" ("+args2[0]+")");
 				clientManager.shutdown();
 			});
 			System.out.println("Sending query to the index server.");
-			endpoint.emit(IndexServer.queryIndex, query);
+			hits.clear(); // in case the query is being sent again
+			Document request = new Document();
+			request.append("query", query);
+			request.append("peers", maxSources);
+			request.append("credit", 2); // so the next batch is on its way while this one is handled
+			endpoint.emit(IndexServer.queryIndexStream, request.toJson());
 		}).on(PeerManager.peerStopped, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
 			System.out.println("Disconnected from the index server: "+endpoint.getOtherEndpointId());
@@ -362,12 +1044,17 @@ public class FileSharingPeer {
 					+endpoint.getOtherEndpointId());
 		});
         clientManager.start();
-        clientManager.join(); // wait for the query to finish
+        clientManager.awaitTermination(); // wait for the query to finish
         /*
          * We also have to join with any other client managers that were started for
          * download purposes.
          */
         peerManager.joinWithClientManagers();
+        for(Download download : downloads) {
+        	if(!download.isComplete()) System.out.println("Download of "+download.getPath()+
+        			" is incomplete, it will carry on from where it stopped next time");
+        	download.close();
+        }
 	}
 	
 	private static void help(Options options){
@@ -389,6 +1076,12 @@ public class FileSharingPeer {
         options.addOption("port",true,"peer server port, an integer");
         options.addOption("host",true,"index server hostname, a string");
         options.addOption("indexServerPort",true,"index server port, an integer");
+        options.addOption("events",false,"get files as events over the session rather than over a data channel");
+        options.addOption("window",true,"number of chunks a peer may send ahead when getting files as events, an integer");
+        options.addOption("rateLimit",true,"most bytes per second to send a file to a peer at, an integer");
+        options.addOption("sources",true,"most peers to download each file from at once, an integer");
+        options.addOption("manifests",true,"directory to keep the manifests of shared files in, a path");
+        options.addOption("virtual",false,"use virtual threads for connections to peers, needs Java 21");
         Option optionShare = new Option("share",true,"list of files to share");
         optionShare.setArgs(Option.UNLIMITED_VALUES);
         options.addOption(optionShare);
@@ -428,6 +1121,48 @@ public class FileSharingPeer {
         	host = cmd.getOptionValue("host");
         }
         
+        if(cmd.hasOption("events")) {
+        	useDataChannel = false;
+        }
+        
+        if(cmd.hasOption("window")) {
+        	try{
+        		creditWindow = Math.max(2,Integer.parseInt(cmd.getOptionValue("window")));
+			} catch (NumberFormatException e){
+				System.out.println("-window requires a number of chunks, parsed: "+
+						cmd.getOptionValue("window"));
+				help(options);
+			}
+        }
+        
+        if(cmd.hasOption("sources")) {
+        	try{
+        		maxSources = Math.max(1,Integer.parseInt(cmd.getOptionValue("sources")));
+			} catch (NumberFormatException e){
+				System.out.println("-sources requires a number of peers, parsed: "+
+						cmd.getOptionValue("sources"));
+				help(options);
+			}
+        }
+        
+        if(cmd.hasOption("virtual")) {
+        	Utils.getInstance().enableVirtualThreads();
+        }
+        
+        if(cmd.hasOption("manifests")) {
+        	Manifest.setDirectory(Paths.get(cmd.getOptionValue("manifests")));
+        }
+        
+        if(cmd.hasOption("rateLimit")) {
+        	try{
+        		rateLimit = Long.parseLong(cmd.getOptionValue("rateLimit"));
+			} catch (NumberFormatException e){
+				System.out.println("-rateLimit requires a number of bytes per second, parsed: "+
+						cmd.getOptionValue("rateLimit"));
+				help(options);
+			}
+        }
+        
         
         // start up the client
         log.info("PB Peer starting up");
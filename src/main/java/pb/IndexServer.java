@@ -1,15 +1,18 @@
 package pb;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
@@ -19,9 +22,16 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import pb.index.FilenameIndex;
+import pb.index.IndexBatch;
+import pb.index.IndexStore;
+import pb.index.PeerExpiry;
+import pb.index.PeerRanking;
+import pb.index.QueryCache;
 import pb.managers.IOThread;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.protocols.Document;
 import pb.utils.Utils;
 
 /**
@@ -45,6 +55,36 @@ public class IndexServer {
 	 */
 	public static final String indexUpdate = "INDEX_UPDATE";
 	
+	/**
+	 * Emitted to change the files that a peer has in the index, many at a
+	 * time. The argument is a JSON document with the "peer" in the format
+	 * "host:port", the "version" of the peer's files after the change, and
+	 * lists of filenames to "add" and to "remove". Either "full" is true, to
+	 * say that the peer has only the files in "add", or "base" is the version
+	 * that the change is from, which must be the version that the index has
+	 * for the peer (left out if the index has none). The document is sent as
+	 * a String, or as bytes compressed with gzip, see {@link pb.index.IndexBatch}.
+	 * The reply is {@link #indexVersion}.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String || args[0] instanceof byte[]}</li>
+	 * </ul>
+	 */
+	public static final String indexUpdateBatch = "INDEX_UPDATE_BATCH";
+	
+	/**
+	 * Emitted to ask which version of a peer's files the index has, the
+	 * reply is {@link #indexVersion}. The session is then the peer's, which
+	 * it keeps open while it shares its files: when the session ends, the
+	 * peer's files are removed from the index. Only a peer that the session
+	 * has already sent a {@link #peerUpdate} or an update of the files of is
+	 * taken, so that a session can't end with the files of other peers being
+	 * removed. The argument must have the format "host:port"
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String indexSync = "INDEX_SYNC";
+	
 	/**
 	 * Emitted to query the index for keywords. The argument
 	 * must have the format "keyword,keyword,..."
@@ -54,10 +94,69 @@ public class IndexServer {
 	 */
 	public static final String queryIndex = "QUERY_INDEX";
 	
+	/**
+	 * Emitted to query the index for keywords, like {@link #queryIndex},
+	 * except that there is a response for every peer that has a matching
+	 * file, most recently seen first, rather than just for the most recently
+	 * seen peer. The argument must have the format "keyword,keyword,..."
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String queryIndexAll = "QUERY_INDEX_ALL";
+	
+	/**
+	 * Emitted to query the index for keywords, like {@link #queryIndexAll},
+	 * except that there is a response for at most k of the peers that have
+	 * each file, the k most recently seen. The argument must have the format
+	 * "k:keyword,keyword,..."
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String queryIndexTop = "QUERY_INDEX_TOP";
+	
+	/**
+	 * Emitted to query the index for keywords, with the results sent back
+	 * in batches as {@link #queryResults}, as fast as the client asks for
+	 * them with {@link #queryCredit}, rather than one hit at a time. The
+	 * argument is a JSON document string with the "query" in the format
+	 * "keyword,keyword,...", and optionally "peers", the most peers to give
+	 * for each file (default 1), "batch", the most files in a batch (default
+	 * {@link #defaultBatchSize}), and "credit", the number of batches that may
+	 * be sent before the client gives more credit (default 1).
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String queryIndexStream = "QUERY_INDEX_STREAM";
+	
+	/**
+	 * Emitted to allow more batches of the results of a
+	 * {@link #queryIndexStream} to be sent. The argument is the number of
+	 * batches.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String queryCredit = "QUERY_CREDIT";
+	
+	/**
+	 * Emitted to ask for statistics of the index server, the reply is
+	 * {@link #stats}. The argument is not used, and may be the empty
+	 * string "".
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String getStats = "GET_STATS";
+	
 	/**
 	 * Emitted to tell the index server that your peer is
-	 * available for other peers to connect to it. The argument
-	 * must have the format "host:port"
+	 * available for other peers to connect to it. A peer that has not
+	 * been seen for a while is removed from the index, so a sharing peer
+	 * emits this every so often. The argument must have the format
+	 * "host:port"
 	 * <ul>
 	 * <li>{@code args[0] instanceof String}</li>
 	 * </ul>
@@ -77,6 +176,17 @@ public class IndexServer {
 	 */
 	public static final String indexUpdateError = "INDEX_UPDATE_ERROR";
 	
+	/**
+	 * Emitted to say which version of a peer's files the index has, in reply
+	 * to {@link #indexSync} or {@link #indexUpdateBatch}. The argument is a
+	 * JSON document string with the "peer" and its "version", which is left
+	 * out if the index has no version for the peer.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String indexVersion = "INDEX_VERSION";
+	
 	/**
 	 * Emitted as a query response. The argument either gives
 	 * a response in the form "host:port:filename" or the empty
@@ -88,21 +198,210 @@ public class IndexServer {
 	public static final String queryResponse = "QUERY_RESPONSE";
 	
 	/**
-	 * Emitted when the query was in error. No argument is given.
+	 * Emitted as a batch of the results of a {@link #queryIndexStream}. The
+	 * argument is a JSON document string with the "hits", a list of documents
+	 * each with a "filename" and the "peers" that have it, most recently seen
+	 * first, in the form "host:port". The first batch also has the "total"
+	 * number of files that matched, and the last batch has "end" set to true.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String queryResults = "QUERY_RESULTS";
+	
+	/**
+	 * Emitted in reply to {@link #getStats}. The argument is a JSON document
+	 * string with the number of "files" and "peers" in the index, and the
+	 * "queryCache" statistics, see {@link pb.index.QueryCache#getStats()},
+	 * if there is a query cache.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
+	 */
+	public static final String stats = "STATS";
+	
+	/**
+	 * Emitted when the query was in error. The argument is the reason.
+	 * <ul>
+	 * <li>{@code args[0] instanceof String}</li>
+	 * </ul>
 	 */
 	public static final String queryError = "QUERY_ERROR";
 	
 	/**
 	 * Storage of the key value index
-	 * "filename" to list of "PeerIP:PeerPort" strings that have that file
+	 * "filename" to set of "PeerIP:PeerPort" strings that have that file.
+	 * Both the map and the sets are concurrent, so updates and queries from
+	 * different clients don't wait for each other. A filename is removed
+	 * when no peer has it.
+	 */
+	public static final Map<String,Set<String>> keyValueMap=new ConcurrentHashMap<>();
+	
+	/**
+	 * Index of the filenames in {@link #keyValueMap}, for finding those that
+	 * match a query.
+	 */
+	private static final FilenameIndex filenameIndex=new FilenameIndex();
+	
+	/**
+	 * Hits of recent queries, or null to search the index for every query.
 	 */
-	public static final Map<String,Set<String>> keyValueMap=new HashMap<>();
+	private static QueryCache queryCache=new QueryCache();
+	
+	/**
+	 * Lookups in {@link #queryCache} when its statistics were last logged.
+	 */
+	private static long loggedLookups=0;
+	
+	/**
+	 * The peers that have each file in {@link #keyValueMap}, in order of
+	 * when they were last seen.
+	 */
+	private static final PeerRanking peerRanking=new PeerRanking();
+	
+	/**
+	 * Version of the files that each "PeerIP:PeerPort" has in the index,
+	 * for the peers that have sent a {@link #indexUpdateBatch}.
+	 */
+	private static final Map<String,String> peerVersions=new ConcurrentHashMap<>();
+	
+	/**
+	 * Locks that the changes to the files of a peer are made under, so that
+	 * they are made one at a time for each peer, and at the same time for
+	 * different peers. Peers share the locks, see {@link #lockOf(String)}.
+	 */
+	private static final Object[] peerLocks=new Object[256];
+	static {
+		for(int i=0;i<peerLocks.length;i++) peerLocks[i]=new Object();
+	}
 	
 	/**
 	 * Last time seen "PeerIP:PeerPort" to timestamp, the last time the peer has
 	 * been seen. We will use this to give the most recent peer that has the file.
+	 * Peers that have not been seen for {@link #peerTtl} are forgotten.
+	 */
+	public static final Map<String,Long> lastTimeSeen=new ConcurrentHashMap<>();
+	
+	/**
+	 * The peers in order of when they were last seen, to find those to forget.
 	 */
-	public static final Map<String,Long> lastTimeSeen=new HashMap<>();
+	private static final PeerExpiry peerExpiry=new PeerExpiry();
+	
+	/**
+	 * Time in ms after a peer was last seen that it is forgotten, or 0 for
+	 * never.
+	 */
+	private static long peerTtl=10*60*1000;
+	
+	/**
+	 * The session that each peer synced its files on, see {@link #indexSync},
+	 * and the peers that each session synced.
+	 */
+	private static final Map<String,Endpoint> peerSessions=new ConcurrentHashMap<>();
+	private static final Map<Endpoint,Set<String>> sessionPeers=new ConcurrentHashMap<>();
+	
+	/**
+	 * The peers that each session has sent updates for, which are the only
+	 * ones it may sync.
+	 */
+	private static final Map<Endpoint,Set<String>> sessionUpdates=new ConcurrentHashMap<>();
+	
+	/**
+	 * Filenames that no peer has that may be left in {@link #filenameIndex},
+	 * beyond the number of filenames in {@link #keyValueMap}, before it is
+	 * built again without them.
+	 */
+	private static final int filenameSlack=1024;
+	
+	/**
+	 * Keeps the index on disk, if a directory for it was given, so that it
+	 * survives a restart.
+	 */
+	private static IndexStore indexStore=null;
+	
+	/**
+	 * Default number of files in a batch of {@link #queryResults}.
+	 */
+	public static final int defaultBatchSize=100;
+	
+	/**
+	 * Most files in a batch of {@link #queryResults}.
+	 */
+	private static final int maxBatchSize=1000;
+	
+	/**
+	 * Sends the results of a {@link #queryIndexStream} in batches, a batch for
+	 * each credit given by the client.
+	 */
+	private static class QueryStream {
+		private final Endpoint client;
+		private final List<String> hits;
+		private final int maxPeers;
+		private final int batchSize;
+		private int next=0;
+		private int credit;
+		private boolean done=false;
+		
+		QueryStream(Endpoint client,List<String> hits,int maxPeers,int batchSize,int credit) {
+			this.client=client;
+			this.hits=hits;
+			this.maxPeers=maxPeers;
+			this.batchSize=batchSize;
+			this.credit=credit;
+		}
+		
+		/**
+		 * Allow more batches to be sent.
+		 * @param batches
+		 */
+		synchronized void grant(int batches) {
+			// can't overflow, there are never more batches than this
+			credit=(int) Math.min(Integer.MAX_VALUE, (long) credit+batches);
+			send();
+		}
+		
+		/**
+		 * Send batches while there is credit for them, or until the last
+		 * batch has been sent.
+		 */
+		synchronized void send() {
+			while(!done && credit>0) {
+				Document batch = new Document();
+				if(next==0) batch.append("total", hits.size());
+				ArrayList<Document> docs = new ArrayList<>();
+				while(next<hits.size() && docs.size()<batchSize) {
+					String filename = hits.get(next++);
+					List<String> peers = peerRanking.top(filename,maxPeers);
+					if(peers.isEmpty()) continue;
+					Document hit = new Document();
+					hit.append("filename", filename);
+					hit.append("peers", new ArrayList<String>(peers));
+					docs.add(hit);
+				}
+				batch.append("hits", docs);
+				if(next>=hits.size()) {
+					batch.append("end", true);
+					close();
+				}
+				log.info("Sending batch of "+docs.size()+" query results");
+				client.emit(queryResults, batch.toJson());
+				credit--;
+			}
+		}
+		
+		/**
+		 * Stop sending.
+		 */
+		synchronized void close() {
+			done=true;
+			queryStreams.remove(client,this);
+		}
+	}
+	
+	/**
+	 * Query results being sent, by the client they are being sent to.
+	 */
+	private static final Map<Endpoint,QueryStream> queryStreams=new ConcurrentHashMap<>();
 	
 	/**
 	 * The default port number for the server.
@@ -114,74 +413,358 @@ public class IndexServer {
 	 * Update the index with the filename and peerport.
 	 * @param filename
 	 * @param peerport
+	 * @return true if the peer did not already have the file
 	 */
-	private static void indexUpdate(String filename,String peerport) {
-		synchronized(keyValueMap) {
-			if(!keyValueMap.containsKey(filename)) {
-				keyValueMap.put(filename, new HashSet<String>());
+	private static boolean indexUpdate(String filename,String peerport) {
+		boolean[] added={false,false}; // the filename, the peer for it
+		keyValueMap.compute(filename, (key,possiblepeers)->{
+			if(possiblepeers==null) {
+				possiblepeers=ConcurrentHashMap.newKeySet();
+				added[0]=true;
 			}
-			Set<String> possiblepeers=keyValueMap.get(filename);
-			possiblepeers.add(peerport);
+			added[1]=possiblepeers.add(peerport);
+			return possiblepeers;
+		});
+		// after the filename is in the map, so that a clean up keeps it
+		if(added[0]) {
+			filenameIndex.add(filename);
+			if(queryCache!=null) queryCache.changed(filename);
+		}
+		if(!added[1]) return false;
+		peerRanking.add(filename,peerport);
+		return true;
+	}
+	
+	/**
+	 * Update the index with many filenames for a peer, adding the filenames
+	 * that are new to the index in one go.
+	 * @param filenames
+	 * @param peerport
+	 */
+	private static void indexUpdate(List<String> filenames,String peerport) {
+		List<String> added=new ArrayList<>();
+		List<String> held=new ArrayList<>(filenames.size());
+		for(String filename : filenames) {
+			keyValueMap.compute(filename, (key,possiblepeers)->{
+				if(possiblepeers==null) {
+					possiblepeers=ConcurrentHashMap.newKeySet();
+					added.add(filename);
+				}
+				if(possiblepeers.add(peerport)) held.add(filename);
+				return possiblepeers;
+			});
 		}
+		filenameIndex.addAll(added);
+		if(queryCache!=null) added.forEach(queryCache::changed);
+		for(String filename : held) peerRanking.add(filename,peerport);
+	}
+	
+	/**
+	 * Remove a peer from the peers that have a file. The filename is removed
+	 * when no peer has it, though it stays in {@link #filenameIndex}, where
+	 * it is no longer a hit, until that is cleaned up.
+	 * @param filename
+	 * @param peerport
+	 */
+	private static void indexRemove(String filename,String peerport) {
+		boolean[] removed={false,false}; // the peer for it, the filename
+		keyValueMap.computeIfPresent(filename, (key,possiblepeers)->{
+			removed[0]=possiblepeers.remove(peerport);
+			removed[1]=possiblepeers.isEmpty();
+			return removed[1] ? null : possiblepeers;
+		});
+		if(removed[1] && queryCache!=null) queryCache.changed(filename);
+		if(removed[0]) peerRanking.remove(filename,peerport);
 	}
 	
 	/**
-	 * Transmit a response for each hit. Return the peer that has the file
-	 * and that was the most recently seen, to try and make sure its still
-	 * online.
+	 * Forget a peer, removing it from the peers of all of its files. An
+	 * update for the peer that comes after this sees it again, so that it
+	 * expires again.
+	 * @param peerport
+	 */
+	private static void forgetPeer(String peerport) {
+		synchronized(lockOf(peerport)) {
+			for(String filename : peerRanking.filesOf(peerport)) indexRemove(filename,peerport);
+			peerRanking.forget(peerport);
+			peerVersions.remove(peerport);
+			lastTimeSeen.remove(peerport);
+			peerExpiry.forget(peerport);
+			if(indexStore!=null) indexStore.forget(peerport);
+		}
+	}
+	
+	/**
+	 * 
+	 * @param peerport
+	 * @return the lock to make changes to the files of the peer under
+	 */
+	private static Object lockOf(String peerport) {
+		return peerLocks[peerport.hashCode() & (peerLocks.length-1)];
+	}
+	
+	/**
+	 * Note that a session has sent an update for a peer.
+	 * @param peerport
+	 * @param client
+	 */
+	private static void updatedBy(String peerport,Endpoint client) {
+		sessionUpdates.computeIfAbsent(client, (k)->ConcurrentHashMap.newKeySet()).add(peerport);
+	}
+	
+	/**
+	 * Take a session to be the one that a peer keeps open while it shares
+	 * its files, if the session has sent updates for the peer.
+	 * @param peerport
+	 * @param client
+	 * @return true if the session now holds the peer
+	 */
+	private static boolean holdPeer(String peerport,Endpoint client) {
+		Set<String> updated=sessionUpdates.get(client);
+		if(updated==null || !updated.contains(peerport)) return false;
+		sessionPeers.computeIfAbsent(client, (k)->ConcurrentHashMap.newKeySet()).add(peerport);
+		peerSessions.put(peerport, client);
+		return true;
+	}
+	
+	/**
+	 * Forget the peers that a session that has ended was held for.
+	 * @param client
+	 */
+	private static void releasePeers(Endpoint client) {
+		sessionUpdates.remove(client);
+		Set<String> held=sessionPeers.remove(client);
+		if(held==null) return;
+		for(String peerport : held) {
+			// unless the peer has synced again on another session since
+			if(peerSessions.remove(peerport, client)) {
+				log.info("Removing peer from the index, its session ended: "+peerport);
+				forgetPeer(peerport);
+			}
+		}
+	}
+	
+	/**
+	 * Forget the peers that have not been seen for {@link #peerTtl}, and
+	 * clean up {@link #filenameIndex} if many of its filenames are no longer
+	 * in {@link #keyValueMap}.
+	 */
+	private static void expirePeers() {
+		if(peerTtl>0) {
+			long before=Instant.now().toEpochMilli()-peerTtl;
+			for(String peerport : peerExpiry.expire(before)) {
+				synchronized(lockOf(peerport)) {
+					// unless it has been seen again since it was taken
+					if(lastTimeSeen.getOrDefault(peerport, 0L)>=before) continue;
+					log.info("Removing peer from the index, it has not been seen for a while: "+peerport);
+					forgetPeer(peerport);
+				}
+			}
+		}
+		if(filenameIndex.size()>2*keyValueMap.size()+filenameSlack) {
+			int dropped=filenameIndex.retain(keyValueMap::containsKey);
+			log.info("Dropped "+dropped+" filenames that no peer has from the filename index");
+		}
+		if(queryCache!=null && queryCache.getLookups()!=loggedLookups) {
+			loggedLookups=queryCache.getLookups();
+			log.info("Query cache: "+queryCache.getStats().toJson());
+		}
+	}
+	
+	/**
+	 * Send the statistics of the index server to the client.
+	 * @param client
+	 */
+	private static void sendStats(Endpoint client) {
+		Document doc = new Document();
+		doc.append("files", keyValueMap.size());
+		doc.append("peers", lastTimeSeen.size());
+		if(queryCache!=null) doc.append("queryCache", queryCache.getStats());
+		client.emit(stats, doc.toJson());
+	}
+	
+	/**
+	 * Check for peers to forget every so often, a tenth of the time to live,
+	 * between a second and a minute.
+	 */
+	private static void scheduleExpiry() {
+		long interval=peerTtl>0 ? Math.max(1000, Math.min(60*1000, peerTtl/10)) : 60*1000;
+		Utils.getInstance().setTimeout(()->{
+			// not on the timer's thread, a clean up can take a while
+			Utils.getInstance().execute(()->{
+				expirePeers();
+				scheduleExpiry();
+			});
+		}, interval);
+	}
+	
+	/**
+	 * Apply a batch of index updates for a peer, see {@link #indexUpdateBatch}.
+	 * Batches for the same peer are applied one at a time.
+	 * @param batch
+	 * @param client
+	 */
+	private static void indexUpdateBatch(Object batch,Endpoint client) {
+		String peerport;
+		String version;
+		String base;
+		boolean full;
+		List<String> adds;
+		List<String> removes;
+		try {
+			Document doc = IndexBatch.decode(batch);
+			peerport = doc.getString("peer");
+			version = doc.getString("version");
+			base = doc.containsKey("base") ? doc.getString("base") : null;
+			full = doc.containsKey("full") && doc.getBoolean("full");
+			adds = IndexBatch.strings(doc,"add");
+			removes = IndexBatch.strings(doc,"remove");
+			if(peerport==null || version==null || peerport.split(":").length!=2) {
+				throw new IOException("batch needs a peer and a version");
+			}
+		} catch (IOException | ClassCastException e) {
+			log.warning("Bad index update batch: "+e.getMessage());
+			client.emit(indexUpdateError,"bad batch: "+e.getMessage());
+			return;
+		}
+		log.info("Received index update batch from "+peerport+": "+adds.size()+" to add, "
+				+removes.size()+" to remove"+(full?", in full":""));
+		updatedBy(peerport,client);
+		String current;
+		// not in a compute of peerVersions, which would hold up other peers
+		synchronized(lockOf(peerport)) {
+			if(!lastTimeSeen.containsKey(peerport)) peerUpdate(peerport);
+			current=peerVersions.get(peerport);
+			// a change from another version would leave the index wrong
+			if(full || Objects.equals(base,current)) {
+				List<String> removed=new ArrayList<>(removes);
+				if(full) {
+					Set<String> keep=new HashSet<>(adds);
+					for(String filename : peerRanking.filesOf(peerport)) {
+						if(!keep.contains(filename)) removed.add(filename);
+					}
+				}
+				for(String filename : removed) indexRemove(filename,peerport);
+				indexUpdate(adds,peerport);
+				peerVersions.put(peerport,version);
+				// logged in the order the changes are made for the peer
+				if(indexStore!=null) indexStore.update(peerport,version,removed,adds);
+				current=version;
+			}
+		}
+		sendIndexVersion(peerport,current,client);
+	}
+	
+	/**
+	 * Tell the client which version of a peer's files the index has.
+	 * @param peerport
+	 * @param version the version, or null if there is none
+	 * @param client
+	 */
+	private static void sendIndexVersion(String peerport,String version,Endpoint client) {
+		Document doc = new Document();
+		doc.append("peer", peerport);
+		if(version!=null) doc.append("version", version);
+		client.emit(indexVersion, doc.toJson());
+	}
+	
+	/**
+	 * Transmit a response for each hit, for the peers that have the file
+	 * and that were the most recently seen, to try and make sure they are
+	 * still online.
 	 * @param hits
 	 * @param client
+	 * @param maxPeers most peers to respond with for each hit
 	 */
-	private static void transmitHits(List<String> hits,Endpoint client) {
+	private static void transmitHits(List<String> hits,Endpoint client,int maxPeers) {
 		if(hits.isEmpty()) {
 			log.info("Sending blank query response");
 			client.emit(queryResponse, "");
 			return;
 		}
 		String hit = hits.remove(0);
-		synchronized(keyValueMap) {
-			synchronized(lastTimeSeen) {
-				if(keyValueMap.containsKey(hit)) {
-					List<String> peers = new ArrayList<String>(keyValueMap.get(hit));
-					Collections.sort(peers,
-					new Comparator<String>() {
-						@Override
-						public int compare(String o1, String o2) {
-							// sort largest to smallest
-							return lastTimeSeen.get(o2).compareTo(lastTimeSeen.get(o1));
-						}
-					});
-					log.info("Sending query response: "+peers.get(0)+":"+hit);
-					client.emit(queryResponse, peers.get(0)+":"+hit);
-				}
-			}
+		for(String peer : peerRanking.top(hit,maxPeers)) {
+			log.info("Sending query response: "+peer+":"+hit);
+			client.emit(queryResponse, peer+":"+hit);
 		}
 		Utils.getInstance().setTimeout(()->{
-			transmitHits(hits,client);
+			transmitHits(hits,client,maxPeers);
 		}, 100); // transmit 10 hits per second... no real bandwidth control here.
 	}
 	
 	/**
-	 * Generate hits and return them to the client. Not a very
-	 * efficient search mechanism, but ok for testing.
+	 * Generate hits and return them to the client. A filename is a hit
+	 * if it contains any of the terms, ignoring case.
 	 * @param query a comma separated list of terms to search for
+	 * @param maxPeers most peers to respond with for each file
 	 */
-	private static void queryIndex(String query,Endpoint client) {
+	private static void queryIndex(String query,Endpoint client,int maxPeers) {
+		transmitHits(search(query),client,maxPeers);
+	}
+	
+	/**
+	 * Find the filenames that contain any of the terms of a query, ignoring
+	 * case, from the query cache if the hits of the query are in it.
+	 * @param query a comma separated list of terms to search for
+	 * @return the filenames, which may be changed
+	 */
+	private static List<String> search(String query) {
+		if(queryCache==null) return searchIndex(query);
+		return new ArrayList<>(queryCache.get(query,IndexServer::searchIndex));
+	}
+	
+	/**
+	 * Search the index for the filenames that contain any of the terms of a
+	 * query, ignoring case.
+	 * @param query a comma separated list of terms to search for
+	 * @return the filenames
+	 */
+	private static List<String> searchIndex(String query) {
 		String[] terms = query.split(",");
 		Set<String> hits = new HashSet<>();
-		List<String> filenames;
-		synchronized(keyValueMap) {
-			filenames=new ArrayList<String>(keyValueMap.keySet());
+		for(String term : terms) {
+			filenameIndex.search(term,hits);
 		}
-		for(String filename : filenames) {
-			String filelower=filename.toLowerCase();
-			for(String term : terms) {
-				if(filelower.contains(term.toLowerCase())) {
-					hits.add(filename);
-				}
-			}
+		List<String> held = new ArrayList<String>(hits.size());
+		for(String filename : hits) {
+			// filenames stay in the index after their peers have gone
+			Set<String> possiblepeers = keyValueMap.get(filename);
+			if(possiblepeers!=null && !possiblepeers.isEmpty()) held.add(filename);
 		}
-		transmitHits(new ArrayList<String>(hits),client);
+		return held;
+	}
+	
+	/**
+	 * Start sending the results of a query to the client in batches,
+	 * replacing any results that are still being sent to it.
+	 * @param request the query, see {@link #queryIndexStream}
+	 * @param client
+	 */
+	private static void queryIndexStream(String request,Endpoint client) {
+		Document doc = Document.parse(request);
+		String query;
+		int maxPeers,batchSize,credit;
+		try {
+			query = doc.getString("query");
+			maxPeers = doc.containsKey("peers") ? (int) doc.getLong("peers") : 1;
+			batchSize = doc.containsKey("batch") ? (int) doc.getLong("batch") : defaultBatchSize;
+			credit = doc.containsKey("credit") ? (int) doc.getLong("credit") : 1;
+		} catch (ClassCastException e) {
+			query = null;
+			maxPeers = batchSize = credit = 0;
+		}
+		if(query==null || maxPeers<=0 || batchSize<=0 || credit<0) {
+			// results of an earlier query are not sent after this
+			QueryStream previous = queryStreams.remove(client);
+			if(previous!=null) previous.close();
+			client.emit(queryError, "bad streamed query: "+request);
+			return;
+		}
+		QueryStream stream = new QueryStream(client,search(query),maxPeers,
+				Math.min(batchSize,maxBatchSize),credit);
+		QueryStream previous = queryStreams.put(client,stream);
+		if(previous!=null) previous.close();
+		stream.send();
 	}
 	
 	/**
@@ -190,11 +773,69 @@ public class IndexServer {
 	 * @param peerport
 	 */
 	private static void peerUpdate(String peerport) {
-		synchronized(lastTimeSeen) {
-			lastTimeSeen.put(peerport, Instant.now().toEpochMilli());
+		long now=Instant.now().toEpochMilli();
+		// not part way through the peer being forgotten
+		synchronized(lockOf(peerport)) {
+			lastTimeSeen.put(peerport, now);
+			peerRanking.seen(peerport, now);
+			peerExpiry.seen(peerport, now);
+			if(indexStore!=null) indexStore.seen(peerport, now);
 		}
 	}
 	
+	/**
+	 * Keep the index in a directory, putting back what is already there.
+	 * @param dir
+	 * @throws IOException if the directory can't be used
+	 */
+	private static void loadIndex(Path dir) throws IOException {
+		IndexStore store = new IndexStore(dir,new IndexStore.Index() {
+			@Override
+			public void update(String peer,String version,List<String> removes,List<String> adds) {
+				for(String filename : removes) indexRemove(filename,peer);
+				indexUpdate(adds,peer);
+				if(version!=null) peerVersions.put(peer, version);
+			}
+			
+			@Override
+			public void seen(String peer,long seen) {
+				long latest=lastTimeSeen.merge(peer, seen, Math::max);
+				peerRanking.seen(peer, latest);
+				peerExpiry.seen(peer, latest);
+			}
+			
+			@Override
+			public void forget(String peer) {
+				forgetPeer(peer);
+			}
+			
+			@Override
+			public Collection<String> peers() {
+				Set<String> peers=peerRanking.peers();
+				peers.addAll(lastTimeSeen.keySet());
+				peers.addAll(peerVersions.keySet());
+				return peers;
+			}
+			
+			@Override
+			public long seenOf(String peer) {
+				return lastTimeSeen.getOrDefault(peer, 0L);
+			}
+			
+			@Override
+			public String versionOf(String peer) {
+				return peerVersions.get(peer);
+			}
+			
+			@Override
+			public Collection<String> filesOf(String peer) {
+				return peerRanking.filesOf(peer);
+			}
+		});
+		store.load();
+		indexStore=store;
+	}
+	
 	private static void help(Options options){
 		String header = "PB Index Server for Unimelb COMP90015\n\n";
 		String footer = "\ncontact aharwood@unimelb.edu.au for issues.";
@@ -213,6 +854,11 @@ public class IndexServer {
         Options options = new Options();
         options.addOption("port",true,"server port, an integer");
         options.addOption("password",true,"password for server");
+        options.addOption("selectors",true,"number of selector threads to handle clients with, an integer");
+        options.addOption("virtual",false,"use virtual threads to handle clients with, needs Java 21");
+        options.addOption("store",true,"directory to keep the index in, so that it survives a restart");
+        options.addOption("ttl",true,"seconds after a peer was last seen that it is removed from the index, 0 for never");
+        options.addOption("queryCache",true,"most queries to keep the hits of, 0 for none");
         
        
         CommandLineParser parser = new DefaultParser();
@@ -232,15 +878,53 @@ public class IndexServer {
 			}
         }
         
-        // create a server manager and setup event handlers
-        ServerManager serverManager;
+        int selectors=0; // a thread per client by default
+        if(cmd.hasOption("selectors")){
+        	try{
+        		selectors = Integer.parseInt(cmd.getOptionValue("selectors"));
+			} catch (NumberFormatException e){
+				System.out.println("-selectors requires a number of threads, parsed: "+cmd.getOptionValue("selectors"));
+				help(options);
+			}
+        }
+        
+        if(cmd.hasOption("ttl")){
+        	try{
+        		peerTtl = Long.parseLong(cmd.getOptionValue("ttl"))*1000;
+			} catch (NumberFormatException e){
+				System.out.println("-ttl requires a number of seconds, parsed: "+cmd.getOptionValue("ttl"));
+				help(options);
+			}
+        }
+        
+        if(cmd.hasOption("queryCache")){
+        	try{
+        		int capacity = Integer.parseInt(cmd.getOptionValue("queryCache"));
+        		queryCache = capacity>0 ? new QueryCache(capacity) : null;
+			} catch (NumberFormatException e){
+				System.out.println("-queryCache requires a number of queries, parsed: "+cmd.getOptionValue("queryCache"));
+				help(options);
+			}
+        }
         
-        if(cmd.hasOption("password")) {
-        	serverManager = new ServerManager(port,cmd.getOptionValue("password"));
-        } else {
-        	serverManager = new ServerManager(port);
+        if(cmd.hasOption("virtual")) {
+        	Utils.getInstance().enableVirtualThreads();
         }
         
+        if(cmd.hasOption("store")) {
+        	try {
+        		loadIndex(Paths.get(cmd.getOptionValue("store")));
+        	} catch (IOException e) {
+        		System.out.println("-store could not be used: "+e.getMessage());
+        		help(options);
+        	}
+        }
+        
+        scheduleExpiry();
+        
+        // create a server manager and setup event handlers
+        ServerManager serverManager = new ServerManager(port,cmd.getOptionValue("password"),selectors);
+        
         // event handlers
         // we must define the event handler callbacks BEFORE starting
         // the server, so that we don't miss any events.
@@ -255,23 +939,87 @@ public class IndexServer {
         			endpoint.emit(indexUpdateError,update);
         		} else {
 	        		String peerport = parts[0]+":"+parts[1];
-	        		indexUpdate(parts[2],peerport);
+	        		// in order with the peer being forgotten, which would otherwise
+	        		// leave the file in the index for a peer that never expires
+	        		updatedBy(peerport,endpoint);
+	        		synchronized(lockOf(peerport)) {
+	        			if(!lastTimeSeen.containsKey(peerport)) peerUpdate(peerport);
+	        			if(indexUpdate(parts[2],peerport) && indexStore!=null) {
+	        				indexStore.update(peerport,null,Collections.emptyList(),Collections.singletonList(parts[2]));
+	        			}
+	        		}
+        		}
+        	}).on(indexUpdateBatch, (eventArgs2)->{
+        		indexUpdateBatch(eventArgs2[0],endpoint);
+        	}).on(indexSync, (eventArgs2)->{
+        		String peerport = (String) eventArgs2[0];
+        		log.info("Received index sync: "+peerport);
+        		if(!holdPeer(peerport,endpoint)) {
+        			log.warning("Not holding a peer that the session has not updated: "+peerport);
         		}
+        		sendIndexVersion(peerport,peerVersions.get(peerport),endpoint);
         	}).on(queryIndex, (eventArgs2)->{
         		String query = (String) eventArgs2[0];
         		log.info("Received query: "+query);
-        		queryIndex(query,endpoint);
+        		queryIndex(query,endpoint,1);
+        	}).on(queryIndexAll, (eventArgs2)->{
+        		String query = (String) eventArgs2[0];
+        		log.info("Received query for all peers: "+query);
+        		queryIndex(query,endpoint,Integer.MAX_VALUE);
+        	}).on(queryIndexTop, (eventArgs2)->{
+        		String query = (String) eventArgs2[0];
+        		log.info("Received query for top peers: "+query);
+        		String[] parts=query.split(":",2);
+        		int maxPeers=0;
+        		try {
+        			if(parts.length==2) maxPeers=Integer.parseInt(parts[0]);
+        		} catch (NumberFormatException e) {
+        			// not valid, see below
+        		}
+        		if(maxPeers<=0) {
+        			endpoint.emit(queryError, "bad number of peers: "+query);
+        		} else {
+        			queryIndex(parts[1],endpoint,maxPeers);
+        		}
+        	}).on(queryIndexStream, (eventArgs2)->{
+        		String request = (String) eventArgs2[0];
+        		log.info("Received streamed query: "+request);
+        		queryIndexStream(request,endpoint);
+        	}).on(queryCredit, (eventArgs2)->{
+        		String batches = (String) eventArgs2[0];
+        		int granted=-1;
+        		try {
+        			granted=Integer.parseInt(batches);
+        		} catch (NumberFormatException e) {
+        			// not valid, see below
+        		}
+        		QueryStream stream = queryStreams.get(endpoint);
+        		if(granted<0) {
+        			if(stream!=null) stream.close();
+        			endpoint.emit(queryError, "bad query credit: "+batches);
+        		} else if(stream!=null) {
+        			stream.grant(granted);
+        		}
+        	}).on(getStats, (eventArgs2)->{
+        		sendStats(endpoint);
         	}).on(peerUpdate, (eventArgs2)->{
         		String peerport = (String) eventArgs2[0];
         		log.info("Received peer update: "+peerport);
+        		updatedBy(peerport,endpoint);
         		peerUpdate(peerport);
         	});
         }).on(ServerManager.sessionStopped,(eventArgs)->{
         	Endpoint endpoint = (Endpoint)eventArgs[0];
         	log.info("Client session ended: "+endpoint.getOtherEndpointId());
+        	QueryStream stream = queryStreams.get(endpoint);
+        	if(stream!=null) stream.close();
+        	releasePeers(endpoint);
         }).on(ServerManager.sessionError, (eventArgs)->{
         	Endpoint endpoint = (Endpoint)eventArgs[0];
         	log.warning("Client session ended in error: "+endpoint.getOtherEndpointId());
+        	QueryStream stream = queryStreams.get(endpoint);
+        	if(stream!=null) stream.close();
+        	releasePeers(endpoint);
         }).on(IOThread.ioThread, (eventArgs)->{
         	String peerport = (String) eventArgs[0];
         	// we don't need this info, but let's log it
@@ -282,6 +1030,12 @@ public class IndexServer {
         log.info("PB Index Server starting up");
         serverManager.start();
         
+        // virtual threads don't keep the JVM running, so wait here
+        try {
+			serverManager.awaitTermination();
+		} catch (InterruptedException e) {
+			log.warning("interrupted while waiting for the server to terminate");
+		}
     }
 
 }
@@ -168,6 +168,7 @@ public class WhiteboardServer {
         Options options = new Options();
         options.addOption("port",true,"server port, an integer");
         options.addOption("password",true,"password for server");
+        options.addOption("selectors",true,"number of selector threads to handle clients with, an integer");
         
        
         CommandLineParser parser = new DefaultParser();
@@ -187,15 +188,19 @@ public class WhiteboardServer {
 			}
         }
 
-        // create a server manager and setup event handlers
-        ServerManager serverManager;
-        
-        if(cmd.hasOption("password")) {
-        	serverManager = new ServerManager(port,cmd.getOptionValue("password"));
-        } else {
-        	serverManager = new ServerManager(port);
+        int selectors=0; // a thread per client by default
+        if(cmd.hasOption("selectors")){
+        	try{
+        		selectors = Integer.parseInt(cmd.getOptionValue("selectors"));
+			} catch (NumberFormatException e){
+				System.out.println("-selectors requires a number of threads, parsed: "+cmd.getOptionValue("selectors"));
+				help(options);
+			}
         }
         
+        // create a server manager and setup event handlers
+        ServerManager serverManager = new ServerManager(port,cmd.getOptionValue("password"),selectors);
+        
         /**
          * TODO: Put some server related code here.
          */
@@ -244,7 +249,7 @@ public class WhiteboardServer {
         log.info("Whiteboard Server starting up");
         serverManager.start();
         // nothing more for the main thread to do
-        serverManager.join();
+        serverManager.awaitTermination();
         Utils.getInstance().cleanUp();
         
     }
@@ -587,11 +587,11 @@ public class WhiteboardApp {
 	 * @throws InterruptedException 
 	 */
 	public void waitToFinish() throws InterruptedException {
-		peerManager.join();
+		peerManager.awaitTermination();
 		peerManager.joinWithClientManagers();
 		log.info("Peer Manager gracefully closed!");
 		
-		clientManagerServer.join(); 
+		clientManagerServer.awaitTermination(); 
 		log.info("Connection with server closed!");
 	}
 	
@@ -0,0 +1,250 @@
+package pb.fileshare;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import pb.utils.Utils;
+
+/**
+ * A side channel for bulk file data, next to the event session between two
+ * peers. The serving peer offers a range of a file with {@link #offer(Path, long, long)},
+ * which gives a token, and tells the other peer the port and the token over the
+ * session. The other peer connects with {@link #receive(String, int, long, FileChannel, long, long)},
+ * sends the token, and the range is copied from the file straight to the socket
+ * with {@link java.nio.channels.FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+ * and from the socket straight into the target file with
+ * {@link java.nio.channels.FileChannel#transferFrom(java.nio.channels.ReadableByteChannel, long, long)},
+ * so the data never passes through the heap.
+ *
+ * @author aaron
+ *
+ */
+public class DataChannel {
+	private static Logger log = Logger.getLogger(DataChannel.class.getName());
+
+	/**
+	 * Time in ms that an offer remains valid if nobody connects for it.
+	 */
+	public static final int offerTimeout = 60000;
+
+	/**
+	 * Time in ms that a connection has to send its token.
+	 */
+	public static final int tokenTimeout = 10000;
+
+	/**
+	 * Most connections that can be waiting to send their token at once,
+	 * any more are closed straight away.
+	 */
+	public static final int maxWaiting = 64;
+
+	/**
+	 * Most bytes to transfer in one call, so a transfer can be paced.
+	 */
+	private static final long sliceSize = 1024*1024;
+
+	/**
+	 * Most bytes to transfer in one call when the rate is limited.
+	 */
+	private static final long limitedSliceSize = 64*1024;
+
+	/**
+	 * A range of a file that has been offered.
+	 */
+	private static class Offer {
+		final Path file;
+		final long offset;
+		final long length;
+		final RateLimiter limiter;
+
+		Offer(Path file, long offset, long length, RateLimiter limiter) {
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+			this.limiter = limiter;
+		}
+	}
+
+	private static final SecureRandom random = new SecureRandom();
+
+	private final ServerSocketChannel server;
+	private final Map<Long,Offer> offers = new ConcurrentHashMap<>();
+	private final AtomicInteger waiting = new AtomicInteger();
+	private volatile boolean closed = false;
+
+	/**
+	 * Open the channel on any free port and start accepting connections.
+	 * @throws IOException if the server socket can't be opened
+	 */
+	public DataChannel() throws IOException {
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(0));
+		Utils.getInstance().startThread(this::accept, "DataChannel");
+	}
+
+	/**
+	 *
+	 * @return the port that the channel accepts connections on
+	 */
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * Offer a range of a file to whoever connects with the returned token.
+	 * @param file
+	 * @param offset where the range starts
+	 * @param length how many bytes
+	 * @return the token to connect with
+	 */
+	public long offer(Path file, long offset, long length) {
+		return offer(file,offset,length,null);
+	}
+
+	/**
+	 * Offer a range of a file to whoever connects with the returned token,
+	 * sending it no faster than the limiter allows.
+	 * @param file
+	 * @param offset where the range starts
+	 * @param length how many bytes
+	 * @param limiter to limit the rate with, or null to send as fast as possible
+	 * @return the token to connect with
+	 */
+	public long offer(Path file, long offset, long length, RateLimiter limiter) {
+		long token = random.nextLong();
+		offers.put(token, new Offer(file,offset,length,limiter));
+		Utils.getInstance().setTimeout(()->{
+			if(offers.remove(token)!=null) log.warning("data channel offer expired: "+file);
+		}, offerTimeout);
+		return token;
+	}
+
+	/**
+	 * Stop accepting connections and drop the offers that have not been
+	 * claimed, transfers under way are not interrupted.
+	 */
+	public void close() {
+		closed = true;
+		offers.clear();
+		try {
+			server.close();
+		} catch (IOException e) {
+			// nothing more to do
+		}
+	}
+
+	private void accept() {
+		while(!closed) {
+			try {
+				SocketChannel socket = server.accept();
+				if(waiting.incrementAndGet()>maxWaiting) {
+					waiting.decrementAndGet();
+					log.warning("data channel has too many connections waiting for a token");
+					socket.close();
+					continue;
+				}
+				Utils.getInstance().execute(()->serve(socket));
+			} catch (IOException e) {
+				if(!closed) log.warning("data channel stopped accepting: "+e.getMessage());
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Read the token from a connection and send the range that was offered for it.
+	 * The token has to arrive within {@link #tokenTimeout}, so a connection
+	 * that sends nothing does not hold a thread.
+	 * @param socket
+	 */
+	private void serve(SocketChannel socket) {
+		try(socket) {
+			long token;
+			try {
+				// the timeout only applies to reads through the socket's stream
+				socket.socket().setSoTimeout(tokenTimeout);
+				token = new DataInputStream(socket.socket().getInputStream()).readLong();
+			} catch (SocketTimeoutException e) {
+				log.warning("data channel connection did not send a token in time");
+				return;
+			} catch (EOFException e) {
+				return;
+			} finally {
+				waiting.decrementAndGet();
+			}
+			Offer offer = offers.remove(token);
+			if(offer==null) {
+				log.warning("data channel connection with unknown token");
+				return;
+			}
+			try(FileChannel file = FileChannel.open(offer.file, StandardOpenOption.READ)) {
+				long position = offer.offset;
+				long end = offer.offset+offer.length;
+				long slice = offer.limiter!=null ? limitedSliceSize : sliceSize;
+				while(position<end) {
+					if(offer.limiter!=null) {
+						long delay = offer.limiter.delay();
+						if(delay>0) Thread.sleep(delay);
+					}
+					long sent = file.transferTo(position, Math.min(slice,end-position), socket);
+					if(sent<=0) break; // the file is shorter than offered
+					if(offer.limiter!=null) offer.limiter.sent(sent);
+					position += sent;
+				}
+			}
+		} catch (IOException e) {
+			log.warning("data channel transfer failed: "+e.getMessage());
+		} catch (InterruptedException e) {
+			log.warning("data channel transfer interrupted");
+		}
+	}
+
+	/**
+	 * Connect to a data channel and receive an offered range into a file.
+	 * Blocks until the transfer is complete.
+	 * @param host the host of the peer offering the range
+	 * @param port the port of its data channel
+	 * @param token the token of the offer
+	 * @param file the file to write to
+	 * @param position where in the file to write the range
+	 * @param length how many bytes were offered
+	 * @return the number of bytes received, which is less than the length if
+	 * the connection fails part way through
+	 * @throws IOException if the connection fails before any bytes are received
+	 */
+	public static long receive(String host, int port, long token, FileChannel file,
+			long position, long length) throws IOException {
+		try(SocketChannel socket = SocketChannel.open(new InetSocketAddress(host,port))) {
+			ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES).putLong(token);
+			buffer.flip();
+			while(buffer.hasRemaining()) socket.write(buffer);
+			long received = 0;
+			try {
+				while(received<length) {
+					long n = file.transferFrom(socket, position+received, Math.min(sliceSize,length-received));
+					if(n<=0) break; // the other side closed the connection
+					received += n;
+				}
+			} catch (IOException e) {
+				// keep what is already in the file, so the rest can be asked for again
+				if(received==0) throw e;
+				log.warning("data channel failed after "+received+" bytes: "+e.getMessage());
+			}
+			return received;
+		}
+	}
+}
@@ -0,0 +1,531 @@
+package pb.fileshare;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import pb.protocols.Document;
+import pb.protocols.ICallback;
+
+/**
+ * A file being downloaded from one or more peers. The file is split into
+ * pieces that the sources take one at a time, so a faster source ends up
+ * downloading more of the file, and a piece that a source fails to download
+ * is put back for another source to take. Pieces are written into the
+ * file, which is preallocated to its full length, with positional writes so
+ * that the sources don't need to coordinate.
+ * <br/>
+ * The ranges of the file that have been received are recorded in a checkpoint
+ * file next to it, named with {@link #checkpointSuffix}, whenever a piece is
+ * done or given up on. A download of the same file that finds the checkpoint
+ * only takes the ranges that are still missing, so a download that was cut
+ * off carries on from where it stopped rather than starting again. The
+ * checkpoint is removed when the download is complete.
+ * <br/>
+ * If the sources give a {@link pb.fileshare.Manifest} of the file then each
+ * chunk of it is checked as soon as all of it has been received, and a chunk
+ * that doesn't match is downloaded again. Chunks that are already in a file
+ * at the path, e.g. from an older version of the file, are checked up front
+ * and are not downloaded at all.
+ *
+ * @author aaron
+ *
+ */
+public class Download {
+	private static Logger log = Logger.getLogger(Download.class.getName());
+
+	/**
+	 * Size of a piece, that a source downloads in one go.
+	 */
+	public static final long pieceSize = 4*1024*1024;
+
+	/**
+	 * Added to the name of the file to name its checkpoint.
+	 */
+	public static final String checkpointSuffix = ".part";
+
+	/**
+	 * Most times to download a chunk that doesn't match the manifest before
+	 * giving up on the download.
+	 */
+	public static final int maxAttempts = 3;
+
+	/**
+	 * A range of the file.
+	 */
+	public static class Piece {
+		public final long offset;
+		public final long length;
+
+		Piece(long offset, long length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private final Path path;
+	private final Path checkpoint;
+	private FileChannel out = null;
+	private long length = -1;
+	private final Deque<Piece> pending = new ArrayDeque<>();
+	private int outstanding = 0;
+	private boolean complete = false;
+	private boolean closed = false;
+
+	/**
+	 * Sources waiting for a piece to become available.
+	 */
+	private final List<ICallback> idle = new ArrayList<>();
+
+	/**
+	 * The ranges that have been received, from their offset to their end,
+	 * with adjacent ranges merged.
+	 */
+	private final TreeMap<Long,Long> received = new TreeMap<>();
+
+	/**
+	 * The manifest to check chunks with, or null if there is none.
+	 */
+	private Manifest manifest = null;
+
+	/**
+	 * Chunks that match the manifest, and chunks that are being checked.
+	 */
+	private final BitSet verified = new BitSet();
+	private final BitSet checking = new BitSet();
+
+	/**
+	 * How many times each chunk has not matched the manifest.
+	 */
+	private final Map<Integer,Integer> mismatches = new HashMap<>();
+
+	/**
+	 * Initialise the download of a file, which is not created until its
+	 * length is known.
+	 * @param path where to save the file
+	 */
+	public Download(Path path) {
+		this.path = path;
+		checkpoint = path.resolveSibling(path.getFileName()+checkpointSuffix);
+	}
+
+	/**
+	 *
+	 * @return where the file is saved
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * Set the length of the file, as given by a source, and create the file,
+	 * or carry on with it if there is a checkpoint for a file of this length.
+	 * Only the first call creates the file, later calls check that the other
+	 * sources agree on the length.
+	 * @param length
+	 * @return true if the length is the same as that given by any other source
+	 * @throws IOException if the file could not be created
+	 */
+	public boolean start(long length) throws IOException {
+		return start(length,null);
+	}
+
+	/**
+	 * Set the length and manifest of the file, as given by a source, and
+	 * create the file, or carry on with it. Only the first call creates the
+	 * file, later calls check that the other sources agree on the file.
+	 * @param length
+	 * @param manifest the manifest of the file, or null if the source didn't
+	 * give one
+	 * @return true if the file is the same as that given by any other source
+	 * @throws IOException if the file could not be created
+	 */
+	public synchronized boolean start(long length, Manifest manifest) throws IOException {
+		if(manifest!=null && manifest.getLength()!=length) return false;
+		if(this.length>=0) {
+			return this.length==length && (this.manifest==null || manifest==null ||
+					this.manifest.sameContent(manifest));
+		}
+		if(closed) return false;
+		boolean resumed = resume(length);
+		if(!resumed) {
+			received.clear();
+			Files.deleteIfExists(checkpoint);
+		}
+		boolean existed = Files.exists(path);
+		try(RandomAccessFile file = new RandomAccessFile(path.toFile(),"rw")) {
+			file.setLength(length);
+		}
+		out = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.length = length;
+		this.manifest = manifest;
+		if(manifest!=null && existed) checkExisting(resumed);
+		long offset = 0;
+		for(Map.Entry<Long,Long> range : received.entrySet()) {
+			addPieces(offset,range.getKey());
+			offset = range.getValue();
+		}
+		addPieces(offset,length);
+		if(pending.isEmpty()) finish();
+		return true;
+	}
+
+	/**
+	 * Read the ranges received by an earlier download of the file.
+	 * @param length the length of the file
+	 * @return true if there is a checkpoint for the file, with this length
+	 */
+	private boolean resume(long length) {
+		if(!Files.exists(checkpoint) || !Files.exists(path)) return false;
+		try {
+			if(Files.size(path)!=length) return false;
+			Document doc = Document.parse(new String(Files.readAllBytes(checkpoint),
+					StandardCharsets.UTF_8));
+			if(!doc.containsKey("length") || doc.getLong("length")!=length) return false;
+			@SuppressWarnings("unchecked")
+			List<Object> ranges = (List<Object>) doc.get("received");
+			if(ranges==null) return false;
+			for(Object o : ranges) {
+				Document range = (Document) o;
+				long offset = range.getLong("offset");
+				long end = offset+range.getLong("length");
+				if(offset<0 || end>length || offset>=end) return false;
+				addReceived(offset,end);
+			}
+		} catch (IOException | ClassCastException | NullPointerException e) {
+			log.warning("ignoring bad checkpoint "+checkpoint+": "+e.getMessage());
+			return false;
+		}
+		log.info("resuming download of "+path+" from checkpoint");
+		return true;
+	}
+
+	/**
+	 * Check the chunks that are already in the file against the manifest.
+	 * @param resumed true to only check the chunks that the checkpoint says
+	 * were received, otherwise all of them are checked
+	 * @throws IOException
+	 */
+	private void checkExisting(boolean resumed) throws IOException {
+		long size = manifest.getChunkSize();
+		int found = 0;
+		for(int chunk=0;chunk<manifest.getChunks();chunk++) {
+			long offset = chunk*size;
+			long end = Math.min(offset+size,length);
+			if(resumed && !isReceived(offset,end)) continue;
+			if(manifest.check(out,chunk)) {
+				addReceived(offset,end);
+				verified.set(chunk);
+				found++;
+			} else {
+				removeReceived(offset,end);
+			}
+		}
+		log.info("already have "+found+" of "+manifest.getChunks()+" chunks of "+path);
+	}
+
+	/**
+	 * Add pieces for a range, split so that pieces don't cross a multiple of
+	 * {@link #pieceSize}, so that each is a chunk of the manifest.
+	 * @param offset
+	 * @param end
+	 */
+	private void addPieces(long offset, long end) {
+		while(offset<end) {
+			long next = Math.min(end,(offset/pieceSize+1)*pieceSize);
+			pending.add(new Piece(offset,next-offset));
+			offset = next;
+		}
+	}
+
+	/**
+	 *
+	 * @param offset
+	 * @param end
+	 * @return true if all of the range has been received
+	 */
+	private boolean isReceived(long offset, long end) {
+		Map.Entry<Long,Long> range = received.floorEntry(offset);
+		return range!=null && range.getValue()>=end;
+	}
+
+	/**
+	 * Record a range as received, merging it with its neighbours.
+	 * @param offset
+	 * @param end
+	 */
+	private void addReceived(long offset, long end) {
+		Map.Entry<Long,Long> before = received.floorEntry(offset);
+		if(before!=null && before.getValue()>=offset) {
+			offset = before.getKey();
+			end = Math.max(end,before.getValue());
+		}
+		Map.Entry<Long,Long> after;
+		while((after=received.ceilingEntry(offset))!=null && after.getKey()<=end) {
+			end = Math.max(end,after.getValue());
+			received.remove(after.getKey());
+		}
+		received.put(offset,end);
+	}
+
+	/**
+	 * Record a range as not received, splitting the ranges around it.
+	 * @param offset
+	 * @param end
+	 */
+	private void removeReceived(long offset, long end) {
+		Map.Entry<Long,Long> before = received.lowerEntry(offset);
+		if(before!=null && before.getValue()>offset) {
+			received.put(before.getKey(),offset);
+			if(before.getValue()>end) received.put(end,before.getValue());
+		}
+		Map.Entry<Long,Long> after;
+		while((after=received.ceilingEntry(offset))!=null && after.getKey()<end) {
+			received.remove(after.getKey());
+			if(after.getValue()>end) received.put(end,after.getValue());
+		}
+	}
+
+	/**
+	 * Write the received ranges to the checkpoint, after making sure that
+	 * they are in the file. The checkpoint is replaced in one go, so it is
+	 * never left half written.
+	 */
+	private void saveCheckpoint() {
+		if(out==null) return;
+		ArrayList<Document> ranges = new ArrayList<>();
+		for(Map.Entry<Long,Long> range : received.entrySet()) {
+			Document doc = new Document();
+			doc.append("offset", range.getKey());
+			doc.append("length", range.getValue()-range.getKey());
+			ranges.add(doc);
+		}
+		Document doc = new Document();
+		doc.append("length", length);
+		doc.append("received", ranges);
+		Path temp = checkpoint.resolveSibling(checkpoint.getFileName()+".tmp");
+		try {
+			out.force(false);
+			Files.write(temp, doc.toJson().getBytes(StandardCharsets.UTF_8));
+			Files.move(temp, checkpoint, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			log.warning("could not save checkpoint "+checkpoint+": "+e.getMessage());
+		}
+	}
+
+	/**
+	 *
+	 * @return the length of the file, or -1 if it is not known yet
+	 */
+	public synchronized long getLength() {
+		return length;
+	}
+
+	/**
+	 * Take the next piece to download.
+	 * @param whenAvailable called if there is no piece to take now but a
+	 * piece may become available later, because another source failed
+	 * @return the piece, or null if there is none to take now
+	 */
+	public synchronized Piece take(ICallback whenAvailable) {
+		Piece piece = pending.poll();
+		if(piece!=null) {
+			outstanding++;
+		} else if(!complete && !closed) {
+			idle.add(whenAvailable);
+		}
+		return piece;
+	}
+
+	/**
+	 * Write bytes of the file, at the given position.
+	 * @param position
+	 * @param bytes
+	 * @throws IOException
+	 */
+	public void write(long position, ByteBuffer bytes) throws IOException {
+		FileChannel channel;
+		synchronized(this) {
+			channel = out;
+		}
+		if(channel==null) throw new IOException("download is not started");
+		while(bytes.hasRemaining()) {
+			position += channel.write(bytes, position);
+		}
+	}
+
+	/**
+	 *
+	 * @return the file to write to, e.g. with a data channel, or null if the
+	 * download has not started
+	 */
+	public synchronized FileChannel getChannel() {
+		return out;
+	}
+
+	/**
+	 * A piece has been downloaded.
+	 * @param piece
+	 * @return true if this completed the download
+	 */
+	public boolean done(Piece piece) {
+		return finished(piece,piece.length);
+	}
+
+	/**
+	 * A source failed to download a piece, so put it back for another
+	 * source to take, and wake up any sources that are waiting.
+	 * @param piece
+	 */
+	public void failed(Piece piece) {
+		finished(piece,0);
+	}
+
+	/**
+	 * A source failed to download all of a piece, so put back the rest of it
+	 * for another source to take, and wake up any sources that are waiting.
+	 * @param piece
+	 * @param receivedBytes how many bytes from the start of the piece were
+	 * written to the file
+	 */
+	public void failed(Piece piece, long receivedBytes) {
+		finished(piece,receivedBytes);
+	}
+
+	/**
+	 * A source has finished with a piece. Any chunks of the manifest that
+	 * are now all received are checked, without holding up the other
+	 * sources, and those that don't match are put back to download again.
+	 * @param piece
+	 * @param receivedBytes how many bytes from the start of the piece were
+	 * written to the file
+	 * @return true if this completed the download
+	 */
+	private boolean finished(Piece piece, long receivedBytes) {
+		long done = Math.max(0,Math.min(receivedBytes,piece.length));
+		List<Integer> toCheck = new ArrayList<>();
+		Manifest manifest;
+		FileChannel channel;
+		synchronized(this) {
+			if(done>0) addReceived(piece.offset,piece.offset+done);
+			if(done<piece.length) pending.addFirst(new Piece(piece.offset+done,piece.length-done));
+			manifest = this.manifest;
+			channel = out;
+			if(manifest!=null && done>0) {
+				long size = manifest.getChunkSize();
+				for(int chunk=(int)(piece.offset/size);chunk*size<piece.offset+done;chunk++) {
+					long offset = chunk*size;
+					if(verified.get(chunk) || checking.get(chunk) ||
+							!isReceived(offset,Math.min(offset+size,length))) continue;
+					checking.set(chunk);
+					toCheck.add(chunk);
+				}
+			}
+		}
+		List<Integer> bad = new ArrayList<>();
+		for(int chunk : toCheck) {
+			try {
+				if(!manifest.check(channel,chunk)) bad.add(chunk);
+			} catch (IOException e) {
+				bad.add(chunk);
+			}
+		}
+		List<ICallback> waiting = new ArrayList<>();
+		boolean completed = false;
+		synchronized(this) {
+			outstanding--;
+			for(int chunk : toCheck) {
+				checking.clear(chunk);
+				if(!bad.contains(chunk)) verified.set(chunk);
+			}
+			boolean giveUp = false;
+			for(int chunk : bad) {
+				long offset = chunk*manifest.getChunkSize();
+				long end = Math.min(offset+manifest.getChunkSize(),length);
+				int attempts = mismatches.merge(chunk,1,Integer::sum);
+				log.warning("chunk "+chunk+" of "+path+" does not match the manifest, attempt "+attempts);
+				if(attempts>=maxAttempts) giveUp = true;
+				removeReceived(offset,end);
+				addPieces(offset,end);
+			}
+			if(giveUp || closed) {
+				if(giveUp) log.severe("giving up on "+path+", a chunk keeps not matching the manifest");
+				// wake the sources so that they see it has been given up on
+				waiting.addAll(idle);
+				close();
+			} else if(outstanding==0 && pending.isEmpty() && !complete) {
+				finish();
+				completed = true;
+			} else {
+				saveCheckpoint();
+				if(!pending.isEmpty()) {
+					waiting.addAll(idle);
+					idle.clear();
+				}
+			}
+		}
+		waiting.forEach(ICallback::callback);
+		return completed;
+	}
+
+	/**
+	 *
+	 * @return true if the whole file has been downloaded
+	 */
+	public synchronized boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 *
+	 * @return true if the download is complete or has been given up on
+	 */
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	private void finish() {
+		complete = true;
+		idle.clear();
+		close();
+		try {
+			Files.deleteIfExists(checkpoint);
+		} catch (IOException e) {
+			log.warning("could not remove checkpoint "+checkpoint+": "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Close the file, whether or not the download is complete. An incomplete
+	 * download leaves its checkpoint, so that it can be carried on later.
+	 */
+	public synchronized void close() {
+		if(closed) return;
+		closed = true;
+		idle.clear();
+		if(out!=null) {
+			if(!complete) saveCheckpoint();
+			try {
+				out.close();
+			} catch (IOException e) {
+				// nothing more to do
+			}
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package pb.fileshare;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import pb.protocols.Document;
+
+/**
+ * The SHA-256 hashes of the chunks of a file, so that a downloading peer can
+ * check each chunk it receives, and find the chunks that it already has. A
+ * manifest is worked out once per version of a file: it is kept in memory and
+ * in a file in the manifest directory, see {@link #setDirectory(Path)}, named
+ * with the hash of the path of the file and {@link #manifestSuffix}, and is
+ * only worked out again if the length or the last modified time of the file
+ * changes.
+ *
+ * @author aaron
+ *
+ */
+public class Manifest {
+	private static Logger log = Logger.getLogger(Manifest.class.getName());
+
+	/**
+	 * Size of a chunk that is hashed, the same as a piece of a download so
+	 * that a piece can be checked as soon as it is done.
+	 */
+	public static final long chunkSize = Download.pieceSize;
+
+	/**
+	 * Added to the name of a file to name its manifest.
+	 */
+	public static final String manifestSuffix = ".manifest";
+
+	/**
+	 * Default directory to keep manifests in.
+	 */
+	public static final Path defaultDirectory = Paths.get(System.getProperty("user.home"),".pb","manifests");
+
+	/**
+	 * Directory that manifests are kept in, or null to keep them only in memory.
+	 */
+	private static volatile Path directory = defaultDirectory;
+
+	/**
+	 * Size of the buffer used to read a chunk.
+	 */
+	private static final int bufferSize = 64*1024;
+
+	/**
+	 * Manifests that have been worked out or read, by file.
+	 */
+	private static final Map<Path,Manifest> cache = new ConcurrentHashMap<>();
+
+	private final long length;
+	private final long modified;
+	private final long size;
+	private final List<String> hashes;
+
+	private Manifest(long length, long modified, long size, List<String> hashes) {
+		this.length = length;
+		this.modified = modified;
+		this.size = size;
+		this.hashes = hashes;
+	}
+
+	/**
+	 * Set the directory to keep manifests in, which is created when the first
+	 * manifest is kept.
+	 * @param dir the directory, or null to keep manifests only in memory
+	 */
+	public static void setDirectory(Path dir) {
+		directory = dir;
+	}
+
+	/**
+	 * Get the manifest of a file, working it out if the file has changed
+	 * since it was last worked out.
+	 * @param file
+	 * @return the manifest
+	 * @throws IOException if the file can't be read
+	 */
+	public static Manifest of(Path file) throws IOException {
+		Path key = file.toAbsolutePath().normalize();
+		long length = Files.size(key);
+		long modified = Files.getLastModifiedTime(key).toMillis();
+		Manifest manifest = cache.get(key);
+		if(manifest!=null && manifest.isFor(length,modified)) return manifest;
+		Path dir = directory;
+		Path saved = dir!=null ? dir.resolve(DigestUtils.sha256Hex(key.toString())+manifestSuffix) : null;
+		manifest = saved!=null ? read(saved) : null;
+		if(manifest==null || !manifest.isFor(length,modified)) {
+			log.info("working out the manifest of "+key);
+			manifest = create(key,length,modified);
+			if(saved!=null) {
+				try {
+					Files.createDirectories(dir);
+					Files.write(saved, manifest.toDocument().toJson().getBytes(StandardCharsets.UTF_8));
+				} catch (IOException e) {
+					log.warning("could not save manifest "+saved+": "+e.getMessage());
+				}
+			}
+		}
+		cache.put(key,manifest);
+		return manifest;
+	}
+
+	private boolean isFor(long length, long modified) {
+		return this.length==length && this.modified==modified && size==chunkSize;
+	}
+
+	private static Manifest read(Path saved) {
+		if(!Files.exists(saved)) return null;
+		try {
+			Document doc = Document.parse(new String(Files.readAllBytes(saved),StandardCharsets.UTF_8));
+			if(!doc.containsKey("modified")) return null;
+			Manifest manifest = fromDocument(doc);
+			return manifest!=null ? new Manifest(manifest.length,doc.getLong("modified"),
+					manifest.size,manifest.hashes) : null;
+		} catch (IOException | ClassCastException e) {
+			log.warning("ignoring bad manifest "+saved+": "+e.getMessage());
+			return null;
+		}
+	}
+
+	private static Manifest create(Path file, long length, long modified) throws IOException {
+		List<String> hashes = new ArrayList<>();
+		try(FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+			for(long offset=0;offset<length;offset+=chunkSize) {
+				hashes.add(hash(in,offset,Math.min(chunkSize,length-offset)));
+			}
+		}
+		return new Manifest(length,modified,chunkSize,hashes);
+	}
+
+	/**
+	 * Hash a range of a file.
+	 * @param file
+	 * @param offset
+	 * @param length
+	 * @return the SHA-256 hash of the range in hex
+	 * @throws IOException if the range can't be read
+	 */
+	public static String hash(FileChannel file, long offset, long length) throws IOException {
+		MessageDigest digest = DigestUtils.getSha256Digest();
+		ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+		long end = offset+length;
+		while(offset<end) {
+			buffer.clear();
+			buffer.limit((int)Math.min(bufferSize,end-offset));
+			int n = file.read(buffer, offset);
+			if(n<0) throw new IOException("file is shorter than expected");
+			buffer.flip();
+			DigestUtils.updateDigest(digest, buffer);
+			offset += n;
+		}
+		return Hex.encodeHexString(digest.digest());
+	}
+
+	/**
+	 *
+	 * @return the length of the file
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 *
+	 * @return the size of a chunk, the last chunk may be shorter
+	 */
+	public long getChunkSize() {
+		return size;
+	}
+
+	/**
+	 *
+	 * @return the number of chunks
+	 */
+	public int getChunks() {
+		return hashes.size();
+	}
+
+	/**
+	 * Check whether a chunk of a file is as it should be.
+	 * @param file
+	 * @param chunk the index of the chunk
+	 * @return true if the chunk in the file has the hash in the manifest
+	 * @throws IOException if the chunk can't be read
+	 */
+	public boolean check(FileChannel file, int chunk) throws IOException {
+		long offset = chunk*size;
+		return hashes.get(chunk).equals(hash(file,offset,Math.min(size,length-offset)));
+	}
+
+	/**
+	 *
+	 * @param other
+	 * @return true if the other manifest is of the same content
+	 */
+	public boolean sameContent(Manifest other) {
+		return length==other.length && size==other.size && hashes.equals(other.hashes);
+	}
+
+	/**
+	 *
+	 * @return the manifest as a document, to send to another peer
+	 */
+	public Document toDocument() {
+		Document doc = new Document();
+		doc.append("length", length);
+		doc.append("modified", modified);
+		doc.append("chunkSize", size);
+		doc.append("hashes", new ArrayList<>(hashes));
+		return doc;
+	}
+
+	/**
+	 * Read a manifest sent by another peer.
+	 * @param doc
+	 * @return the manifest, or null if the document isn't a consistent manifest
+	 */
+	public static Manifest fromDocument(Document doc) {
+		if(!doc.containsKey("length") || !doc.containsKey("chunkSize") || !doc.containsKey("hashes")) {
+			return null;
+		}
+		long length = doc.getLong("length");
+		long size = doc.getLong("chunkSize");
+		List<String> hashes = new ArrayList<>();
+		for(Object hash : (List<?>) doc.get("hashes")) {
+			if(!(hash instanceof String)) return null;
+			hashes.add((String) hash);
+		}
+		if(length<0 || size<=0 || hashes.size()!=(length+size-1)/size) return null;
+		return new Manifest(length,0,size,hashes);
+	}
+}
@@ -0,0 +1,168 @@
+package pb.fileshare;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Shared files mapped into memory, so that any number of uploads of a file
+ * read it through a single mapping rather than each opening the file and
+ * reading it into a buffer of its own. Each upload holds a {@link Handle}
+ * on the mapping while it uses it. When the mapped files add up to more than
+ * the limit, the least recently used mappings that no upload holds are
+ * dropped; the memory is given back when the mapping is garbage collected.
+ * A file that has changed since it was mapped is mapped again.
+ *
+ * @author aaron
+ *
+ */
+public class MappedFiles {
+	private static Logger log = Logger.getLogger(MappedFiles.class.getName());
+
+	/**
+	 * Default most bytes to keep mapped.
+	 */
+	public static final long defaultLimit = 1024L*1024*1024;
+
+	/**
+	 * A mapping of a file.
+	 */
+	private static class Mapping {
+		final Path path;
+		final long size;
+		final long modified;
+		final MappedByteBuffer buffer;
+		int handles = 0;
+
+		Mapping(Path path, long size, long modified, MappedByteBuffer buffer) {
+			this.path = path;
+			this.size = size;
+			this.modified = modified;
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 * A hold on a mapped file, that must be closed when it is no longer used.
+	 */
+	public class Handle implements AutoCloseable {
+		private final Mapping mapping;
+		private boolean closed = false;
+
+		private Handle(Mapping mapping) {
+			this.mapping = mapping;
+		}
+
+		/**
+		 *
+		 * @return the size of the file
+		 */
+		public long size() {
+			return mapping.size;
+		}
+
+		/**
+		 * Get a range of the file, without copying it.
+		 * @param offset
+		 * @param length
+		 * @return a read only buffer of the range
+		 */
+		public ByteBuffer slice(long offset, int length) {
+			ByteBuffer slice = mapping.buffer.asReadOnlyBuffer();
+			slice.position((int) offset);
+			slice.limit((int) offset+length);
+			return slice.slice();
+		}
+
+		@Override
+		public void close() {
+			synchronized(MappedFiles.this) {
+				if(closed) return;
+				closed = true;
+				mapping.handles--;
+				evict();
+			}
+		}
+	}
+
+	private final long limit;
+
+	/**
+	 * Mappings by file, in order of least recently used first.
+	 */
+	private final LinkedHashMap<Path,Mapping> mappings = new LinkedHashMap<>(16,0.75f,true);
+
+	/**
+	 * Bytes of the mappings in {@link #mappings}.
+	 */
+	private long mapped = 0;
+
+	/**
+	 * Initialise with the default limit.
+	 */
+	public MappedFiles() {
+		this(defaultLimit);
+	}
+
+	/**
+	 * Initialise.
+	 * @param limit most bytes to keep mapped
+	 */
+	public MappedFiles(long limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * Get a hold on the mapping of a file, mapping it if needed.
+	 * @param file
+	 * @return the handle, or null if the file is empty or too large to map,
+	 * in which case it must be read some other way
+	 * @throws IOException if the file can't be read
+	 */
+	public synchronized Handle open(Path file) throws IOException {
+		Path key = file.toAbsolutePath().normalize();
+		long size = Files.size(key);
+		long modified = Files.getLastModifiedTime(key).toMillis();
+		Mapping mapping = mappings.get(key);
+		if(mapping!=null && (mapping.size!=size || mapping.modified!=modified)) {
+			// changed, uploads that hold the old mapping carry on with it
+			mappings.remove(key);
+			mapped -= mapping.size;
+			mapping = null;
+		}
+		if(mapping==null) {
+			if(size==0 || size>Integer.MAX_VALUE || size>limit) return null;
+			try(FileChannel in = FileChannel.open(key, StandardOpenOption.READ)) {
+				mapping = new Mapping(key,size,modified,in.map(FileChannel.MapMode.READ_ONLY,0,size));
+			}
+			mappings.put(key,mapping);
+			mapped += size;
+			log.info("mapped "+key+", "+mapped+" bytes mapped");
+		}
+		mapping.handles++;
+		evict();
+		return new Handle(mapping);
+	}
+
+	/**
+	 * Drop the least recently used mappings that no upload holds, until the
+	 * mappings are within the limit.
+	 */
+	private void evict() {
+		Iterator<Mapping> it = mappings.values().iterator();
+		while(mapped>limit && it.hasNext()) {
+			Mapping mapping = it.next();
+			if(mapping.handles>0) continue;
+			it.remove();
+			mapped -= mapping.size;
+			log.info("unmapped "+mapping.path);
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package pb.fileshare;
+
+/**
+ * Limits the rate that bytes are sent at. Each send pushes back the time
+ * that the next send is allowed, by the time that the bytes would take at
+ * the given rate.
+ *
+ * @author aaron
+ *
+ */
+public class RateLimiter {
+
+	private final double nanosPerByte;
+
+	/**
+	 * Time, in {@link System#nanoTime()}, from when the next send is allowed.
+	 */
+	private long next = System.nanoTime();
+
+	/**
+	 * Initialise with the rate to limit to.
+	 * @param bytesPerSecond
+	 */
+	public RateLimiter(long bytesPerSecond) {
+		nanosPerByte = 1e9/Math.max(1,bytesPerSecond);
+	}
+
+	/**
+	 *
+	 * @return the time in ms to wait before sending, 0 to send now
+	 */
+	public synchronized long delay() {
+		long wait = next-System.nanoTime();
+		return wait>0 ? (wait+999999)/1000000 : 0;
+	}
+
+	/**
+	 * Account for bytes that have been sent.
+	 * @param bytes
+	 */
+	public synchronized void sent(long bytes) {
+		long now = System.nanoTime();
+		if(next<now) next = now;
+		next += (long)(bytes*nanosPerByte);
+	}
+}
@@ -0,0 +1,255 @@
+package pb.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * An index of filenames for finding those that contain a term, ignoring
+ * case, as used by {@link pb.IndexServer}. Each filename is given an id, and
+ * each trigram (three characters in a row) of the lower case filename has a
+ * list of the ids of the filenames that contain it. The filenames that
+ * contain a term are found by intersecting the lists of the trigrams of the
+ * term, and then checking that the few candidates that are left really do
+ * contain it, so the time for a search depends on how many filenames come
+ * close to matching rather than on how many filenames there are. Terms that
+ * are too short to have a trigram are matched against every filename.
+ * <br/>
+ * Ids are handed out in increasing order, so the lists are sorted just by
+ * appending to them and adding a filename is cheap.
+ * <br/>
+ * Thread safe. Filenames are added one at a time, while searches take no
+ * lock: arrays are only ever appended to, and an array or the number of
+ * elements in it is published through a volatile field after the elements
+ * have been written, so a search sees a consistent prefix of the index.
+ * Filenames are not removed one at a time; instead the index is built again
+ * with just the filenames to keep, see {@link #retain(Predicate)}, and
+ * searches that are under way carry on with the old one.
+ *
+ * @author aaron
+ *
+ */
+public class FilenameIndex {
+
+	/**
+	 * Length of a gram.
+	 */
+	private static final int gramLength = 3;
+
+	/**
+	 * A growable list of ids, in increasing order. Only added to by one
+	 * thread at a time.
+	 */
+	private static class Postings {
+		volatile int[] ids = new int[4];
+		volatile int size = 0;
+
+		void add(int id) {
+			int[] current = ids;
+			if(size==current.length) {
+				current = Arrays.copyOf(current,size*2);
+				current[size] = id;
+				ids = current;
+			} else {
+				current[size] = id;
+			}
+			size = size+1;
+		}
+	}
+
+	/**
+	 * The ids in a list at some moment, which stay valid as more are added.
+	 */
+	private static class Snapshot {
+		final int size;
+		final int[] ids;
+
+		Snapshot(Postings postings) {
+			// size first, then the array, which then holds at least that many ids
+			size = postings.size;
+			ids = postings.ids;
+		}
+	}
+
+	/**
+	 * A filename and its lower case version to match terms against.
+	 */
+	private static class Name {
+		final String name;
+		final String lower;
+
+		Name(String name, String lower) {
+			this.name = name;
+			this.lower = lower;
+		}
+	}
+
+	/**
+	 * The filenames in the index and the lists of their grams.
+	 */
+	private static class State {
+		/**
+		 * Filenames by id, of which the first {@link #count} are in use.
+		 */
+		volatile Name[] names = new Name[1024];
+		volatile int count = 0;
+
+		/**
+		 * Id by filename.
+		 */
+		final Map<String,Integer> ids = new ConcurrentHashMap<>();
+
+		/**
+		 * Ids of the filenames that contain each gram.
+		 */
+		final Map<Long,Postings> grams = new ConcurrentHashMap<>();
+
+		boolean add(String filename) {
+			if(ids.containsKey(filename)) return false;
+			int id = count;
+			String lower = filename.toLowerCase();
+			Name[] current = names;
+			if(id==current.length) current = Arrays.copyOf(current,id*2);
+			current[id] = new Name(filename,lower);
+			names = current;
+			count = id+1;
+			for(int i=0;i+gramLength<=lower.length();i++) {
+				Postings postings = grams.computeIfAbsent(gram(lower,i),(k)->new Postings());
+				// a gram that appears twice in a filename is only listed once
+				if(postings.size==0 || postings.ids[postings.size-1]!=id) postings.add(id);
+			}
+			ids.put(filename,id);
+			return true;
+		}
+	}
+
+	private volatile State state = new State();
+
+	/**
+	 * Add a filename to the index, if it is not already in it.
+	 * @param filename
+	 * @return true if it was added
+	 */
+	public synchronized boolean add(String filename) {
+		return state.add(filename);
+	}
+
+	/**
+	 * Add filenames to the index, in one go.
+	 * @param filenames
+	 * @return the number of filenames that were added
+	 */
+	public synchronized int addAll(Collection<String> filenames) {
+		State current = state;
+		int added = 0;
+		for(String filename : filenames) {
+			if(current.add(filename)) added++;
+		}
+		return added;
+	}
+
+	/**
+	 * Build the index again with only some of its filenames.
+	 * @param keep whether to keep a filename
+	 * @return the number of filenames that were dropped
+	 */
+	public synchronized int retain(Predicate<String> keep) {
+		State old = state;
+		State fresh = new State();
+		for(int id=0;id<old.count;id++) {
+			String filename = old.names[id].name;
+			if(keep.test(filename)) fresh.add(filename);
+		}
+		state = fresh;
+		return old.count-fresh.count;
+	}
+
+	/**
+	 *
+	 * @param filename
+	 * @return true if the filename is in the index
+	 */
+	public boolean contains(String filename) {
+		return state.ids.containsKey(filename);
+	}
+
+	/**
+	 *
+	 * @return the number of filenames in the index
+	 */
+	public int size() {
+		return state.ids.size();
+	}
+
+	/**
+	 * Find the filenames that contain a term, ignoring case.
+	 * @param term
+	 * @param hits where to add the filenames to
+	 */
+	public void search(String term, Collection<String> hits) {
+		String lower = term.toLowerCase();
+		State s = state;
+		if(lower.length()<gramLength) {
+			int n = s.count;
+			Name[] current = s.names;
+			for(int id=0;id<n;id++) {
+				if(current[id].lower.contains(lower)) hits.add(current[id].name);
+			}
+			return;
+		}
+		List<Postings> lists = new ArrayList<>();
+		for(int i=0;i+gramLength<=lower.length();i++) {
+			Postings postings = s.grams.get(gram(lower,i));
+			if(postings==null) return; // no filename has this gram
+			lists.add(postings);
+		}
+		List<Snapshot> snapshots = new ArrayList<>(lists.size());
+		for(Postings postings : lists) snapshots.add(new Snapshot(postings));
+		// start with the shortest list, so there is as little as possible to intersect
+		snapshots.sort((a,b)->Integer.compare(a.size,b.size));
+		int[] candidates = Arrays.copyOf(snapshots.get(0).ids,snapshots.get(0).size);
+		int size = candidates.length;
+		for(int l=1;l<snapshots.size() && size>0;l++) {
+			size = intersect(candidates,size,snapshots.get(l));
+		}
+		Name[] current = s.names;
+		for(int i=0;i<size;i++) {
+			// the grams may be in the filename but not in the right order
+			Name name = current[candidates[i]];
+			if(name.lower.contains(lower)) hits.add(name.name);
+		}
+	}
+
+	/**
+	 * Keep only the candidates that are also in another list.
+	 * @param candidates sorted ids
+	 * @param size how many of the candidates are valid
+	 * @param list
+	 * @return how many candidates are left, at the start of the array
+	 */
+	private static int intersect(int[] candidates, int size, Snapshot list) {
+		int[] ids = list.ids;
+		int kept = 0;
+		int j = 0;
+		for(int i=0;i<size && j<list.size;i++) {
+			int id = candidates[i];
+			while(j<list.size && ids[j]<id) j++;
+			if(j<list.size && ids[j]==id) candidates[kept++] = id;
+		}
+		return kept;
+	}
+
+	/**
+	 * Pack the gram at a position of a string into a key.
+	 * @param s
+	 * @param i
+	 * @return the key
+	 */
+	private static long gram(String s, int i) {
+		return ((long) s.charAt(i)<<32) | ((long) s.charAt(i+1)<<16) | s.charAt(i+2);
+	}
+}
@@ -0,0 +1,113 @@
+package pb.index;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import pb.protocols.Document;
+import pb.protocols.event.EventProtocol;
+
+/**
+ * Helpers for the batches of index updates of {@link pb.IndexServer#indexUpdateBatch}.
+ * A batch is a JSON document, that is sent as a String event, or as bytes
+ * compressed with gzip if it is large.
+ *
+ * @author aaron
+ *
+ */
+public class IndexBatch {
+
+	/**
+	 * Batches with more characters than this are compressed.
+	 */
+	public static final int compressAbove = 64*1024;
+
+	/**
+	 * Most bytes that a compressed batch may expand to.
+	 */
+	public static final int maxBatchBytes = 64*1024*1024;
+
+	/**
+	 * Turn a batch into event data.
+	 * @param batch
+	 * @return the batch as a String, or as compressed bytes if it is large
+	 */
+	public static Object encode(Document batch) {
+		String json = batch.toJson();
+		if(json.length()<=compressAbove) return json;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(json.length()/4);
+		try(GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+			out.write(json.getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			// not possible when writing to memory
+			return json;
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Turn event data back into a batch.
+	 * @param data a String, or compressed bytes, which are a Base64 String
+	 * when the endpoints don't both support binary events
+	 * @return the batch
+	 * @throws IOException if the data is not a batch
+	 */
+	public static Document decode(Object data) throws IOException {
+		if(data instanceof String) {
+			String text = (String) data;
+			if(text.startsWith("{")) return Document.parse(text);
+			data = EventProtocol.bytesOf(text);
+		}
+		if(!(data instanceof byte[])) throw new IOException("batch must be a String or bytes");
+		ByteArrayOutputStream json = new ByteArrayOutputStream();
+		try(InputStream in = new GZIPInputStream(new ByteArrayInputStream((byte[]) data))) {
+			byte[] buffer = new byte[16*1024];
+			int n;
+			while((n=in.read(buffer))>0) {
+				json.write(buffer,0,n);
+				if(json.size()>maxBatchBytes) throw new IOException("batch is too large");
+			}
+		}
+		return Document.parse(new String(json.toByteArray(),StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Get a list of strings from a batch.
+	 * @param batch
+	 * @param key
+	 * @return the strings, or an empty list if there are none
+	 * @throws IOException if the value is not a list of strings
+	 */
+	public static List<String> strings(Document batch, String key) throws IOException {
+		List<String> strings = new ArrayList<>();
+		if(!batch.containsKey(key)) return strings;
+		Object list = batch.get(key);
+		if(!(list instanceof List)) throw new IOException(key+" must be a list");
+		for(Object o : (List<?>) list) {
+			if(!(o instanceof String)) throw new IOException(key+" must be a list of strings");
+			strings.add((String) o);
+		}
+		return strings;
+	}
+
+	/**
+	 * Work out the version of a list of files, which is the same for the
+	 * same files in any order.
+	 * @param filenames
+	 * @return the version
+	 */
+	public static String version(Collection<String> filenames) {
+		List<String> sorted = new ArrayList<>(filenames);
+		sorted.sort(null);
+		return DigestUtils.sha256Hex(String.join("\n",sorted)).substring(0,16);
+	}
+}
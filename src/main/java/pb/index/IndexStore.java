@@ -0,0 +1,525 @@
+package pb.index;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import pb.utils.Utils;
+
+/**
+ * Keeps the index of {@link pb.IndexServer} on disk, so that when the server
+ * restarts the index is back as it was, without every peer having to send its
+ * files again. Each change is appended to a log as it is made. When the log
+ * has grown past {@link #compactAbove}, a new log is started and the whole
+ * index is written to a snapshot, after which the older logs are deleted. On
+ * start up the snapshot is mapped into memory and read, and then the changes
+ * in the logs since the snapshot are made again.
+ * <br/>
+ * Each change sets something to a value: whether a peer has a file, the
+ * version of its files, when it was last seen, which only goes forward, or
+ * that the peer is no longer known at all. So
+ * making a change a second time leaves the index the same, and a snapshot can
+ * be taken while changes are still being made, as they are in the new log
+ * too. A record at the end of a log that was only partly written when the
+ * server stopped fails its checksum and is dropped. Records are written
+ * straight to the file, so none are lost if the server process dies; if the
+ * machine crashes the last few may be lost, which the peers put back the next
+ * time they sync.
+ *
+ * @author aaron
+ *
+ */
+public class IndexStore {
+	private static Logger log = Logger.getLogger(IndexStore.class.getName());
+
+	/**
+	 * Bytes of log after which a snapshot is taken.
+	 */
+	public static final long compactAbove = 64L*1024*1024;
+
+	private static final String snapshotName = "index.snapshot";
+	private static final String logPrefix = "index.";
+	private static final String logSuffix = ".log";
+
+	/**
+	 * Start of a snapshot, "PBIX", and the format of the snapshot.
+	 */
+	private static final int magic = 0x50424958;
+	private static final int format = 1;
+
+	/**
+	 * Kinds of record in a log.
+	 */
+	private static final byte updateRecord = 1;
+	private static final byte seenRecord = 2;
+	private static final byte forgetRecord = 3;
+
+	/**
+	 * The index that is kept, which changes are made to when they are read
+	 * back and which snapshots are taken of.
+	 */
+	public interface Index {
+		/**
+		 * Change the files that a peer has.
+		 * @param peer
+		 * @param version the version of the peer's files after the change,
+		 * or null if it is not changed
+		 * @param removes files the peer no longer has
+		 * @param adds files the peer has
+		 */
+		void update(String peer, String version, List<String> removes, List<String> adds);
+
+		/**
+		 * Record when a peer was last seen, unless it was seen later.
+		 * @param peer
+		 * @param seen
+		 */
+		void seen(String peer, long seen);
+
+		/**
+		 * Forget a peer, and that it has any files.
+		 * @param peer
+		 */
+		void forget(String peer);
+
+		/**
+		 *
+		 * @return all of the peers in the index
+		 */
+		Collection<String> peers();
+
+		/**
+		 *
+		 * @param peer
+		 * @return when the peer was last seen, or 0 if it has not been
+		 */
+		long seenOf(String peer);
+
+		/**
+		 *
+		 * @param peer
+		 * @return the version of the peer's files, or null if there is none
+		 */
+		String versionOf(String peer);
+
+		/**
+		 *
+		 * @param peer
+		 * @return the files that the peer has
+		 */
+		Collection<String> filesOf(String peer);
+	}
+
+	private final Path dir;
+	private final Index index;
+
+	/**
+	 * The log being appended to, its number and its size.
+	 */
+	private FileChannel current = null;
+	private long currentNumber = 0;
+	private long currentSize = 0;
+
+	private boolean compacting = false;
+
+	/**
+	 * Set once the index has been put back, changes are only logged after.
+	 */
+	private boolean loaded = false;
+
+	/**
+	 * Initialise.
+	 * @param dir the directory to keep the index in
+	 * @param index
+	 */
+	public IndexStore(Path dir, Index index) {
+		this.dir = dir;
+		this.index = index;
+	}
+
+	/**
+	 * Put back the index as it was kept, and start logging changes to it.
+	 * @throws IOException if the directory can't be used
+	 */
+	public synchronized void load() throws IOException {
+		Files.createDirectories(dir);
+		long start = System.currentTimeMillis();
+		long firstLog = readSnapshot();
+		TreeMap<Long,Path> logs = logs();
+		long records = 0;
+		for(long number : logs.keySet()) {
+			Path path = logs.get(number);
+			if(number<firstLog) {
+				// left behind by a snapshot that was taken but not cleaned up after
+				Files.delete(path);
+			} else {
+				records += readLog(path);
+			}
+		}
+		log.info("loaded the index in "+(System.currentTimeMillis()-start)+" ms, "
+				+index.peers().size()+" peers and "+records+" changes since the snapshot");
+		currentNumber = logs.isEmpty() ? firstLog : Math.max(firstLog,logs.lastKey()+1);
+		openLog();
+		loaded = true;
+		if(records>0) {
+			compacting = true;
+			Utils.getInstance().execute(this::compact);
+		}
+	}
+
+	/**
+	 * Log a change to the files that a peer has.
+	 * @param peer
+	 * @param version the version of the peer's files after the change, or
+	 * null if it is not changed
+	 * @param removes
+	 * @param adds
+	 */
+	public void update(String peer, String version, Collection<String> removes, Collection<String> adds) {
+		if(version==null && removes.isEmpty() && adds.isEmpty()) return;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeByte(updateRecord);
+			writeString(out,peer);
+			writeString(out,version!=null ? version : "");
+			writeStrings(out,removes);
+			writeStrings(out,adds);
+		} catch (IOException e) {
+			// not possible when writing to memory
+		}
+		append(bytes.toByteArray());
+	}
+
+	/**
+	 * Log when a peer was last seen.
+	 * @param peer
+	 * @param seen
+	 */
+	public void seen(String peer, long seen) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeByte(seenRecord);
+			writeString(out,peer);
+			out.writeLong(seen);
+		} catch (IOException e) {
+			// not possible when writing to memory
+		}
+		append(bytes.toByteArray());
+	}
+
+	/**
+	 * Log that a peer is forgotten.
+	 * @param peer
+	 */
+	public void forget(String peer) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeByte(forgetRecord);
+			writeString(out,peer);
+		} catch (IOException e) {
+			// not possible when writing to memory
+		}
+		append(bytes.toByteArray());
+	}
+
+	/**
+	 * Append a record to the log, with its length and checksum in front of
+	 * it, and take a snapshot if the log has grown too large. If there is no
+	 * log open, because one could not be started, it is tried again here, and
+	 * if it still can't be the change is not kept.
+	 * @param record
+	 */
+	private synchronized void append(byte[] record) {
+		if(!loaded) return;
+		if(current==null) {
+			try {
+				openLog();
+				log.info("started logging changes to the index again in "+logPath(currentNumber));
+			} catch (IOException e) {
+				log.severe("could not log a change to the index, there is no log: "+e.getMessage());
+				return;
+			}
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		ByteBuffer buffer = ByteBuffer.allocate(8+record.length);
+		buffer.putInt(record.length);
+		buffer.putInt((int) crc.getValue());
+		buffer.put(record);
+		buffer.flip();
+		try {
+			while(buffer.hasRemaining()) current.write(buffer);
+		} catch (IOException e) {
+			log.severe("could not log a change to the index: "+e.getMessage());
+			dropPartialRecord();
+			return;
+		}
+		currentSize += buffer.limit();
+		if(currentSize>compactAbove && !compacting) {
+			compacting = true;
+			Utils.getInstance().execute(this::compact);
+		}
+	}
+
+	/**
+	 * Start a new log, write the index to a snapshot, and delete the logs
+	 * that the snapshot has all of the changes of.
+	 */
+	private void compact() {
+		long firstLog;
+		synchronized(this) {
+			try {
+				if(current!=null) current.close();
+				currentNumber++;
+				openLog();
+			} catch (IOException e) {
+				// the next change tries to start the log again
+				log.severe("could not start a new log of the index: "+e.getMessage());
+				compacting = false;
+				return;
+			}
+			firstLog = currentNumber;
+		}
+		long start = System.currentTimeMillis();
+		try {
+			writeSnapshot(firstLog);
+			for(long number : logs().headMap(firstLog).keySet()) {
+				Files.delete(logPath(number));
+			}
+			log.info("took a snapshot of the index in "+(System.currentTimeMillis()-start)+" ms");
+		} catch (IOException e) {
+			// the logs are kept, so the next snapshot has their changes
+			log.severe("could not take a snapshot of the index: "+e.getMessage());
+		}
+		synchronized(this) {
+			compacting = false;
+		}
+	}
+
+	/**
+	 * Remove what was written of a record that failed part way, as the
+	 * changes after it would not be read back otherwise. If that fails too
+	 * the log is given up, and the next change starts a new one.
+	 */
+	private void dropPartialRecord() {
+		try {
+			current.truncate(currentSize);
+		} catch (IOException e) {
+			try {
+				current.close();
+			} catch (IOException e2) {
+				// nothing more to do
+			}
+			current = null;
+			currentNumber++;
+		}
+	}
+
+	private void openLog() throws IOException {
+		current = null; // stays so if the log can't be opened
+		current = FileChannel.open(logPath(currentNumber), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		currentSize = current.size();
+	}
+
+	private Path logPath(long number) {
+		return dir.resolve(logPrefix+number+logSuffix);
+	}
+
+	/**
+	 *
+	 * @return the logs in the directory, by number
+	 * @throws IOException
+	 */
+	private TreeMap<Long,Path> logs() throws IOException {
+		TreeMap<Long,Path> logs = new TreeMap<>();
+		try(DirectoryStream<Path> paths = Files.newDirectoryStream(dir, logPrefix+"*"+logSuffix)) {
+			for(Path path : paths) {
+				String name = path.getFileName().toString();
+				try {
+					logs.put(Long.parseLong(name.substring(logPrefix.length(),
+							name.length()-logSuffix.length())),path);
+				} catch (NumberFormatException e) {
+					// not one of ours
+				}
+			}
+		}
+		return logs;
+	}
+
+	/**
+	 * Write the index to a new snapshot, which replaces the old one once it
+	 * is all on disk.
+	 * @param firstLog the first log with changes that may not be in the snapshot
+	 * @throws IOException
+	 */
+	private void writeSnapshot(long firstLog) throws IOException {
+		Path snapshot = dir.resolve(snapshotName);
+		Path tmp = dir.resolve(snapshotName+".tmp");
+		List<String> peers = new ArrayList<>(index.peers());
+		try(FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(
+					Channels.newOutputStream(channel),64*1024),new CRC32());
+			DataOutputStream out = new DataOutputStream(checked);
+			out.writeInt(magic);
+			out.writeInt(format);
+			out.writeLong(firstLog);
+			out.writeInt(peers.size());
+			for(String peer : peers) {
+				String version = index.versionOf(peer);
+				writeString(out,peer);
+				out.writeLong(index.seenOf(peer));
+				writeString(out,version!=null ? version : "");
+				writeStrings(out,index.filesOf(peer));
+			}
+			out.writeInt((int) checked.getChecksum().getValue());
+			out.flush();
+			channel.force(true);
+		}
+		Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Put back the index from the snapshot, if there is one.
+	 * @return the first log with changes that may not be in the snapshot
+	 */
+	private long readSnapshot() {
+		Path snapshot = dir.resolve(snapshotName);
+		if(!Files.exists(snapshot)) return 0;
+		try(FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+			if(channel.size()>Integer.MAX_VALUE) throw new IOException("snapshot is too large to map");
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if(buffer.limit()<4) throw new IOException("snapshot is too short");
+			CRC32 crc = new CRC32();
+			ByteBuffer body = buffer.duplicate();
+			body.limit(buffer.limit()-4);
+			crc.update(body);
+			if(buffer.getInt(buffer.limit()-4)!=(int) crc.getValue()) throw new IOException("bad checksum");
+			buffer.limit(buffer.limit()-4);
+			if(buffer.getInt()!=magic || buffer.getInt()!=format) throw new IOException("not a snapshot");
+			long firstLog = buffer.getLong();
+			int peers = buffer.getInt();
+			for(int i=0;i<peers;i++) {
+				String peer = readString(buffer);
+				long seen = buffer.getLong();
+				String version = readString(buffer);
+				List<String> files = readStrings(buffer);
+				// seen first, so the files go straight into place
+				if(seen>0) index.seen(peer,seen);
+				index.update(peer,version.isEmpty() ? null : version,Collections.emptyList(),files);
+			}
+			return firstLog;
+		} catch (IOException | BufferUnderflowException e) {
+			log.severe("ignoring bad snapshot "+snapshot+": "+e.getMessage());
+			return 0;
+		}
+	}
+
+	/**
+	 * Make the changes in a log again, dropping any records at the end that
+	 * were not fully written.
+	 * @param path
+	 * @return the number of changes
+	 * @throws IOException if the log can't be read
+	 */
+	private long readLog(Path path) throws IOException {
+		long records = 0;
+		long valid = 0;
+		long size;
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			size = channel.size();
+			if(size>Integer.MAX_VALUE) throw new IOException("log is too large to map: "+path);
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			CRC32 crc = new CRC32();
+			while(buffer.remaining()>=8) {
+				int length = buffer.getInt();
+				int checksum = buffer.getInt();
+				if(length<0 || length>buffer.remaining()) break;
+				ByteBuffer record = buffer.slice();
+				record.limit(length);
+				crc.reset();
+				crc.update(record.duplicate());
+				if((int) crc.getValue()!=checksum) break;
+				try {
+					replay(record);
+				} catch (BufferUnderflowException | IOException e) {
+					break;
+				}
+				buffer.position(buffer.position()+length);
+				valid = buffer.position();
+				records++;
+			}
+		}
+		if(valid<size) {
+			log.warning("dropping "+(size-valid)+" bytes that were not fully written from the end of "+path);
+			try(FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+				channel.truncate(valid);
+			}
+		}
+		return records;
+	}
+
+	private void replay(ByteBuffer record) throws IOException {
+		byte type = record.get();
+		String peer = readString(record);
+		if(type==updateRecord) {
+			String version = readString(record);
+			List<String> removes = readStrings(record);
+			List<String> adds = readStrings(record);
+			index.update(peer,version.isEmpty() ? null : version,removes,adds);
+		} else if(type==seenRecord) {
+			index.seen(peer,record.getLong());
+		} else if(type==forgetRecord) {
+			index.forget(peer);
+		} else {
+			throw new IOException("unknown record");
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static void writeStrings(DataOutputStream out, Collection<String> strings) throws IOException {
+		out.writeInt(strings.size());
+		for(String s : strings) writeString(out,s);
+	}
+
+	private static String readString(ByteBuffer buffer) throws IOException {
+		int length = buffer.getInt();
+		if(length<0 || length>buffer.remaining()) throw new IOException("bad string");
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes,StandardCharsets.UTF_8);
+	}
+
+	private static List<String> readStrings(ByteBuffer buffer) throws IOException {
+		int count = buffer.getInt();
+		if(count<0 || count>buffer.remaining()/4) throw new IOException("bad list");
+		List<String> strings = new ArrayList<>(count);
+		for(int i=0;i<count;i++) strings.add(readString(buffer));
+		return strings;
+	}
+}
@@ -0,0 +1,87 @@
+package pb.index;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The peers in order of when they were last seen, oldest first, so that the
+ * peers that have not been seen for too long are taken straight off the
+ * front, and finding them takes time in proportion to how many of them there
+ * are rather than to how many peers there are, as used by
+ * {@link pb.IndexServer}.
+ * <br/>
+ * Thread safe.
+ *
+ * @author aaron
+ *
+ */
+public class PeerExpiry {
+
+	/**
+	 * A peer and when it was last seen, ordered oldest first.
+	 */
+	private static class Seen implements Comparable<Seen> {
+		final String peer;
+		final long seen;
+
+		Seen(String peer, long seen) {
+			this.peer = peer;
+			this.seen = seen;
+		}
+
+		@Override
+		public int compareTo(Seen other) {
+			int c = Long.compare(seen,other.seen);
+			return c!=0 ? c : peer.compareTo(other.peer);
+		}
+	}
+
+	private final TreeSet<Seen> order = new TreeSet<>();
+
+	/**
+	 * When each peer was last seen.
+	 */
+	private final Map<String,Long> seen = new HashMap<>();
+
+	/**
+	 * Record when a peer was last seen, unless it was seen later.
+	 * @param peer
+	 * @param time
+	 */
+	public synchronized void seen(String peer, long time) {
+		Long before = seen.get(peer);
+		if(before!=null) {
+			if(before>=time) return;
+			order.remove(new Seen(peer,before));
+		}
+		seen.put(peer,time);
+		order.add(new Seen(peer,time));
+	}
+
+	/**
+	 * Stop keeping track of a peer.
+	 * @param peer
+	 */
+	public synchronized void forget(String peer) {
+		Long before = seen.remove(peer);
+		if(before!=null) order.remove(new Seen(peer,before));
+	}
+
+	/**
+	 * Take the peers that were last seen before a time.
+	 * @param before
+	 * @return the peers, which are no longer kept track of
+	 */
+	public synchronized List<String> expire(long before) {
+		List<String> expired = new ArrayList<>();
+		while(!order.isEmpty() && order.first().seen<before) {
+			Seen first = order.pollFirst();
+			seen.remove(first.peer);
+			expired.add(first.peer);
+		}
+		return expired;
+	}
+}
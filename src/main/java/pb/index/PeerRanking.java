@@ -0,0 +1,192 @@
+package pb.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * The peers that have each file, kept in order of when each peer was last
+ * seen, most recent first, as used by {@link pb.IndexServer}. So the most
+ * recently seen peers that have a file are read straight off the front of
+ * its set, rather than sorting all of them for each query. When a peer is
+ * seen again it is moved in the set of each of the files that it has.
+ * <br/>
+ * Thread safe. Changes for a peer are made one at a time, while reads take no
+ * lock; a peer that is being moved may briefly be in a set twice, which
+ * reads skip over. The set of a file is dropped when no peer has the file.
+ *
+ * @author aaron
+ *
+ */
+public class PeerRanking {
+
+	/**
+	 * A peer that has a file, ordered by when it was last seen.
+	 */
+	private static class Holder implements Comparable<Holder> {
+		final String peer;
+		final long seen;
+
+		Holder(String peer, long seen) {
+			this.peer = peer;
+			this.seen = seen;
+		}
+
+		@Override
+		public int compareTo(Holder other) {
+			// most recent first
+			int c = Long.compare(other.seen,seen);
+			return c!=0 ? c : peer.compareTo(other.peer);
+		}
+	}
+
+	/**
+	 * What is known of a peer. Changes for the peer synchronize on it.
+	 */
+	private static class Peer {
+		long seen = 0;
+		final Set<String> files = new HashSet<>();
+		boolean forgotten = false;
+	}
+
+	/**
+	 * Holders of each file.
+	 */
+	private final Map<String,NavigableSet<Holder>> holders = new ConcurrentHashMap<>();
+
+	/**
+	 * Peers by "PeerIP:PeerPort".
+	 */
+	private final Map<String,Peer> peers = new ConcurrentHashMap<>();
+
+	/**
+	 * Record that a peer has a file.
+	 * @param filename
+	 * @param peerport
+	 */
+	public void add(String filename, String peerport) {
+		while(true) {
+			Peer peer = peers.computeIfAbsent(peerport,(k)->new Peer());
+			synchronized(peer) {
+				// forgotten while we waited, so look it up again
+				if(peer.forgotten) continue;
+				if(!peer.files.add(filename)) return;
+				Holder holder = new Holder(peerport,peer.seen);
+				holders.compute(filename,(k,set)->{
+					if(set==null) set = new ConcurrentSkipListSet<>();
+					set.add(holder);
+					return set;
+				});
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Record that a peer no longer has a file.
+	 * @param filename
+	 * @param peerport
+	 */
+	public void remove(String filename, String peerport) {
+		Peer peer = peers.get(peerport);
+		if(peer==null) return;
+		synchronized(peer) {
+			if(peer.files.remove(filename)) removeHolder(filename,new Holder(peerport,peer.seen));
+		}
+	}
+
+	/**
+	 * Forget a peer, and that it has any files.
+	 * @param peerport
+	 */
+	public void forget(String peerport) {
+		Peer peer = peers.get(peerport);
+		if(peer==null) return;
+		synchronized(peer) {
+			Holder holder = new Holder(peerport,peer.seen);
+			for(String filename : peer.files) removeHolder(filename,holder);
+			peer.files.clear();
+			peer.forgotten = true;
+			peers.remove(peerport,peer);
+		}
+	}
+
+	private void removeHolder(String filename, Holder holder) {
+		holders.computeIfPresent(filename,(k,set)->{
+			set.remove(holder);
+			return set.isEmpty() ? null : set;
+		});
+	}
+
+	/**
+	 *
+	 * @param peerport
+	 * @return the files that a peer has
+	 */
+	public Set<String> filesOf(String peerport) {
+		Peer peer = peers.get(peerport);
+		if(peer==null) return Collections.emptySet();
+		synchronized(peer) {
+			return new HashSet<>(peer.files);
+		}
+	}
+
+	/**
+	 *
+	 * @return the peers that have had files
+	 */
+	public Set<String> peers() {
+		return new HashSet<>(peers.keySet());
+	}
+
+	/**
+	 * Record when a peer was last seen, moving it in the order of each of
+	 * its files.
+	 * @param peerport
+	 * @param seen
+	 */
+	public void seen(String peerport, long seen) {
+		while(true) {
+			Peer peer = peers.computeIfAbsent(peerport,(k)->new Peer());
+			synchronized(peer) {
+				if(peer.forgotten) continue;
+				if(peer.seen==seen) return;
+				Holder before = new Holder(peerport,peer.seen);
+				Holder after = new Holder(peerport,seen);
+				peer.seen = seen;
+				for(String filename : peer.files) {
+					// the set is not dropped while the peer is in it
+					NavigableSet<Holder> set = holders.get(filename);
+					// added before removed, so that the peer is never missing
+					set.add(after);
+					set.remove(before);
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Get the most recently seen peers that have a file.
+	 * @param filename
+	 * @param k most peers to get
+	 * @return the peers, most recently seen first
+	 */
+	public List<String> top(String filename, int k) {
+		NavigableSet<Holder> set = holders.get(filename);
+		if(set==null) return Collections.emptyList();
+		Set<String> top = new LinkedHashSet<>();
+		for(Holder holder : set) {
+			if(top.size()>=k) break;
+			top.add(holder.peer);
+		}
+		return new ArrayList<>(top);
+	}
+}
@@ -0,0 +1,235 @@
+package pb.index;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+import pb.protocols.Document;
+
+/**
+ * The hits of recent queries, as used by {@link pb.IndexServer}, so that a
+ * popular query is answered without searching the index again. Queries are
+ * kept by their terms in lower case, sorted and without repeats, so queries
+ * that differ only in those ways share an entry. At most a given number of
+ * queries are kept, and the least recently used is dropped first.
+ * <br/>
+ * A kept query is used only while no filename that could match it has been
+ * added to or removed from the index. Each gram (three characters in a row)
+ * has a generation, which goes up when a filename that contains the gram is
+ * added or removed. A query is kept with the generations of the grams of its
+ * terms when it was searched, and is searched again if any of them have moved
+ * on; a filename that contains a term contains all of the grams of the term,
+ * so changes to other filenames leave the hits the same. Grams share a fixed
+ * number of generations, so now and then a query is searched again when it
+ * didn't need to be. Terms that are too short to have a gram depend on every
+ * change.
+ * <br/>
+ * Thread safe.
+ *
+ * @author aaron
+ *
+ */
+public class QueryCache {
+
+	/**
+	 * Default most queries to keep.
+	 */
+	public static final int defaultCapacity = 1024;
+
+	/**
+	 * Queries with more hits than this are not kept.
+	 */
+	public static final int maxHits = 10000;
+
+	/**
+	 * Length of a gram, the same as in {@link FilenameIndex}.
+	 */
+	private static final int gramLength = 3;
+
+	/**
+	 * Number of generations that the grams share.
+	 */
+	private static final int stripes = 1<<16;
+
+	/**
+	 * Generation of each stripe of grams, and of the index as a whole.
+	 */
+	private final AtomicLongArray generations = new AtomicLongArray(stripes);
+	private final AtomicLong generation = new AtomicLong();
+
+	/**
+	 * A kept query, with the generations that it depends on, where a stripe
+	 * of -1 is the generation of the index as a whole.
+	 */
+	private static class Entry {
+		final List<String> hits;
+		final int[] stripes;
+		final long[] generations;
+
+		Entry(List<String> hits, int[] stripes, long[] generations) {
+			this.hits = hits;
+			this.stripes = stripes;
+			this.generations = generations;
+		}
+	}
+
+	private final int capacity;
+
+	/**
+	 * Kept queries, in order of least recently used first.
+	 */
+	private final LinkedHashMap<String,Entry> entries = new LinkedHashMap<>(16,0.75f,true);
+
+	private long hits = 0;
+	private long misses = 0;
+	private long stale = 0;
+	private long evictions = 0;
+
+	/**
+	 * Initialise with the default capacity.
+	 */
+	public QueryCache() {
+		this(defaultCapacity);
+	}
+
+	/**
+	 * Initialise.
+	 * @param capacity most queries to keep
+	 */
+	public QueryCache(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Get the hits of a query, searching for them if they are not kept or
+	 * may have changed.
+	 * @param query a comma separated list of terms
+	 * @param search searches the index for a query in the same format
+	 * @return the hits, which must not be changed
+	 */
+	public List<String> get(String query, Function<String,List<String>> search) {
+		String key = normalize(query);
+		Entry entry;
+		synchronized(this) {
+			entry = entries.get(key);
+			if(entry!=null && current(entry)) {
+				hits++;
+				return entry.hits;
+			}
+			if(entry!=null) {
+				stale++;
+				entries.remove(key);
+			} else {
+				misses++;
+			}
+		}
+		// the generations are read before searching, so that a change made
+		// during the search leaves the entry out of date
+		int[] depends = stripes(key);
+		long[] seen = new long[depends.length];
+		for(int i=0;i<depends.length;i++) seen[i] = generationOf(depends[i]);
+		List<String> found = Collections.unmodifiableList(search.apply(key));
+		if(found.size()<=maxHits) {
+			synchronized(this) {
+				entries.put(key,new Entry(found,depends,seen));
+				Iterator<Entry> it = entries.values().iterator();
+				while(entries.size()>capacity && it.hasNext()) {
+					it.next();
+					it.remove();
+					evictions++;
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Say that a filename has been added to or removed from the index.
+	 * @param filename
+	 */
+	public void changed(String filename) {
+		String lower = filename.toLowerCase();
+		for(int i=0;i+gramLength<=lower.length();i++) {
+			generations.incrementAndGet(stripe(lower,i));
+		}
+		generation.incrementAndGet();
+	}
+
+	/**
+	 *
+	 * @return the number of queries that were answered from the cache, were
+	 * not in it, and were in it but out of date, and the number that were
+	 * dropped to make room, and the percentage of hits, as a document
+	 */
+	public synchronized Document getStats() {
+		Document stats = new Document();
+		stats.append("size", entries.size());
+		stats.append("capacity", capacity);
+		stats.append("hits", hits);
+		stats.append("misses", misses);
+		stats.append("stale", stale);
+		stats.append("evictions", evictions);
+		long lookups = hits+misses+stale;
+		stats.append("hitPercent", lookups>0 ? Math.round(100.0*hits/lookups) : 0);
+		return stats;
+	}
+
+	/**
+	 *
+	 * @return the number of times the cache has been looked in
+	 */
+	public synchronized long getLookups() {
+		return hits+misses+stale;
+	}
+
+	private boolean current(Entry entry) {
+		for(int i=0;i<entry.stripes.length;i++) {
+			if(generationOf(entry.stripes[i])!=entry.generations[i]) return false;
+		}
+		return true;
+	}
+
+	private long generationOf(int stripe) {
+		return stripe<0 ? generation.get() : generations.get(stripe);
+	}
+
+	/**
+	 *
+	 * @param key a normalized query
+	 * @return the stripes that the hits of the query depend on
+	 */
+	private static int[] stripes(String key) {
+		TreeSet<Integer> depends = new TreeSet<>();
+		for(String term : key.split(",")) {
+			if(term.length()<gramLength) depends.add(-1);
+			for(int i=0;i+gramLength<=term.length();i++) depends.add(stripe(term,i));
+		}
+		int[] stripes = new int[depends.size()];
+		int i = 0;
+		for(int stripe : depends) stripes[i++] = stripe;
+		return stripes;
+	}
+
+	private static int stripe(String s, int i) {
+		long gram = ((long) s.charAt(i)<<32) | ((long) s.charAt(i+1)<<16) | s.charAt(i+2);
+		long h = gram*0x9E3779B97F4A7C15L;
+		return (int) (h>>>48) & (stripes-1);
+	}
+
+	/**
+	 * Put a query into a form that is the same for queries with the same hits.
+	 * @param query a comma separated list of terms
+	 * @return the terms in lower case, sorted and without repeats
+	 */
+	public static String normalize(String query) {
+		TreeSet<String> terms = new TreeSet<>();
+		for(String term : query.split(",")) terms.add(term.toLowerCase());
+		// a query of just commas has no terms, and no hits
+		return terms.isEmpty() ? query : String.join(",",terms);
+	}
+}
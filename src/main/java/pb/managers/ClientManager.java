@@ -88,6 +88,11 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 */
 	private boolean shouldWeRetry=false;
 	
+	/**
+	 * Set when the client manager has been shutdown, so it won't retry.
+	 */
+	private volatile boolean shutdown=false;
+	
 	/**
 	 * Initialise the client manage with a host and port to connect to.
 	 * @param host
@@ -102,13 +107,19 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	
 	@Override
 	public void shutdown() {
-		sessionProtocol.stopSession();
+		shutdown=true;
+		SessionProtocol protocol=sessionProtocol;
+		if(protocol!=null) {
+			protocol.stopSession();
+		} else {
+			interrupt(); // not connected yet, stop retrying
+		}
 	}
 	
 	@Override
 	public void run() {
 		int retries=10;
-		while(retries-- > 0) {
+		while(retries-- > 0 && !shutdown) {
 			if(attemptToConnect(host,port)) {
 				// the connection ended in error, so let's just
 				// try to get it back up, transparently to the
@@ -123,7 +134,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 				return;
 			}
 		}
-		log.severe("no more retries, giving up");
+		if(!shutdown) log.severe("no more retries, giving up");
 		
 	}
 	/**
@@ -143,7 +154,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 
 			try {
 				// just wait for this thread to terminate
-				endpoint.join();
+				endpoint.awaitTermination();
 			} catch (InterruptedException e) {
 				// just make sure the endpoint has done everything it should
 				endpoint.close();
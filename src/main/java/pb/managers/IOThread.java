@@ -2,18 +2,24 @@ package pb.managers;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.logging.Logger;
 
+import pb.utils.Utils;
+
 /**
  * Listen for connections on a given port number and pass them to the
  * {@link pb.managers.ServerManager} using
  * {@link pb.managers.ServerManager#acceptClient(Socket)}. Note that the
  * {@link pb.managers.ServerManager} is responsible for creating a thread for this
  * connection, else the IOThread will not accept any more connections until this
- * connection is finished.
+ * connection is finished. When the server manager uses selector loops, the
+ * server socket is opened from a channel so that accepted sockets have a
+ * channel that can be handed to a loop.
  * 
  * @see {@link pb.managers.ServerManager}
  * @author aaron
@@ -25,6 +31,11 @@ public class IOThread extends Thread {
 	private int port;
 	private ServerManager serverManager;
 	
+	/**
+	 * The thread that is running the io thread, which may be a virtual thread.
+	 */
+	private Thread runner;
+	
 	/**
 	 * Emitted when the io thread has started. The argument
 	 * provides the io thread's Internet address in the 
@@ -43,11 +54,37 @@ public class IOThread extends Thread {
 	 * @throws IOException whenever the server socket can't be created
 	 */
 	public IOThread(int port, ServerManager serverManager) throws IOException{
-		serverSocket = new ServerSocket(port); // let's throw this since its potentially unrecoverable
+		this(port,serverManager,false);
+	}
+	
+	/**
+	 * Initialise the IOThread with a port number to listen on and reference
+	 * to the {@link pb.managers.ServerManager}, accepting socket channels if
+	 * required.
+	 * @param port to listen on
+	 * @param serverManager to send connections to
+	 * @param useChannels true if the accepted sockets must have a channel
+	 * @throws IOException whenever the server socket can't be created
+	 */
+	public IOThread(int port, ServerManager serverManager, boolean useChannels) throws IOException{
+		if(useChannels) {
+			serverSocket = ServerSocketChannel.open().socket();
+			serverSocket.bind(new InetSocketAddress(port));
+		} else {
+			serverSocket = new ServerSocket(port); // let's throw this since its potentially unrecoverable
+		}
 		this.port=port;
 		this.serverManager=serverManager;
 		setName("IOThread");
-		start();
+		runner=Utils.getInstance().startThread(this,getName());
+	}
+	
+	/**
+	 * Wait for the io thread to terminate.
+	 * @throws InterruptedException
+	 */
+	public void awaitTermination() throws InterruptedException {
+		runner.join();
 	}
 	
 	/**
@@ -61,6 +98,7 @@ public class IOThread extends Thread {
 				log.warning("exception closing server socket: "+e.getMessage());
 			}
 		interrupt();
+		if(runner!=null) runner.interrupt();
 	}
 	
 	/**
@@ -75,7 +113,7 @@ public class IOThread extends Thread {
 			log.severe("Could not get address of local host, continuing anyway, assuming 127.0.0.1");
 			serverManager.emit(ioThread,"127.0.0.1:"+port);
 		}
-		while(!isInterrupted() && !serverSocket.isClosed()){
+		while(!Thread.currentThread().isInterrupted() && !serverSocket.isClosed()){
 			Socket clientSocket;
 			try {
 				clientSocket = serverSocket.accept();
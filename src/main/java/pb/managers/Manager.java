@@ -6,6 +6,7 @@ import pb.managers.endpoint.IEndpointHandler;
 import pb.protocols.IProtocolHandler;
 import pb.protocols.Protocol;
 import pb.utils.Eventable;
+import pb.utils.Utils;
 
 /**
  * Manager base class. Methods must be overriden.
@@ -17,6 +18,41 @@ import pb.utils.Eventable;
  */
 public class Manager extends Eventable implements IProtocolHandler, IEndpointHandler{
 	
+	/**
+	 * The thread that is running the manager, which may be a virtual thread.
+	 */
+	private volatile Thread runner=null;
+	
+	/**
+	 * Start the manager on a new thread, a virtual thread if they are
+	 * enabled. Use {@link #awaitTermination()} rather than {@link #join()}
+	 * to wait for the manager.
+	 * @see {@link pb.utils.Utils#startThread(Runnable, String)}
+	 */
+	@Override
+	public synchronized void start() {
+		runner=Utils.getInstance().startThread(this,getName());
+	}
+	
+	/**
+	 * Wait for the thread running the manager to terminate.
+	 * @throws InterruptedException
+	 */
+	public void awaitTermination() throws InterruptedException {
+		Thread thread = runner;
+		if(thread!=null) thread.join();
+	}
+	
+	/**
+	 * Interrupt the thread running the manager.
+	 */
+	@Override
+	public void interrupt() {
+		super.interrupt();
+		Thread thread = runner;
+		if(thread!=null) thread.interrupt();
+	}
+	
 	/**
 	 * Shut this manager down, closing all connections gracefully where possible.
 	 */
@@ -154,6 +154,18 @@ public class PeerManager extends Manager {
 		serverManager.start();
 	}
 	
+	/**
+	 * Wait for the peer manager, and the server manager that it started,
+	 * to terminate.
+	 * @throws InterruptedException
+	 */
+	@Override
+	public void awaitTermination() throws InterruptedException {
+		super.awaitTermination();
+		ServerManager server = serverManager;
+		if(server!=null) server.awaitTermination();
+	}
+	
 	/**
 	 * Join with any outstanding client managers, to ensure they have
 	 * all completed. Only useful if the client managers are expected
@@ -163,7 +175,7 @@ public class PeerManager extends Manager {
 	public void joinWithClientManagers() {
 		clientManagers.forEach((clientManager)->{
 			try {
-				clientManager.join();
+				clientManager.awaitTermination();
 			} catch (InterruptedException e) {
 				log.warning("could not join with client manager");
 			}
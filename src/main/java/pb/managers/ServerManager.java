@@ -8,6 +8,7 @@ import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
 import pb.managers.endpoint.ProtocolAlreadyRunning;
+import pb.managers.endpoint.SelectorLoop;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Protocol;
 import pb.protocols.event.EventProtocol;
@@ -125,6 +126,22 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	private String password=null;
 	
+	/**
+	 * Number of selector loops to handle the endpoints with, or 0 to
+	 * use a thread per endpoint.
+	 */
+	private final int selectorThreads;
+	
+	/**
+	 * The selector loops when in use.
+	 */
+	private SelectorLoop[] selectorLoops=null;
+	
+	/**
+	 * The next selector loop to give an endpoint to.
+	 */
+	private int nextSelectorLoop=0;
+	
 	/**
 	 * Initialise the ServerManager with a port number for the io thread to listen on.
 	 * @param port to use when creating the io thread
@@ -132,6 +149,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	public ServerManager(int port) {
 		this.port=port;
 		liveEndpoints=new HashSet<>();
+		selectorThreads=0;
 		setName("ServerManager"); // name the thread, urgh simple log can't print it :-(
 	}
 	
@@ -142,9 +160,22 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 * @param password to use by admin clients
 	 */
 	public ServerManager(int port,String password) {
+		this(port,password,0);
+	}
+	
+	/**
+	 * Initialise the ServerManager with a port number for the io thread to listen on,
+	 * a password and a number of selector loops. When selector loops are used, all
+	 * endpoints are handled by the loops instead of having a thread each.
+	 * @param port to use when creating the io thread
+	 * @param password to use by admin clients, or null for none
+	 * @param selectorThreads number of selector loops, or 0 for a thread per endpoint
+	 */
+	public ServerManager(int port,String password,int selectorThreads) {
 		this.port=port;
 		liveEndpoints=new HashSet<>();
 		this.password = password;
+		this.selectorThreads = selectorThreads;
 		setName("ServerManager"); // name the thread, urgh simple log can't print it :-(
 	}
 	
@@ -184,21 +215,42 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		}
 	}
 	
+	/**
+	 * 
+	 * @return the total number of messages waiting to be written to the
+	 * live endpoints
+	 */
+	public int getOutboundQueueDepth() {
+		synchronized(liveEndpoints) {
+			int depth=0;
+			for(Endpoint endpoint : liveEndpoints) depth+=endpoint.getOutboundQueueDepth();
+			return depth;
+		}
+	}
+	
 	@Override
 	public void run() {
 		log.info("started");
 		// when the IO thread terminates, and all endpoints have terminated,
 		// then the server will terminate
 		try {
-			ioThread = new IOThread(port,this);
+			if(selectorThreads>0) {
+				selectorLoops = new SelectorLoop[selectorThreads];
+				for(int i=0;i<selectorThreads;i++) {
+					selectorLoops[i] = new SelectorLoop("SelectorLoop-"+i);
+					selectorLoops[i].start();
+				}
+			}
+			ioThread = new IOThread(port,this,selectorLoops!=null);
 		} catch (IOException e1) {
 			log.severe("could not start the io thread");
+			stopSelectorLoops();
 			return;
 		}
 		
 		try {
 			// just wait for this thread to terminate
-			ioThread.join();
+			ioThread.awaitTermination();
 		} catch (InterruptedException e) {
 			// just make sure the ioThread is going to terminate
 			ioThread.shutDown();
@@ -240,7 +292,10 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		while(numLiveEndpoints()>0 && !vaderShutdown) {
 			log.warning("still waiting for "+numLiveEndpoints()+" to finish");
 			try {
-				Thread.sleep(1000); // just wait a little longer
+				// wait a little longer, or until an endpoint closes
+				synchronized(liveEndpoints) {
+					if(!liveEndpoints.isEmpty()) liveEndpoints.wait(1000);
+				}
 			} catch (InterruptedException e) {
 				if(numLiveEndpoints()>0) {
 					log.severe("terminating server with "+numLiveEndpoints()+
@@ -258,9 +313,20 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 				});
 			}
 		}
+		stopSelectorLoops();
 		log.info("terminated");
 	}
 	
+	/**
+	 * Stop the selector loops if they are in use.
+	 */
+	private void stopSelectorLoops() {
+		if(selectorLoops==null) return;
+		for(SelectorLoop selectorLoop : selectorLoops) {
+			if(selectorLoop!=null) selectorLoop.shutDown();
+		}
+	}
+	
 	/**
 	 * A new client has connected to the server. We need to keep
 	 * a set of all clients that have connected, so that we can
@@ -268,7 +334,15 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 * @param clientSocket the socket connection for the client.
 	 */
 	public void acceptClient(Socket clientSocket) {
-		Endpoint endpoint = new Endpoint(clientSocket,this);
+		Endpoint endpoint;
+		if(selectorLoops!=null) {
+			// spread the endpoints over the loops
+			SelectorLoop selectorLoop = selectorLoops[nextSelectorLoop];
+			nextSelectorLoop = (nextSelectorLoop+1) % selectorLoops.length;
+			endpoint = new Endpoint(clientSocket.getChannel(),selectorLoop,this);
+		} else {
+			endpoint = new Endpoint(clientSocket,this);
+		}
 		endpoint.start();
 	}
 	
@@ -344,6 +418,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	public void endpointClosed(Endpoint endpoint) {
 		synchronized(liveEndpoints) {
 			liveEndpoints.remove(endpoint);
+			liveEndpoints.notifyAll();
 		}
 	}
 
@@ -1,19 +1,33 @@
 package pb.managers.endpoint;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.logging.Logger;
 
 import pb.utils.Eventable;
+import pb.utils.Timeout;
 import pb.utils.Utils;
+import pb.protocols.BinaryCodec;
 import pb.protocols.InvalidMessage;
+import pb.protocols.JsonCodec;
 import pb.protocols.Message;
+import pb.protocols.MessageCodec;
 import pb.protocols.Protocol;
 import pb.protocols.event.EventProtocol;
 import pb.protocols.event.IEventProtocolHandler;
@@ -27,12 +41,20 @@ import pb.protocols.session.SessionProtocol;
 /**
  * The endpoint is a thread that blocking reads incoming messages (on a socket)
  * and sends them to the appropriate protocol for processing; thus a
- * thread-per-connection model is being used. It also provides a synchronized
- * method to send data to the socket which will be sent to the other endpoint.
+ * thread-per-connection model is being used. It also provides a method to send
+ * data to the other endpoint, which queues the data so that the caller does not
+ * block on the socket; a writer task drains the queue, coalescing the queued
+ * messages into a single write and flush.
  * Any number of protocols can be handled by the endpoint, but there can be only
  * one instance of each protocol running at a time.
+ * <br/>
+ * Alternatively the endpoint can be wrapped around a non-blocking socket
+ * channel, in which case it does not use its own thread at all, rather a
+ * {@link pb.managers.endpoint.SelectorLoop} reads and writes the channel
+ * and passes complete messages to the endpoint.
  * 
  * @see {@link pb.managers.Manager}
+ * @see {@link pb.managers.endpoint.SelectorLoop}
  * @see {@link pb.protocols.session.SessionProtocol}
  * @see {@link pb.protocols.keepalive.KeepAliveProtocol}
  * @author aaron
@@ -41,6 +63,35 @@ import pb.protocols.session.SessionProtocol;
 public class Endpoint extends Eventable {
 	private static Logger log = Logger.getLogger(Endpoint.class.getName());
 	
+	/**
+	 * Features that are negotiated with the other endpoint when the session
+	 * starts, see {@link pb.protocols.session.SessionProtocol}.
+	 */
+	
+	/**
+	 * Send messages in length prefixed frames, which have no size limit.
+	 * @see {@link pb.managers.endpoint.Framing}
+	 */
+	public static final String framesFeature = "frames";
+	
+	/**
+	 * Encode messages with the {@link pb.protocols.BinaryCodec} instead of
+	 * as JSON text, needs {@link #framesFeature}.
+	 */
+	public static final String binaryFeature = "binary";
+	
+	/**
+	 * Stream events with sequence numbers and cumulative acknowledgements,
+	 * rather than a reply for each event.
+	 * @see {@link pb.protocols.event.EventProtocol}
+	 */
+	public static final String streamFeature = "stream";
+	
+	/**
+	 * The features that this endpoint supports.
+	 */
+	private static final List<String> supportedFeatures = List.of(framesFeature,binaryFeature,streamFeature);
+	
 	/**
 	 * The socket this endpoint is wrapped around.
 	 */
@@ -57,10 +108,54 @@ public class Endpoint extends Eventable {
 	private DataInputStream in=null;
 	
 	/**
-	 * The output data stream on the socket.
+	 * The output data stream on the socket, which is buffered so that a batch
+	 * of messages goes out in one write.
 	 */
 	private DataOutputStream out=null;
 	
+	/**
+	 * Held while writing to the out stream.
+	 */
+	private final Object writeLock=new Object();
+	
+	/**
+	 * Whether a writer task is draining the outbound queue, guarded by the
+	 * outbound queue.
+	 */
+	private boolean writing=false;
+	
+	/**
+	 * Default maximum number of messages to write in one batch.
+	 */
+	private static volatile int defaultMaxBatchSize=64;
+	
+	/**
+	 * Default maximum time in milliseconds to wait for more messages before
+	 * writing a batch that is not full.
+	 */
+	private static volatile long defaultMaxLinger=0;
+	
+	/**
+	 * Maximum number of messages to write in one batch.
+	 */
+	private volatile int maxBatchSize=defaultMaxBatchSize;
+	
+	/**
+	 * Maximum time in milliseconds to wait for more messages before writing
+	 * a batch that is not full. The default of 0 writes as soon as possible,
+	 * while still coalescing whatever was queued in the mean time.
+	 */
+	private volatile long maxLinger=defaultMaxLinger;
+	
+	/**
+	 * Executor that endpoints created from now on hand their event callbacks
+	 * to, or null to call them on the thread that reads the messages. Set by
+	 * the system property {@code -Dpb.asyncEvents=true} to use
+	 * {@link pb.utils.Utils#execute(Runnable)}.
+	 */
+	private static volatile Executor defaultDispatchExecutor=
+			Boolean.getBoolean("pb.asyncEvents") ? (task)->Utils.getInstance().execute(task) : null;
+	
 	/**
 	 * A protocol name to protocol map, of protocols in use.
 	 */
@@ -72,15 +167,89 @@ public class Endpoint extends Eventable {
 	private long timeoutId=1;
 	
 	/**
-	 * Oustanding ids
+	 * Oustanding ids, with the timeout that will fire if no reply is seen.
+	 */
+	private final Map<Long,Timeout> outstandingIds=new ConcurrentHashMap<>();
+	
+	/**
+	 * Features that both endpoints have agreed to use.
 	 */
-	private Set<Long> outstandingIds;
+	private final Set<String> features=ConcurrentHashMap.newKeySet();
+	
+	/**
+	 * Size of the buffer for the out stream.
+	 */
+	private static final int writeBufferSize=64*1024;
+	
+	/**
+	 * Size of the buffer that frames are read into, which it goes back to
+	 * after a message larger than {@link #maxKeptReadBufferSize}.
+	 */
+	private static final int initialReadBufferSize=1024;
+	
+	/**
+	 * Largest read buffer that is kept for the next message.
+	 */
+	private static final int maxKeptReadBufferSize=64*1024;
+	
+	/**
+	 * Buffer that frames are read into, reused for each message.
+	 */
+	private byte[] readBuffer=new byte[initialReadBufferSize];
+	
+	/**
+	 * Largest payload accepted in a length prefixed frame, which is raised
+	 * from {@link Framing#preSessionFrameSize} to {@link Framing#maxFrameSize}
+	 * once the session has started.
+	 */
+	volatile int frameLimit=Framing.preSessionFrameSize;
 	
 	/**
 	 * stopped flag
 	 */
 	private volatile boolean stopped=true; // the use of send will return false always
 	
+	/**
+	 * The channel this endpoint is wrapped around, when it is handled
+	 * by a selector loop, or null otherwise.
+	 */
+	final SocketChannel channel;
+	
+	/**
+	 * The selector loop handling the channel, or null if this endpoint
+	 * uses its own thread.
+	 */
+	private final SelectorLoop selectorLoop;
+	
+	/**
+	 * The selection key of the channel, set by the selector loop.
+	 */
+	SelectionKey key=null;
+	
+	/**
+	 * Bytes read from the channel that do not yet make up a complete
+	 * message, used by the selector loop.
+	 */
+	ByteBuffer inbound=null;
+	
+	/**
+	 * Encoded messages waiting to be written, to the channel by the
+	 * selector loop or to the socket by a writer task.
+	 */
+	final Deque<ByteBuffer> outbound;
+	
+	/**
+	 * Set when the endpoint has been closed, the selector loop will close
+	 * the channel once the outbound messages have been written.
+	 */
+	volatile boolean closing=false;
+	
+	/**
+	 * The thread that is running this endpoint, when it is not handled by
+	 * a selector loop.
+	 */
+	private volatile Thread runner=null;
+	
 	/**
 	 * Initialise the endpoint with a socket and a manager.
 	 * @param socket
@@ -89,56 +258,241 @@ public class Endpoint extends Eventable {
 	public Endpoint(Socket socket, IEndpointHandler manager) {
 		this.socket = socket;
 		this.manager = manager;
+		noDelay(socket);
+		channel = null;
+		selectorLoop = null;
 		protocols = new HashMap<>();
-		outstandingIds = new HashSet<>();
+		outbound = new ArrayDeque<>();
+		setDispatchExecutor(defaultDispatchExecutor);
 		setName("Endpoint"); // name the thread
 	}
 	
 	/**
-	 * Send a Message on the socket for this endpoint. This is synchronized
-	 * to avoid multiple concurrent messages overwriting each other on the socket.
+	 * Initialise the endpoint with a socket channel that will be handled
+	 * by the given selector loop, and a manager.
+	 * @param channel
+	 * @param selectorLoop
+	 * @param manager
+	 */
+	public Endpoint(SocketChannel channel, SelectorLoop selectorLoop, IEndpointHandler manager) {
+		this.socket = channel.socket();
+		this.manager = manager;
+		noDelay(socket);
+		this.channel = channel;
+		this.selectorLoop = selectorLoop;
+		protocols = new HashMap<>();
+		outbound = new ArrayDeque<>();
+		setDispatchExecutor(defaultDispatchExecutor);
+		setName("Endpoint"); // name the thread
+	}
+	
+	/**
+	 * Turn off Nagle's algorithm, as frames are already batched when they
+	 * are written, and otherwise a small frame written after another waits
+	 * for the other end's delayed acknowledgement.
+	 * @param socket
+	 */
+	private static void noDelay(Socket socket) {
+		try {
+			socket.setTcpNoDelay(true);
+		} catch (IOException e) {
+			log.warning("could not turn off Nagle's algorithm: "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * Start the endpoint. An endpoint with its own thread starts reading
+	 * from the socket, on a virtual thread if they are enabled, whereas an
+	 * endpoint with a selector loop is handed to the loop, which will make
+	 * the endpoint ready. Use {@link #awaitTermination()} rather than
+	 * {@link #join()} to wait for the endpoint.
+	 * @see {@link pb.utils.Utils#startThread(Runnable, String)}
+	 */
+	@Override
+	public synchronized void start() {
+		if(selectorLoop!=null) {
+			selectorLoop.register(this);
+		} else {
+			runner=Utils.getInstance().startThread(this,getName());
+		}
+	}
+	
+	/**
+	 * Wait for the thread running the endpoint to terminate.
+	 * @throws InterruptedException
+	 */
+	public void awaitTermination() throws InterruptedException {
+		Thread thread = runner;
+		if(thread!=null) thread.join();
+	}
+	
+	/**
+	 * Send a Message on the socket for this endpoint. The message is encoded
+	 * and queued, and written later by the selector loop or by a writer task,
+	 * so the caller does not block on the socket. This is synchronized
+	 * to keep the messages in the order they were sent.
 	 * @param msg
-	 * @return true if the message was sent, false otherwise
+	 * @return true if the message was queued to be sent, false otherwise
 	 */
 	public synchronized boolean send(Message msg) {
 		if(stopped) return false;
+		ByteBuffer frame;
 		try {
 			log.info("sending "+msg.getName()+" for protocol "+msg.getProtocolName()+" to "+getOtherEndpointId());
-			out.writeUTF(msg.toJsonString());
-			out.flush();
+			frame = Framing.encode(msg,getCodec());
 		} catch (IOException e) {
+			// the message is too large for a legacy frame
 			manager.endpointDisconnectedAbruptly(this);
 			return false;
 		}
+		boolean startWriter;
+		synchronized(outbound) {
+			outbound.add(frame);
+			if(outbound.size()>=maxBatchSize) outbound.notify(); // stop lingering
+			startWriter = !writing && selectorLoop==null;
+			if(startWriter) writing=true;
+		}
+		if(selectorLoop!=null) {
+			selectorLoop.flush(this);
+		} else if(startWriter) {
+			Utils.getInstance().execute(this::writeOutbound);
+		}
 		return true;
 	}
 	
+	/**
+	 * Drain the outbound queue to the socket, in batches of up to
+	 * {@link #maxBatchSize} messages with a single flush per batch. Run by
+	 * a writer task, of which there is at most one per endpoint at a time.
+	 */
+	private void writeOutbound() {
+		List<ByteBuffer> batch = new ArrayList<>();
+		while(true) {
+			synchronized(outbound) {
+				if(maxLinger>0 && !stopped && outbound.size()<maxBatchSize) {
+					try {
+						outbound.wait(maxLinger); // wait for more messages
+					} catch (InterruptedException e) {
+						// just write what there is
+					}
+				}
+				while(batch.size()<maxBatchSize && !outbound.isEmpty()) {
+					batch.add(outbound.poll());
+				}
+				if(batch.isEmpty()) {
+					writing=false;
+					return;
+				}
+			}
+			try {
+				synchronized(writeLock) {
+					// close() writes whatever remains itself
+					if(out==null) return;
+					writeFrames(batch);
+				}
+			} catch (IOException e) {
+				synchronized(outbound) {
+					outbound.clear();
+					writing=false;
+				}
+				manager.endpointDisconnectedAbruptly(this);
+				return;
+			}
+			batch.clear();
+		}
+	}
+	
+	/**
+	 * Write frames to the out stream and flush it. The caller must hold
+	 * the write lock.
+	 * @param frames
+	 * @throws IOException
+	 */
+	private void writeFrames(Iterable<ByteBuffer> frames) throws IOException {
+		for(ByteBuffer frame : frames) {
+			out.write(frame.array(),frame.arrayOffset()+frame.position(),frame.remaining());
+		}
+		out.flush();
+	}
+	
+	/**
+	 * Set how outbound messages are batched.
+	 * @param maxBatchSize maximum number of messages to write in one batch
+	 * @param maxLinger maximum time in milliseconds to wait for more messages
+	 * before writing a batch that is not full, 0 to not wait
+	 */
+	public void setBatching(int maxBatchSize,long maxLinger) {
+		this.maxBatchSize=Math.max(1,maxBatchSize);
+		this.maxLinger=Math.max(0,maxLinger);
+	}
+	
+	/**
+	 * Set how outbound messages are batched by endpoints created from now on.
+	 * @see {@link #setBatching(int, long)}
+	 * @param maxBatchSize
+	 * @param maxLinger
+	 */
+	public static void setDefaultBatching(int maxBatchSize,long maxLinger) {
+		defaultMaxBatchSize=Math.max(1,maxBatchSize);
+		defaultMaxLinger=Math.max(0,maxLinger);
+	}
+	
+	/**
+	 * Hand the event callbacks of endpoints created from now on to the
+	 * given executor, so that reading messages is never held up by the
+	 * application. The events of each endpoint are still handled one at a
+	 * time and in order, while those of different endpoints are handled in
+	 * parallel.
+	 * @see {@link pb.utils.Eventable#setDispatchExecutor(Executor)}
+	 * @param executor the executor, or null to call the callbacks directly
+	 */
+	public static void setDefaultDispatchExecutor(Executor executor) {
+		defaultDispatchExecutor=executor;
+	}
+	
+	/**
+	 * 
+	 * @return the number of messages waiting to be written
+	 */
+	public int getOutboundQueueDepth() {
+		synchronized(outbound) {
+			return outbound.size();
+		}
+	}
+	
+	/**
+	 * 
+	 * @return the number of sent requests still waiting for a reply
+	 */
+	public int getOutstandingRequests() {
+		return outstandingIds.size();
+	}
+	
 	/**
 	 * Send a message and attach a timeout identifier to it. The callback
 	 * is triggered if no reply to the message was seen within the given
-	 * time interval.
+	 * time interval. The timeout is cancelled, and the callback released,
+	 * as soon as the reply is received.
 	 * @param msg
 	 * @param timeoutCallback
 	 * @param timeInterval
-	 * @return true if the message was sent and false otherwise
+	 * @return the timeout if the message was sent and null otherwise
 	 */
-	public synchronized boolean sendWithTimeout(Message msg,
+	public synchronized Timeout sendWithTimeout(Message msg,
 			ICallback timeoutCallback,int timeInterval) {
 		long nextId = timeoutId++;
-		synchronized(outstandingIds) {
-			outstandingIds.add(nextId);
-		}
 		msg.setTimeoutId(nextId);
-		boolean sent=send(msg);
-		if(!sent) return false;
-		Utils.getInstance().setTimeout(()->{
-			boolean timedout;
-			synchronized(outstandingIds) {
-				timedout=outstandingIds.contains(nextId);
-			}
-			if(timedout) timeoutCallback.callback();
+		// registered before sending, since the reply may come back straight away
+		Timeout timeout = Utils.getInstance().setTimeout(()->{
+			if(outstandingIds.remove(nextId)!=null) timeoutCallback.callback();
 		}, timeInterval);
-		return sent;
+		outstandingIds.put(nextId, timeout);
+		if(!send(msg)) {
+			outstandingIds.remove(nextId);
+			timeout.cancel();
+			return null;
+		}
+		return timeout;
 	}
 	
 	/**
@@ -175,13 +529,18 @@ public class Endpoint extends Eventable {
 		if(protocolNames!=null)
 			protocolNames.forEach((protocolName)->{stopProtocol(protocolName);});
 		
-		/*
-		 *  The endpoint thread itself will not process any more messages if we
-		 *  interrupt it.
-		 *  Note that it currently may be processing a message, indeed it may
-		 *  be this thread and interrupting itself.
-		 */
-		interrupt();
+		// no replies will be seen now, so let go of the outstanding timeouts
+		outstandingIds.values().forEach(Timeout::cancel);
+		outstandingIds.clear();
+		
+		if(selectorLoop!=null) {
+			// the selector loop closes the channel after writing what remains
+			closing=true;
+			selectorLoop.flush(this);
+			interruptRunner();
+			manager.endpointClosed(this);
+			return;
+		}
 		
 		/**
 		 * At this point there may be exactly one _currently executing_ timer
@@ -192,12 +551,26 @@ public class Endpoint extends Eventable {
 		 * The endpoint is at this point just "closing", not closed.
 		 */
 		
-		try {
-			if(out!=null) out.close();
+		synchronized(writeLock) {
+			try {
+				if(out!=null) {
+					// write any messages still queued, e.g. a reply to a session stop
+					List<ByteBuffer> remaining;
+					synchronized(outbound) {
+						remaining = new ArrayList<>(outbound);
+						outbound.clear();
+						outbound.notify();
+					}
+					writeFrames(remaining);
+					out.close();
+				}
+			} catch (IOException e) {
+				log.warning("connection did not close properly: "+e.getMessage());
+			}
 			out=null;
-		} catch (IOException e) {
-			log.warning("connection did not close properly: "+e.getMessage());
 		}
+		// only now that what was queued has been written
+		interruptRunner();
 		try {
 			socket.close();
 		} catch (IOException e) {
@@ -206,6 +579,17 @@ public class Endpoint extends Eventable {
 		manager.endpointClosed(this);
 	}
 	
+	/**
+	 * The endpoint thread itself will not process any more messages if we
+	 * interrupt it. Note that it currently may be processing a message, indeed
+	 * it may be this thread and interrupting itself.
+	 */
+	private void interruptRunner() {
+		interrupt();
+		Thread thread = runner;
+		if(thread!=null && thread!=Thread.currentThread()) thread.interrupt();
+	}
+	
 	/**
 	 * Continue to read messages from the socket until interrupted.
 	 */
@@ -213,7 +597,9 @@ public class Endpoint extends Eventable {
 	public void run() {
 		try {
 			in = new DataInputStream(socket.getInputStream());
-			out = new DataOutputStream(socket.getOutputStream());
+			synchronized(writeLock) {
+				out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),writeBufferSize));
+			}
 		} catch (IOException e){
 			manager.endpointDisconnectedAbruptly(this);
 			return;
@@ -221,46 +607,9 @@ public class Endpoint extends Eventable {
 		stopped=false; // allow use of the out stream
 		manager.endpointReady(this);
 		log.info("endpoint has started to: "+getOtherEndpointId());
-		while(!isInterrupted()) {
+		while(!stopped && !Thread.currentThread().isInterrupted()) {
 			try {
-				String line=in.readUTF();
-				Message msg = Message.toMessage(line);
-				// cancel any related time out
-				if(msg.getType()==Message.Type.Reply) {
-					synchronized(outstandingIds) {
-						outstandingIds.remove(msg.getTimeoutId());
-					}
-				}
-				// find the protocol
-				Protocol protocol=null;
-				synchronized(protocols) {
-					protocol=protocols.get(msg.getProtocolName());
-				}
-				if(protocol==null) {
-					switch(msg.getProtocolName()) {
-					case SessionProtocol.protocolName:
-						protocol=new SessionProtocol(this,(ISessionProtocolHandler)manager);
-						break;
-					case KeepAliveProtocol.protocolName:
-						protocol=new KeepAliveProtocol(this,(IKeepAliveProtocolHandler)manager);
-						break;
-					case EventProtocol.protocolName:
-						protocol=new EventProtocol(this,(IEventProtocolHandler)manager);
-					}
-					if(!manager.protocolRequested(this,protocol)) {
-						log.info("message dropped due to no protocol available: "+line);
-						continue;
-					}
-				}
-				log.info("received "+msg.getName()+" for protocol "+msg.getProtocolName()+" from "+getOtherEndpointId());
-				switch(msg.getType()) {
-				case Request:
-					((IRequestReplyProtocol)protocol).receiveRequest(msg);
-					break;
-				case Reply:
-					((IRequestReplyProtocol)protocol).receiveReply(msg);
-					break;
-				}
+				receive(readFrame());
 			} catch (IOException e) {
 				manager.endpointDisconnectedAbruptly(this);
 				// we can't continue here
@@ -268,6 +617,10 @@ public class Endpoint extends Eventable {
 			} catch (InvalidMessage e) {
 				manager.endpointSentInvalidMessage(this);
 				// up to the client what to do
+			} catch (RuntimeException | StackOverflowError e) {
+				log.severe("error handling a message from "+getOtherEndpointId()+": "+e);
+				manager.endpointDisconnectedAbruptly(this);
+				break;
 			}
 		}
 		try {
@@ -278,6 +631,124 @@ public class Endpoint extends Eventable {
 		log.info("endpoint has terminated to: "+getOtherEndpointId());
 	}
 	
+	/**
+	 * Read the next frame from the socket into the read buffer, which is
+	 * reused from one message to the next.
+	 * @see {@link pb.managers.endpoint.Framing}
+	 * @return the message
+	 * @throws IOException
+	 * @throws InvalidMessage if the frame does not hold a valid message
+	 */
+	private Message readFrame() throws IOException, InvalidMessage {
+		int length = in.readUnsignedShort();
+		if(length!=Framing.marker) {
+			byte[] buffer = readBuffer(2+length);
+			buffer[0] = (byte)(length>>>8);
+			buffer[1] = (byte)length;
+			in.readFully(buffer,2,length);
+			return Framing.decodeLegacy(buffer,0,2+length);
+		}
+		byte type = in.readByte();
+		int size = Framing.checkSize(in.readInt(),frameLimit);
+		byte[] buffer = readBuffer(size);
+		in.readFully(buffer,0,size);
+		try {
+			return Framing.decode(type,buffer,0,size);
+		} finally {
+			// don't hold on to the space used by a large message
+			if(readBuffer.length>maxKeptReadBufferSize) readBuffer=new byte[initialReadBufferSize];
+		}
+	}
+	
+	/**
+	 * 
+	 * @return the codec to send messages with, according to the negotiated
+	 * features, or null to send legacy frames
+	 */
+	private MessageCodec getCodec() {
+		if(!features.contains(framesFeature)) return null;
+		if(features.contains(binaryFeature)) return Framing.getCodec(BinaryCodec.frameType);
+		return Framing.getCodec(JsonCodec.frameType);
+	}
+	
+	/**
+	 * 
+	 * @param size
+	 * @return the read buffer, enlarged if needed to hold size bytes
+	 */
+	private byte[] readBuffer(int size) {
+		if(readBuffer.length<size) {
+			readBuffer = new byte[Math.max(size,readBuffer.length*2)];
+		}
+		return readBuffer;
+	}
+	
+	/**
+	 * Process a message received from the other endpoint, by passing
+	 * it to the appropriate protocol.
+	 * @param msg the received message
+	 */
+	void receive(Message msg) {
+		// cancel any related time out
+		if(msg.getType()==Message.Type.Reply) {
+			Timeout timeout = outstandingIds.remove(msg.getTimeoutId());
+			if(timeout!=null) timeout.cancel();
+		}
+		// find the protocol
+		Protocol protocol=null;
+		synchronized(protocols) {
+			protocol=protocols.get(msg.getProtocolName());
+		}
+		if(protocol==null) {
+			switch(msg.getProtocolName()) {
+			case SessionProtocol.protocolName:
+				protocol=new SessionProtocol(this,(ISessionProtocolHandler)manager);
+				break;
+			case KeepAliveProtocol.protocolName:
+				protocol=new KeepAliveProtocol(this,(IKeepAliveProtocolHandler)manager);
+				break;
+			case EventProtocol.protocolName:
+				protocol=new EventProtocol(this,(IEventProtocolHandler)manager);
+			}
+			if(!manager.protocolRequested(this,protocol)) {
+				log.info("message dropped due to no protocol available: "+msg.toJsonString());
+				return;
+			}
+		}
+		log.info("received "+msg.getName()+" for protocol "+msg.getProtocolName()+" from "+getOtherEndpointId());
+		switch(msg.getType()) {
+		case Request:
+			((IRequestReplyProtocol)protocol).receiveRequest(msg);
+			break;
+		case Reply:
+			((IRequestReplyProtocol)protocol).receiveReply(msg);
+			break;
+		}
+	}
+	
+	/**
+	 * Called by the selector loop once the channel is registered.
+	 */
+	void ready() {
+		stopped=false; // allow use of the channel
+		manager.endpointReady(this);
+		log.info("endpoint has started to: "+getOtherEndpointId());
+	}
+	
+	/**
+	 * Called by the selector loop when the channel fails.
+	 */
+	void disconnected() {
+		manager.endpointDisconnectedAbruptly(this);
+	}
+	
+	/**
+	 * Called by the selector loop when an invalid message is received.
+	 */
+	void invalidMessage() {
+		manager.endpointSentInvalidMessage(this);
+	}
+	
 	/**
 	 * Start handling a protocol. Only one instance of a protocol can be handled
 	 * at a time. Either client or server may start/initiate the use of the protocol.
@@ -314,6 +785,51 @@ public class Endpoint extends Eventable {
 		}
 	}
 	
+	/**
+	 * 
+	 * @return the features this endpoint supports, to offer to the other endpoint
+	 */
+	public List<String> getSupportedFeatures() {
+		return supportedFeatures;
+	}
+	
+	/**
+	 * Work out which of the features offered by the other endpoint will be used.
+	 * @param offered the features the other endpoint supports
+	 * @return the features that both endpoints support
+	 */
+	public List<String> negotiateFeatures(List<String> offered) {
+		List<String> accepted = new ArrayList<>(offered);
+		accepted.retainAll(supportedFeatures);
+		return accepted;
+	}
+	
+	/**
+	 * Start using features that have been negotiated with the other endpoint,
+	 * as the session starts. Features that this endpoint does not support are
+	 * ignored.
+	 * @param accepted the features that both endpoints support
+	 */
+	public void enableFeatures(List<String> accepted) {
+		// the session has started, so larger frames are accepted from now on
+		frameLimit=Framing.maxFrameSize;
+		for(String feature : accepted) {
+			if(supportedFeatures.contains(feature)) {
+				features.add(feature);
+				log.info("using feature "+feature+" with "+getOtherEndpointId());
+			}
+		}
+	}
+	
+	/**
+	 * 
+	 * @param feature
+	 * @return true if the feature is being used with the other endpoint
+	 */
+	public boolean hasFeature(String feature) {
+		return features.contains(feature);
+	}
+	
 	/**
 	 * 
 	 * @return the id of the other endpoint
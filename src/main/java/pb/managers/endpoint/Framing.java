@@ -0,0 +1,190 @@
+package pb.managers.endpoint;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import pb.protocols.BinaryCodec;
+import pb.protocols.InvalidMessage;
+import pb.protocols.JsonCodec;
+import pb.protocols.Message;
+import pb.protocols.MessageCodec;
+
+/**
+ * How messages are framed on the socket. There are two kinds of frames:
+ * <ul>
+ * <li>legacy frames, as written by {@link java.io.DataOutputStream#writeUTF(String)},
+ * i.e. an unsigned short length followed by that many bytes of modified
+ * UTF-8, which limits a message to 65535 bytes;</li>
+ * <li>length prefixed frames, which start with a zero unsigned short (an empty
+ * legacy frame is never a valid message), followed by a byte giving the type
+ * of the payload, an int length and then the payload itself. The type says
+ * which {@link pb.protocols.MessageCodec} encoded the message, e.g. JSON as
+ * plain UTF-8 text or the compact binary encoding.</li>
+ * </ul>
+ * Both kinds of frame are always accepted when reading, so the sender can
+ * switch to length prefixed frames as soon as it knows that the other endpoint
+ * understands them, see {@link pb.managers.endpoint.Endpoint#framesFeature}.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint}
+ * @see {@link pb.managers.endpoint.SelectorLoop}
+ * @author aaron
+ *
+ */
+public final class Framing {
+
+	/**
+	 * Marker that starts a length prefixed frame.
+	 */
+	public static final int marker = 0;
+
+	/**
+	 * Size of the header of a length prefixed frame: marker, type and length.
+	 */
+	public static final int headerSize = 2+1+4;
+
+	/**
+	 * Largest payload that will be accepted in a length prefixed frame.
+	 */
+	public static final int maxFrameSize = 256*1024*1024;
+
+	/**
+	 * Largest payload that will be accepted in a length prefixed frame
+	 * before the session has started, when nothing is known about the
+	 * other endpoint.
+	 */
+	public static final int preSessionFrameSize = 4*1024*1024;
+
+	/**
+	 * The codecs that can be used in a length prefixed frame, indexed
+	 * by frame type.
+	 */
+	private static final MessageCodec[] codecs = { new JsonCodec(), new BinaryCodec() };
+
+	private Framing() {
+
+	}
+
+	/**
+	 * 
+	 * @param frameType
+	 * @return the codec for the frame type
+	 */
+	public static MessageCodec getCodec(byte frameType) {
+		return codecs[frameType];
+	}
+
+	/**
+	 * Encode a message into a frame.
+	 * @param msg the message
+	 * @param codec the codec for a length prefixed frame, or null for a legacy frame
+	 * @return the frame, ready to be written
+	 * @throws IOException if a legacy frame can't hold the message
+	 */
+	public static ByteBuffer encode(Message msg,MessageCodec codec) throws IOException {
+		if(codec==null) {
+			String json = msg.toJsonString();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(json.length()+2);
+			new DataOutputStream(bytes).writeUTF(json);
+			return ByteBuffer.wrap(bytes.toByteArray());
+		}
+		byte[] payload = codec.encode(msg);
+		ByteBuffer frame = ByteBuffer.allocate(headerSize+payload.length);
+		frame.putShort((short)marker).put(codec.getFrameType()).putInt(payload.length).put(payload);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Work out the size of the frame at the buffer's position, without
+	 * changing the position.
+	 * @param in buffer in read mode
+	 * @param limit largest payload to accept
+	 * @return the total size of the frame, or -1 if not enough of the frame
+	 * is in the buffer to know
+	 * @throws IOException if the payload is larger than the limit
+	 */
+	public static int frameSize(ByteBuffer in,int limit) throws IOException {
+		if(in.remaining()<2) return -1;
+		int length = in.getShort(in.position()) & 0xffff;
+		if(length!=marker) return 2+length;
+		if(in.remaining()<headerSize) return -1;
+		return headerSize+checkSize(in.getInt(in.position()+3),limit);
+	}
+
+	/**
+	 * Decode the complete frame at the buffer's position, and move the
+	 * position past it.
+	 * @param in buffer in read mode, backed by an array
+	 * @param frameSize the size given by {@link #frameSize(ByteBuffer,int)}
+	 * @return the message
+	 * @throws InvalidMessage if the frame does not hold a valid message
+	 */
+	public static Message decode(ByteBuffer in,int frameSize) throws InvalidMessage {
+		int position = in.position();
+		in.position(position+frameSize);
+		byte[] array = in.array();
+		int offset = in.arrayOffset()+position;
+		if((in.getShort(position) & 0xffff)!=marker) {
+			return decodeLegacy(array,offset,frameSize);
+		}
+		return decode(in.get(position+2),array,offset+headerSize,frameSize-headerSize);
+	}
+
+	/**
+	 * Decode the payload of a length prefixed frame.
+	 * @param frameType the type of the frame
+	 * @param payload array holding the payload
+	 * @param offset where the payload starts
+	 * @param size size of the payload
+	 * @return the message
+	 * @throws InvalidMessage if the frame type is unknown or the payload is not a valid message
+	 */
+	public static Message decode(byte frameType,byte[] payload,int offset,int size) throws InvalidMessage {
+		if(frameType<0 || frameType>=codecs.length) throw new InvalidMessage();
+		try {
+			return codecs[frameType].decode(payload,offset,size);
+		} catch (RuntimeException e) {
+			// whatever the other endpoint sent, it is just not a valid message
+			throw new InvalidMessage();
+		}
+	}
+
+	/**
+	 * Decode a legacy frame.
+	 * @param frame array holding the frame, including its two byte length
+	 * @param offset where the frame starts
+	 * @param frameSize size of the frame, including its two byte length
+	 * @return the message
+	 * @throws InvalidMessage if the modified UTF-8 is malformed or is not a valid message
+	 */
+	public static Message decodeLegacy(byte[] frame,int offset,int frameSize) throws InvalidMessage {
+		String json;
+		try {
+			json = DataInputStream.readUTF(new DataInputStream(
+					new ByteArrayInputStream(frame,offset,frameSize)));
+		} catch (IOException e) {
+			throw new InvalidMessage();
+		}
+		try {
+			return Message.toMessage(json);
+		} catch (RuntimeException e) {
+			throw new InvalidMessage();
+		}
+	}
+
+	/**
+	 * Check that the payload size of a length prefixed frame is acceptable.
+	 * @param size
+	 * @param limit largest size to accept
+	 * @return the size
+	 * @throws IOException if the size is negative or larger than the limit
+	 */
+	public static int checkSize(int size,int limit) throws IOException {
+		if(size<0 || size>limit) throw new IOException("frame size not accepted: "+size);
+		return size;
+	}
+}
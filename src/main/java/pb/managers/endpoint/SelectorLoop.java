@@ -0,0 +1,305 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+import pb.protocols.InvalidMessage;
+
+/**
+ * A selector event loop that reads, frames and dispatches messages for
+ * any number of non-blocking endpoints, and writes their queued outbound
+ * data when the sockets are writable. A small pool of these loops replaces
+ * the thread-per-connection model of {@link pb.managers.endpoint.Endpoint}
+ * when the {@link pb.managers.ServerManager} is configured to use selectors.
+ * All protocol and manager callbacks for an endpoint are made on the loop
+ * thread that the endpoint is registered with, so callbacks must not block.
+ * An endpoint whose handling throws is closed on its own, and the loop keeps
+ * going for the others.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint}
+ * @see {@link pb.managers.ServerManager}
+ * @author aaron
+ *
+ */
+public class SelectorLoop extends Thread {
+	private static Logger log = Logger.getLogger(SelectorLoop.class.getName());
+
+	/**
+	 * Initial size of the read buffer of each endpoint, it grows when
+	 * a larger message arrives.
+	 */
+	private static final int initialBufferSize = 4*1024;
+
+	/**
+	 * The selector for all of the channels handled by this loop.
+	 */
+	private final Selector selector;
+
+	/**
+	 * Endpoints waiting to be registered with the selector.
+	 */
+	private final Queue<Endpoint> registrations;
+
+	/**
+	 * Endpoints that have queued outbound data or that want to be closed.
+	 */
+	private final Queue<Endpoint> pending;
+
+	/**
+	 * Set when the loop should terminate.
+	 */
+	private volatile boolean shutdown=false;
+
+	/**
+	 * Initialise the loop with a name for its thread.
+	 * @param name
+	 * @throws IOException if the selector can't be opened
+	 */
+	public SelectorLoop(String name) throws IOException {
+		selector = Selector.open();
+		registrations = new ConcurrentLinkedQueue<>();
+		pending = new ConcurrentLinkedQueue<>();
+		setName(name);
+	}
+
+	/**
+	 * Add an endpoint to this loop. The endpoint becomes ready once the loop
+	 * has registered its channel.
+	 * @param endpoint
+	 */
+	void register(Endpoint endpoint) {
+		registrations.add(endpoint);
+		selector.wakeup();
+	}
+
+	/**
+	 * Tell the loop that the endpoint has queued outbound data, or is closing.
+	 * When called from the loop thread itself the data is written straight away.
+	 * @param endpoint
+	 */
+	void flush(Endpoint endpoint) {
+		if(Thread.currentThread()==this) {
+			write(endpoint);
+		} else {
+			pending.add(endpoint);
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Stop the loop. Any remaining channels are closed.
+	 */
+	public void shutDown() {
+		shutdown=true;
+		selector.wakeup();
+	}
+
+	/**
+	 * Select on the channels and process them until shutdown.
+	 */
+	@Override
+	public void run() {
+		log.info("selector loop started: "+getName());
+		while(!shutdown) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				log.severe("selector failed: "+e.getMessage());
+				break;
+			}
+			Endpoint endpoint;
+			while((endpoint=registrations.poll())!=null) {
+				try {
+					accept(endpoint);
+				} catch (RuntimeException | StackOverflowError e) {
+					failed(endpoint,e);
+				}
+			}
+			while((endpoint=pending.poll())!=null) {
+				try {
+					write(endpoint);
+				} catch (RuntimeException | StackOverflowError e) {
+					failed(endpoint,e);
+				}
+			}
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while(keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				try {
+					if(key.isValid() && key.isReadable()) read(key);
+					if(key.isValid() && key.isWritable()) write((Endpoint)key.attachment());
+				} catch (RuntimeException | StackOverflowError e) {
+					failed((Endpoint)key.attachment(),e);
+				}
+			}
+		}
+		for(SelectionKey key : selector.keys()) {
+			closeChannel((Endpoint)key.attachment());
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			log.warning("selector did not close properly: "+e.getMessage());
+		}
+		log.info("selector loop terminated: "+getName());
+	}
+
+	/**
+	 * Register the endpoint's channel for reading and tell the endpoint
+	 * it is ready.
+	 * @param endpoint
+	 */
+	private void accept(Endpoint endpoint) {
+		if(endpoint.closing) {
+			closeChannel(endpoint);
+			return;
+		}
+		try {
+			endpoint.channel.configureBlocking(false);
+			endpoint.inbound = ByteBuffer.allocate(initialBufferSize);
+			endpoint.key = endpoint.channel.register(selector, SelectionKey.OP_READ, endpoint);
+		} catch (IOException e) {
+			endpoint.disconnected();
+			return;
+		}
+		endpoint.ready();
+	}
+
+	/**
+	 * Read whatever is available on the channel and dispatch each complete
+	 * message to the endpoint. Both legacy and length prefixed frames are
+	 * understood, so that any peer can talk to us.
+	 * @see {@link pb.managers.endpoint.Framing}
+	 * @param key
+	 */
+	private void read(SelectionKey key) {
+		Endpoint endpoint = (Endpoint) key.attachment();
+		int read;
+		try {
+			read = endpoint.channel.read(endpoint.inbound);
+		} catch (IOException e) {
+			read = -1;
+		}
+		if(read==-1) {
+			closeChannel(endpoint);
+			endpoint.disconnected();
+			return;
+		}
+		ByteBuffer in = endpoint.inbound;
+		in.flip();
+		int needed;
+		while(true) {
+			int frameSize;
+			try {
+				frameSize = Framing.frameSize(in,endpoint.frameLimit);
+			} catch (IOException e) {
+				closeChannel(endpoint);
+				endpoint.disconnected();
+				return;
+			}
+			if(frameSize==-1 || in.remaining()<frameSize) {
+				needed = Math.max(frameSize,Framing.headerSize);
+				if(needed>in.capacity()) {
+					// grow the buffer to fit the message
+					ByteBuffer bigger = ByteBuffer.allocate(needed);
+					bigger.put(in);
+					bigger.flip();
+					endpoint.inbound = in = bigger;
+				}
+				break;
+			}
+			try {
+				endpoint.receive(Framing.decode(in,frameSize));
+			} catch (InvalidMessage e) {
+				endpoint.invalidMessage();
+			}
+			if(!key.isValid() || endpoint.closing) {
+				// the endpoint was closed while processing the message
+				return;
+			}
+		}
+		if(in.capacity()>initialBufferSize && needed<=initialBufferSize) {
+			// don't hold on to the space used by a large message
+			ByteBuffer smaller = ByteBuffer.allocate(initialBufferSize);
+			smaller.put(in);
+			endpoint.inbound = smaller;
+		} else {
+			in.compact();
+		}
+	}
+
+	/**
+	 * Write as much queued outbound data as the channel will take, using
+	 * a single gathering write, and close the channel if the endpoint is
+	 * closing and everything has been written.
+	 * @param endpoint
+	 */
+	private void write(Endpoint endpoint) {
+		SelectionKey key = endpoint.key;
+		if(key==null || !key.isValid()) return;
+		boolean done;
+		synchronized(endpoint.outbound) {
+			try {
+				if(!endpoint.outbound.isEmpty()) {
+					ByteBuffer[] buffers = endpoint.outbound.toArray(new ByteBuffer[0]);
+					endpoint.channel.write(buffers);
+					while(!endpoint.outbound.isEmpty() && !endpoint.outbound.peek().hasRemaining()) {
+						endpoint.outbound.poll();
+					}
+				}
+			} catch (IOException e) {
+				endpoint.outbound.clear();
+				closeChannel(endpoint);
+				if(!endpoint.closing) endpoint.disconnected();
+				return;
+			}
+			done = endpoint.outbound.isEmpty();
+		}
+		if(done && endpoint.closing) {
+			closeChannel(endpoint);
+		} else {
+			key.interestOps(done ? SelectionKey.OP_READ : SelectionKey.OP_READ|SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Close an endpoint whose handling threw, leaving the other endpoints of
+	 * the loop as they are.
+	 * @param endpoint
+	 * @param e what was thrown
+	 */
+	private void failed(Endpoint endpoint,Throwable e) {
+		log.severe("closing endpoint after an error handling it: "+e);
+		closeChannel(endpoint);
+		if(endpoint.closing) return;
+		try {
+			endpoint.disconnected();
+		} catch (RuntimeException | StackOverflowError e2) {
+			log.severe("error handling the disconnection of an endpoint: "+e2);
+		}
+	}
+
+	/**
+	 * Deregister and close the endpoint's channel.
+	 * @param endpoint
+	 */
+	private void closeChannel(Endpoint endpoint) {
+		if(endpoint.key!=null) endpoint.key.cancel();
+		try {
+			endpoint.channel.close();
+		} catch (ClosedChannelException e) {
+			// already closed
+		} catch (IOException e) {
+			log.warning("channel did not close properly: "+e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,332 @@
+package pb.protocols;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import pb.protocols.event.EventProtocol;
+import pb.protocols.event.EventReply;
+import pb.protocols.event.EventRequest;
+import pb.protocols.keepalive.KeepAliveProtocol;
+import pb.protocols.keepalive.KeepAliveReply;
+import pb.protocols.keepalive.KeepAliveRequest;
+import pb.protocols.session.SessionProtocol;
+import pb.protocols.session.SessionStartReply;
+import pb.protocols.session.SessionStartRequest;
+import pb.protocols.session.SessionStopReply;
+import pb.protocols.session.SessionStopRequest;
+
+/**
+ * Encodes messages in a compact binary form, avoiding the JSON text
+ * conversion on both sides. The encoding of a document is:
+ * <ul>
+ * <li>the number of fields, as a varint;</li>
+ * <li>for each field, its key as a varint id into {@link #keys}, or 0
+ * followed by the key as a string;</li>
+ * <li>then a tag byte giving the type of the value, followed by the value.
+ * Numbers are zigzag varints, strings are a varint length and UTF-8, and
+ * well known strings such as message and protocol names are a varint id
+ * into {@link #values}. Byte arrays are a varint length and the raw bytes,
+ * rather than the Base64 string they are in JSON.</li>
+ * </ul>
+ * The interned tables are part of the wire format, so entries may only ever
+ * be appended to them. Documents and lists may be nested at most
+ * {@link #maxDepth} deep when decoding, and their sizes are checked against
+ * the bytes that remain, so bad input is only ever an {@link InvalidMessage}.
+ *
+ * @see {@link pb.protocols.MessageCodec}
+ * @author aaron
+ *
+ */
+public class BinaryCodec implements MessageCodec {
+
+	/**
+	 * Frame type of binary encoded messages.
+	 */
+	public static final byte frameType = 1;
+
+	/**
+	 * Deepest that documents and lists may be nested in a decoded message.
+	 */
+	public static final int maxDepth = 32;
+
+	/**
+	 * Interned keys, the id of a key is its index plus one.
+	 */
+	private static final List<String> keys = List.of(
+			"name","protocolName","type","timeoutId",
+			"eventName","eventData","features",
+			"seq","ack","eventBytes");
+
+	/**
+	 * Interned string values, the id of a value is its index.
+	 */
+	private static final List<String> values = List.of(
+			Message.Type.Request.toString(),Message.Type.Reply.toString(),
+			SessionProtocol.protocolName,KeepAliveProtocol.protocolName,EventProtocol.protocolName,
+			SessionStartRequest.name,SessionStartReply.name,
+			SessionStopRequest.name,SessionStopReply.name,
+			KeepAliveRequest.name,KeepAliveReply.name,
+			EventRequest.name,EventReply.name);
+
+	/*
+	 * Value tags
+	 */
+	private static final byte nullTag = 0;
+	private static final byte stringTag = 1;
+	private static final byte internedTag = 2;
+	private static final byte longTag = 3;
+	private static final byte trueTag = 4;
+	private static final byte falseTag = 5;
+	private static final byte doubleTag = 6;
+	private static final byte documentTag = 7;
+	private static final byte listTag = 8;
+	private static final byte bytesTag = 9;
+
+	/**
+	 * Lookups from key and value to id.
+	 */
+	private static final Map<String,Integer> keyIds = new HashMap<>();
+	private static final Map<String,Integer> valueIds = new HashMap<>();
+
+	static {
+		for(int i=0;i<keys.size();i++) keyIds.put(keys.get(i), i+1);
+		for(int i=0;i<values.size();i++) valueIds.put(values.get(i), i);
+	}
+
+	@Override
+	public byte getFrameType() {
+		return frameType;
+	}
+
+	@Override
+	public byte[] encode(Message msg) {
+		Writer writer = new Writer();
+		writeDocument(writer,msg.doc.obj);
+		return writer.toByteArray();
+	}
+
+	@Override
+	public Message decode(byte[] buffer, int offset, int length) throws InvalidMessage {
+		Reader reader = new Reader(buffer,offset,offset+length);
+		JSONObject obj = readDocument(reader,0);
+		if(reader.pos!=reader.end) throw new InvalidMessage();
+		return Message.toMessage(new Document(obj));
+	}
+
+	private static void writeDocument(Writer writer,Map<?,?> obj) {
+		writer.writeVarint(obj.size());
+		for(Map.Entry<?,?> entry : obj.entrySet()) {
+			String key = (String) entry.getKey();
+			Integer id = keyIds.get(key);
+			if(id!=null) {
+				writer.writeVarint(id);
+			} else {
+				writer.writeVarint(0);
+				writer.writeString(key);
+			}
+			writeValue(writer,entry.getValue());
+		}
+	}
+
+	private static void writeValue(Writer writer,Object value) {
+		if(value==null) {
+			writer.write(nullTag);
+		} else if(value instanceof String) {
+			Integer id = valueIds.get(value);
+			if(id!=null) {
+				writer.write(internedTag);
+				writer.writeVarint(id);
+			} else {
+				writer.write(stringTag);
+				writer.writeString((String) value);
+			}
+		} else if(value instanceof Long || value instanceof Integer) {
+			writer.write(longTag);
+			long l = ((Number) value).longValue();
+			writer.writeVarint((l << 1) ^ (l >> 63));
+		} else if(value instanceof Boolean) {
+			writer.write((Boolean) value ? trueTag : falseTag);
+		} else if(value instanceof Double) {
+			writer.write(doubleTag);
+			long bits = Double.doubleToLongBits((Double) value);
+			for(int i=56;i>=0;i-=8) writer.write((byte)(bits >>> i));
+		} else if(value instanceof Document.Bytes) {
+			Document.Bytes bytes = (Document.Bytes) value;
+			writer.write(bytesTag);
+			writer.writeVarint(bytes.length);
+			writer.write(bytes);
+		} else if(value instanceof Map) {
+			writer.write(documentTag);
+			writeDocument(writer,(Map<?,?>) value);
+		} else if(value instanceof List) {
+			List<?> list = (List<?>) value;
+			writer.write(listTag);
+			writer.writeVarint(list.size());
+			for(Object o : list) writeValue(writer,o);
+		} else {
+			// same as JSON would do with it
+			writer.write(stringTag);
+			writer.writeString(value.toString());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static JSONObject readDocument(Reader reader,int depth) throws InvalidMessage {
+		if(depth>maxDepth) throw new InvalidMessage();
+		JSONObject obj = new JSONObject();
+		// each field is at least a key id and a tag
+		long fields = reader.readVarint();
+		if(fields<0 || fields>reader.remaining()/2) throw new InvalidMessage();
+		for(long i=0;i<fields;i++) {
+			long id = reader.readVarint();
+			String key;
+			if(id==0) {
+				key = reader.readString();
+			} else if(id>0 && id<=keys.size()) {
+				key = keys.get((int) id-1);
+			} else {
+				throw new InvalidMessage();
+			}
+			obj.put(key,readValue(reader,depth));
+		}
+		return obj;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object readValue(Reader reader,int depth) throws InvalidMessage {
+		byte tag = reader.read();
+		switch(tag) {
+		case nullTag: return null;
+		case stringTag: return reader.readString();
+		case internedTag:
+			long id = reader.readVarint();
+			if(id<0 || id>=values.size()) throw new InvalidMessage();
+			return values.get((int) id);
+		case longTag:
+			long l = reader.readVarint();
+			return Long.valueOf((l >>> 1) ^ -(l & 1));
+		case trueTag: return Boolean.TRUE;
+		case falseTag: return Boolean.FALSE;
+		case doubleTag:
+			long bits = 0;
+			for(int i=0;i<8;i++) bits = (bits << 8) | (reader.read() & 0xff);
+			return Double.longBitsToDouble(bits);
+		case documentTag: return readDocument(reader,depth+1);
+		case listTag:
+			if(depth+1>maxDepth) throw new InvalidMessage();
+			// each item is at least a tag
+			long size = reader.readVarint();
+			if(size<0 || size>reader.remaining()) throw new InvalidMessage();
+			JSONArray list = new JSONArray();
+			for(long i=0;i<size;i++) list.add(readValue(reader,depth+1));
+			return list;
+		case bytesTag: return reader.readBytes();
+		default: throw new InvalidMessage();
+		}
+	}
+
+	/**
+	 * Growable output buffer.
+	 */
+	private static class Writer {
+		private byte[] buf = new byte[128];
+		private int pos = 0;
+
+		void write(byte b) {
+			ensure(1);
+			buf[pos++] = b;
+		}
+
+		void writeVarint(long v) {
+			ensure(10);
+			while((v & ~0x7fL)!=0) {
+				buf[pos++] = (byte)((v & 0x7f) | 0x80);
+				v >>>= 7;
+			}
+			buf[pos++] = (byte) v;
+		}
+
+		void writeString(String s) {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			writeVarint(bytes.length);
+			write(bytes,0,bytes.length);
+		}
+		
+		void write(byte[] bytes,int offset,int length) {
+			ensure(length);
+			System.arraycopy(bytes,offset,buf,pos,length);
+			pos += length;
+		}
+
+		void write(Document.Bytes bytes) {
+			ensure(bytes.length);
+			bytes.copyTo(buf,pos);
+			pos += bytes.length;
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(buf,pos);
+		}
+
+		private void ensure(int n) {
+			if(pos+n>buf.length) buf = Arrays.copyOf(buf,Math.max(pos+n,buf.length*2));
+		}
+	}
+
+	/**
+	 * Bounds checked input buffer.
+	 */
+	private static class Reader {
+		private final byte[] buf;
+		private int pos;
+		private final int end;
+
+		Reader(byte[] buf,int pos,int end) {
+			this.buf = buf;
+			this.pos = pos;
+			this.end = end;
+		}
+
+		int remaining() {
+			return end-pos;
+		}
+
+		byte read() throws InvalidMessage {
+			if(pos>=end) throw new InvalidMessage();
+			return buf[pos++];
+		}
+
+		long readVarint() throws InvalidMessage {
+			long v = 0;
+			for(int shift=0;shift<64;shift+=7) {
+				byte b = read();
+				v |= (long)(b & 0x7f) << shift;
+				if((b & 0x80)==0) return v;
+			}
+			throw new InvalidMessage();
+		}
+
+		String readString() throws InvalidMessage {
+			long length = readVarint();
+			if(length<0 || length>end-pos) throw new InvalidMessage();
+			String s = new String(buf,pos,(int)length,StandardCharsets.UTF_8);
+			pos += (int) length;
+			return s;
+		}
+		
+		Document.Bytes readBytes() throws InvalidMessage {
+			long length = readVarint();
+			if(length<0 || length>end-pos) throw new InvalidMessage();
+			// copied, since the buffer is reused for the next frame
+			byte[] bytes = Arrays.copyOfRange(buf,pos,pos+(int)length);
+			pos += (int) length;
+			return new Document.Bytes(bytes,0,bytes.length);
+		}
+	}
+}
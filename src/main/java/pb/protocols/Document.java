@@ -1,8 +1,12 @@
 package pb.protocols;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 
+import org.apache.commons.codec.binary.Base64;
 import org.json.simple.JSONArray;
+import org.json.simple.JSONAware;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
@@ -34,6 +38,61 @@ public class Document {
 	
 	protected JSONObject obj;
 	
+	/**
+	 * A byte array value, or the bytes of a buffer that is not backed by
+	 * an array, e.g. a mapped file. It is written as raw bytes by the
+	 * {@link pb.protocols.BinaryCodec}, and as a Base64 string in JSON,
+	 * which is turned back into bytes by {@link Document#getBytes(String)}.
+	 */
+	static class Bytes implements JSONAware {
+		final byte[] array;
+		final int offset;
+		final int length;
+		final ByteBuffer buffer;
+		
+		Bytes(byte[] array,int offset,int length) {
+			this.array = array;
+			this.offset = offset;
+			this.length = length;
+			buffer = null;
+		}
+		
+		Bytes(ByteBuffer buffer) {
+			array = null;
+			offset = 0;
+			length = buffer.remaining();
+			this.buffer = buffer;
+		}
+		
+		byte[] toByteArray() {
+			if(buffer!=null) {
+				byte[] bytes = new byte[length];
+				buffer.duplicate().get(bytes);
+				return bytes;
+			}
+			if(offset==0 && length==array.length) return array;
+			return Arrays.copyOfRange(array, offset, offset+length);
+		}
+		
+		/**
+		 * Copy the bytes into an array.
+		 * @param dest
+		 * @param pos where to copy them to
+		 */
+		void copyTo(byte[] dest,int pos) {
+			if(buffer!=null) {
+				buffer.duplicate().get(dest,pos,length);
+			} else {
+				System.arraycopy(array,offset,dest,pos,length);
+			}
+		}
+		
+		@Override
+		public String toJSONString() {
+			return "\""+Base64.encodeBase64String(toByteArray())+"\"";
+		}
+	}
+	
 	public Document(){
 		obj=new JSONObject();
 	}
@@ -74,6 +133,39 @@ public class Document {
 		obj.put(key,list);
 	}
 	
+	/**
+	 * Append a byte array, without copying it, so it must not be modified
+	 * until the document has been sent.
+	 * @param key
+	 * @param val
+	 * @param offset where the bytes start in the array
+	 * @param length how many bytes
+	 */
+	@SuppressWarnings("unchecked")
+	public void append(String key,byte[] val,int offset,int length){
+		obj.put(key, new Bytes(val,offset,length));
+	}
+	
+	public void append(String key,byte[] val){
+		append(key,val,0,val.length);
+	}
+	
+	/**
+	 * Append the remaining bytes of a buffer, without copying them, so the
+	 * buffer's contents must not change until the document has been sent.
+	 * The buffer's position is not changed.
+	 * @param key
+	 * @param val
+	 */
+	@SuppressWarnings("unchecked")
+	public void append(String key,ByteBuffer val){
+		if(val.hasArray()) {
+			append(key,val.array(),val.arrayOffset()+val.position(),val.remaining());
+		} else {
+			obj.put(key, new Bytes(val.slice()));
+		}
+	}
+	
 	@SuppressWarnings("unchecked")
 	public void append(String key,long val){
 		obj.put(key, Long.valueOf(val));
@@ -142,6 +234,29 @@ public class Document {
 		return (long) obj.get(key);
 	}
 	
+	/**
+	 * Get a byte array, whether it was received as raw bytes or as a
+	 * Base64 string.
+	 * @param key
+	 * @return the bytes, or null if the value is neither
+	 */
+	public byte[] getBytes(String key){
+		Object o = obj.get(key);
+		if(o instanceof Bytes) return ((Bytes) o).toByteArray();
+		if(o instanceof String) return Base64.decodeBase64((String) o);
+		return null;
+	}
+	
+	/**
+	 * 
+	 * @param key
+	 * @return true if the value can be got with {@link #getBytes(String)}
+	 */
+	public boolean isBytes(String key){
+		Object o = obj.get(key);
+		return o instanceof Bytes || (o instanceof String && Base64.isBase64((String) o));
+	}
+	
 	public boolean getBoolean(String key){
 		return (boolean) obj.get(key);
 	}
@@ -0,0 +1,35 @@
+package pb.protocols;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes messages as JSON text in UTF-8. This is what every endpoint
+ * understands, and is used when no other codec has been negotiated.
+ *
+ * @see {@link pb.protocols.MessageCodec}
+ * @author aaron
+ *
+ */
+public class JsonCodec implements MessageCodec {
+
+	/**
+	 * Frame type of JSON encoded messages.
+	 */
+	public static final byte frameType = 0;
+
+	@Override
+	public byte getFrameType() {
+		return frameType;
+	}
+
+	@Override
+	public byte[] encode(Message msg) {
+		return msg.toJsonString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public Message decode(byte[] buffer, int offset, int length) throws InvalidMessage {
+		return Message.toMessage(new String(buffer,offset,length,StandardCharsets.UTF_8));
+	}
+
+}
@@ -1,5 +1,8 @@
 package pb.protocols;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import pb.protocols.event.EventReply;
 import pb.protocols.event.EventRequest;
 import pb.protocols.keepalive.KeepAliveReply;
@@ -62,6 +65,34 @@ public class Message {
 		if(!(doc.get(key) instanceof String)) throw new InvalidMessage();
 	}
 	
+	static public void validateBytesType(String key,Document doc) throws InvalidMessage {
+		if(!doc.containsKey(key)) throw new InvalidMessage();
+		if(!doc.isBytes(key)) throw new InvalidMessage();
+	}
+	
+	static public void validateStringListType(String key,Document doc) throws InvalidMessage {
+		if(!doc.containsKey(key)) throw new InvalidMessage();
+		if(!(doc.get(key) instanceof ArrayList)) throw new InvalidMessage();
+		for(Object o : (ArrayList<?>) doc.get(key)) {
+			if(!(o instanceof String)) throw new InvalidMessage();
+		}
+	}
+	
+	/**
+	 * Get an optional list of strings from the doc, that has already been
+	 * validated with {@link #validateStringListType(String, Document)}.
+	 * @param key
+	 * @param doc
+	 * @return the list, which is empty if the key is not present
+	 */
+	static public List<String> getStringList(String key,Document doc) {
+		List<String> list = new ArrayList<>();
+		if(doc.containsKey(key)) {
+			for(Object o : (ArrayList<?>) doc.get(key)) list.add((String) o);
+		}
+		return list;
+	}
+	
 	/**
 	 * Initialiser when given parameters in a doc.
 	 * @param name the name of the message that is being initialised
@@ -83,7 +114,16 @@ public class Message {
 	 * @throws InvalidMessage if no message object matches the message
 	 */
 	static public Message toMessage(String json) throws InvalidMessage {
-		Document doc = Document.parse(json);
+		return toMessage(Document.parse(json));
+	}
+	
+	/**
+	 * Turn a document into an appropriate message object.
+	 * @param doc the message parameters, e.g. as decoded by a {@link pb.protocols.MessageCodec}
+	 * @return the appropriate message object
+	 * @throws InvalidMessage if no message object matches the message
+	 */
+	static public Message toMessage(Document doc) throws InvalidMessage {
 		// the following test is somewhat repetitive, but it avoids having
 		// to test each message type, handling exceptions for those that are
 		// not the matching message type
@@ -0,0 +1,37 @@
+package pb.protocols;
+
+/**
+ * Converts messages to and from the bytes that are sent in a frame. Which
+ * codec is used for a frame is given by its frame type, so both endpoints
+ * must agree on the codecs available, see
+ * {@link pb.managers.endpoint.Framing}.
+ *
+ * @see {@link pb.protocols.JsonCodec}
+ * @see {@link pb.protocols.BinaryCodec}
+ * @author aaron
+ *
+ */
+public interface MessageCodec {
+	/**
+	 *
+	 * @return the frame type that identifies this codec on the wire
+	 */
+	public byte getFrameType();
+
+	/**
+	 * Encode a message.
+	 * @param msg
+	 * @return the encoded message
+	 */
+	public byte[] encode(Message msg);
+
+	/**
+	 * Decode a message.
+	 * @param buffer holding the encoded message
+	 * @param offset where the encoded message starts
+	 * @param length of the encoded message
+	 * @return the appropriate message object
+	 * @throws InvalidMessage if the bytes do not decode to a valid message
+	 */
+	public Message decode(byte[] buffer, int offset, int length) throws InvalidMessage;
+}
@@ -1,17 +1,40 @@
 package pb.protocols.event;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+import org.apache.commons.codec.binary.Base64;
+
 import pb.managers.Manager;
 import pb.managers.endpoint.Endpoint;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
+import pb.utils.Timeout;
+import pb.utils.Utils;
 
 /**
  * An event protocol for applications communicate using an asynchronous
  * event system. Each event can include a simple parameter that must
- * be a String. Complex data should be marshaled into a String.
+ * be a String, or else bytes given as a byte[] or ByteBuffer. Complex data
+ * should be marshaled into a String. Bytes are sent as they are when both
+ * endpoints support {@link pb.managers.endpoint.Endpoint#binaryFeature}, and
+ * are then received as a byte[]. Otherwise they are sent as a Base64 String,
+ * as endpoints that don't know about bytes expect, and are received as that
+ * String; use {@link #bytesOf(Object)} to get the bytes in either case.
+ * <br/>
+ * By default each event is a request that the other side replies to, and
+ * that times out if the reply is not seen within {@link #eventTimeout}. When
+ * both endpoints support {@link pb.managers.endpoint.Endpoint#streamFeature}
+ * the events are streamed instead: each carries a sequence number and the
+ * receiver acknowledges all of the events up to a sequence number with a
+ * single reply, once every {@link #ackEvery} events or {@link #ackDelay} ms
+ * after an event, whichever comes first. The sender then only has one timeout
+ * outstanding, which is due {@link #eventTimeout} after the oldest event that
+ * has not been acknowledged was sent.
  * @author aaron
  *
  */
@@ -24,6 +47,63 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	
 	public volatile boolean stopped=false;
 	
+	/**
+	 * When streaming, the most events to receive before acknowledging them.
+	 */
+	public int ackEvery = 32;
+	
+	/**
+	 * When streaming, the most time in ms to wait after receiving an event
+	 * before acknowledging it.
+	 */
+	public int ackDelay = 50;
+	
+	/*
+	 * Sending side of the stream, guarded by this protocol.
+	 */
+	
+	/**
+	 * Sequence number of the last event sent.
+	 */
+	private long sentSeq=0;
+	
+	/**
+	 * Sequence number of the last event acknowledged by the other side.
+	 */
+	private long ackedSeq=0;
+	
+	/**
+	 * When each event that has not been acknowledged was sent, in ns, in
+	 * order of sequence number from ackedSeq+1.
+	 */
+	private final ArrayDeque<Long> sentTimes=new ArrayDeque<>();
+	
+	/**
+	 * Timeout for the acknowledgement of the sent events, or null if
+	 * they have all been acknowledged.
+	 */
+	private Timeout ackTimeout=null;
+	
+	/*
+	 * Receiving side of the stream, guarded by this protocol.
+	 */
+	
+	/**
+	 * Sequence number of the last event received.
+	 */
+	private long receivedSeq=0;
+	
+	/**
+	 * Sequence number of the last event that was acknowledged.
+	 */
+	private long ackSentSeq=0;
+	
+	/**
+	 * Timeout to acknowledge received events, or null if they have
+	 * all been acknowledged.
+	 */
+	private Timeout ackFlush=null;
+	
 	/**
 	 * Event protocol will listen to all events emitted on the endpoint and
 	 * transmit them over the endpoint.
@@ -34,14 +114,19 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 		super(endpoint, (Manager)manager);	
 		// Register an event to listen for all events ("*") emitted on this endpoint and
 		// send them to the remote end point; making sure thats events have
-		// only a String argument
+		// only a String or bytes argument
 		endpoint.on("*", (args)->{
 			String eventName = (String) args[0];
 			if(args.length==2 && args[1] instanceof String) {
 				String eventData = (String) args[1];
 				sendEvent(eventName,eventData);
+			} else if(args.length==2 && args[1] instanceof byte[]) {
+				byte[] eventData = (byte[]) args[1];
+				sendEvent(eventName,eventData,0,eventData.length);
+			} else if(args.length==2 && args[1] instanceof ByteBuffer) {
+				sendEvent(eventName,(ByteBuffer) args[1]);
 			} else {
-				log.warning("emitted event must have only a single String data argument: "+eventName);
+				log.warning("emitted event must have only a single String or bytes data argument: "+eventName);
 			}			
 		});
 	}
@@ -56,9 +141,63 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 		sendRequest(new EventRequest(eventName,eventData));
 	}
 	
+	/**
+	 * Send an event whose data is bytes. The bytes are encoded before
+	 * this method returns, so the array can be reused afterwards.
+	 * @param eventName
+	 * @param eventData array holding the bytes
+	 * @param offset where the bytes start
+	 * @param length how many bytes
+	 */
+	public void sendEvent(String eventName, byte[] eventData, int offset, int length) {
+		if(stopped)return;
+		if(!endpoint.hasFeature(Endpoint.binaryFeature)) {
+			sendEvent(eventName,Base64.encodeBase64String(Arrays.copyOfRange(eventData,offset,offset+length)));
+			return;
+		}
+		sendRequest(new EventRequest(eventName,eventData,offset,length));
+	}
+	
+	/**
+	 * Send an event whose data is the remaining bytes of a buffer, which
+	 * may be a direct or mapped buffer. The bytes are encoded before this
+	 * method returns, so the buffer can be reused afterwards, and its
+	 * position is not changed.
+	 * @param eventName
+	 * @param eventData
+	 */
+	public void sendEvent(String eventName, ByteBuffer eventData) {
+		if(stopped)return;
+		if(!endpoint.hasFeature(Endpoint.binaryFeature)) {
+			byte[] bytes = new byte[eventData.remaining()];
+			eventData.duplicate().get(bytes);
+			sendEvent(eventName,Base64.encodeBase64String(bytes));
+			return;
+		}
+		sendRequest(new EventRequest(eventName,eventData));
+	}
+	
+	/**
+	 * Get the bytes that were sent as the data of an event, whether they
+	 * were received as a byte[] or, when the endpoints don't both support
+	 * {@link pb.managers.endpoint.Endpoint#binaryFeature}, as a Base64 String.
+	 * @param eventData the argument of the event
+	 * @return the bytes
+	 * @throws ClassCastException if the argument is neither
+	 */
+	public static byte[] bytesOf(Object eventData) {
+		if(eventData instanceof String) return Base64.decodeBase64((String) eventData);
+		return (byte[]) eventData;
+	}
+	
 	@Override
 	public void stopProtocol() {
 		stopped=true;
+		// not synchronized, the endpoint may be stopping us while we are sending
+		Timeout timeout = ackTimeout;
+		if(timeout!=null) timeout.cancel();
+		timeout = ackFlush;
+		if(timeout!=null) timeout.cancel();
 	}
 
 	@Override
@@ -76,24 +215,115 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	@Override
 	public void sendRequest(Message msg) {
 		if(stopped)return;
+		if(msg instanceof EventRequest && endpoint.hasFeature(Endpoint.streamFeature)) {
+			streamEvent((EventRequest) msg);
+			return;
+		}
 		endpoint.sendWithTimeout(msg, ()->{
 			if(!stopped) manager.endpointTimedOut(endpoint, this);
 		}, eventTimeout);
 		
 	}
+	
+	/**
+	 * Send an event with the next sequence number, arming the timeout
+	 * for its acknowledgement if there isn't one already.
+	 * @param msg
+	 */
+	private synchronized void streamEvent(EventRequest msg) {
+		// sequence numbers must be sent in order, so send while synchronized
+		msg.setSeq(++sentSeq);
+		sentTimes.addLast(System.nanoTime());
+		if(!endpoint.send(msg)) return;
+		if(ackTimeout==null) armAckTimeout(eventTimeout);
+	}
+	
+	/**
+	 * Check the acknowledgements after a delay. Must be called while
+	 * synchronized.
+	 * @param delay in ms
+	 */
+	private void armAckTimeout(long delay) {
+		ackTimeout = Utils.getInstance().setTimeout(this::checkAcknowledged, delay);
+	}
+	
+	/**
+	 * Time out if the oldest event that has not been acknowledged was sent
+	 * more than {@link #eventTimeout} ago, or else check again when it will
+	 * have been.
+	 */
+	private void checkAcknowledged() {
+		synchronized(this) {
+			if(stopped) return;
+			Long oldest = sentTimes.peekFirst();
+			if(oldest==null) {
+				ackTimeout=null;
+				return;
+			}
+			long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-oldest);
+			if(waited<eventTimeout) {
+				armAckTimeout(eventTimeout-waited);
+				return;
+			}
+			ackTimeout=null;
+		}
+		manager.endpointTimedOut(endpoint, this);
+	}
 
 	@Override
 	public void receiveReply(Message msg) {
-		
-		
+		long ack = ((EventReply)msg).getAck();
+		if(ack==0) return;
+		synchronized(this) {
+			// the timeout, if any, is left to find the next oldest event
+			for(;ackedSeq<ack && ackedSeq<sentSeq;ackedSeq++) sentTimes.pollFirst();
+			if(ackedSeq>=sentSeq && ackTimeout!=null) {
+				ackTimeout.cancel();
+				ackTimeout=null;
+			}
+		}
 	}
 
 	@Override
 	public void receiveRequest(Message msg) {
 		if(stopped)return;
 		EventRequest eventRequest = (EventRequest)msg;
-		endpoint.sendAndCancelTimeout(new EventReply(), msg);
-		endpoint.localEmit(eventRequest.getEventName(),eventRequest.getEventData());	
+		long seq = eventRequest.getSeq();
+		if(seq==0) {
+			endpoint.sendAndCancelTimeout(new EventReply(), msg);
+		} else {
+			synchronized(this) {
+				receivedSeq=seq;
+				if(receivedSeq-ackSentSeq>=ackEvery) {
+					sendAck();
+				} else if(ackFlush==null) {
+					ackFlush = Utils.getInstance().setTimeout(()->{
+						synchronized(this) {
+							ackFlush=null;
+							if(!stopped && receivedSeq>ackSentSeq) sendAck();
+						}
+					}, ackDelay);
+				}
+			}
+		}
+		if(eventRequest.hasEventBytes()) {
+			endpoint.localEmit(eventRequest.getEventName(),eventRequest.getEventBytes());
+		} else {
+			endpoint.localEmit(eventRequest.getEventName(),eventRequest.getEventData());
+		}
+	}
+	
+	/**
+	 * Acknowledge all of the events received so far. Must be called
+	 * while synchronized.
+	 */
+	private void sendAck() {
+		ackSentSeq=receivedSeq;
+		if(ackFlush!=null) {
+			ackFlush.cancel();
+			ackFlush=null;
+		}
+		endpoint.send(new EventReply(receivedSeq));
 	}
 
 	@Override
@@ -10,9 +10,30 @@ public class EventReply extends Message {
 	public EventReply() {
 		super(name, EventProtocol.protocolName, Message.Type.Reply);
 	}
+	
+	/**
+	 * Initialiser for a cumulative acknowledgement of streamed events.
+	 * @param ack the sequence number of the last event received
+	 */
+	public EventReply(long ack) {
+		this();
+		doc.append("ack", ack);
+	}
 
 	public EventReply(Document doc) throws InvalidMessage {
 		super(name,EventProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
+		if(doc.containsKey("ack")) Message.validateLongType("ack", doc);
 		this.doc=doc;
 	}
+	
+	/**
+	 * 
+	 * @return the sequence number of the last streamed event received, or 0
+	 * if this is the reply to a single event
+	 */
+	public long getAck() {
+		if(doc.containsKey("ack"))
+			return doc.getLong("ack");
+		else return 0;
+	}
 }
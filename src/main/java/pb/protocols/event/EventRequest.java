@@ -1,5 +1,7 @@
 package pb.protocols.event;
 
+import java.nio.ByteBuffer;
+
 import pb.protocols.Document;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
@@ -13,13 +15,65 @@ public class EventRequest extends Message {
 		doc.append("eventData", eventData);
 	}
 
+	/**
+	 * Initialiser for an event whose data is bytes, which are not copied.
+	 * Only for an endpoint that has negotiated
+	 * {@link pb.managers.endpoint.Endpoint#binaryFeature}, as others expect
+	 * the data as a String.
+	 * @param eventName
+	 * @param eventData array holding the bytes
+	 * @param offset where the bytes start
+	 * @param length how many bytes
+	 */
+	public EventRequest(String eventName, byte[] eventData, int offset, int length) {
+		super(name, EventProtocol.protocolName, Message.Type.Request);
+		doc.append("eventName", eventName);
+		doc.append("eventBytes", eventData, offset, length);
+	}
+
+	/**
+	 * Initialiser for an event whose data is the remaining bytes of a
+	 * buffer, which are not copied. Only for an endpoint that has negotiated
+	 * {@link pb.managers.endpoint.Endpoint#binaryFeature}.
+	 * @param eventName
+	 * @param eventData
+	 */
+	public EventRequest(String eventName, ByteBuffer eventData) {
+		super(name, EventProtocol.protocolName, Message.Type.Request);
+		doc.append("eventName", eventName);
+		doc.append("eventBytes", eventData);
+	}
+
 	public EventRequest(Document doc) throws InvalidMessage {
 		super(name,EventProtocol.protocolName,Message.Type.Request,doc);
 		Message.validateStringType("eventName", doc);
-		Message.validateStringType("eventData", doc);
+		if(doc.containsKey("eventBytes")) {
+			Message.validateBytesType("eventBytes", doc);
+		} else {
+			Message.validateStringType("eventData", doc);
+		}
+		if(doc.containsKey("seq")) Message.validateLongType("seq", doc);
 		this.doc=doc;
 	}
 	
+	/**
+	 * Set the sequence number of the event, when events are streamed.
+	 * @param seq
+	 */
+	public void setSeq(long seq) {
+		doc.append("seq", seq);
+	}
+	
+	/**
+	 * 
+	 * @return the sequence number of the event, or 0 if it expects its own reply
+	 */
+	public long getSeq() {
+		if(doc.containsKey("seq"))
+			return doc.getLong("seq");
+		else return 0;
+	}
+	
 	public String getEventName() {
 		return doc.getString("eventName");
 	}
@@ -27,4 +81,20 @@ public class EventRequest extends Message {
 	public String getEventData() {
 		return doc.getString("eventData");
 	}
+	
+	/**
+	 * 
+	 * @return true if the event data is bytes rather than a String
+	 */
+	public boolean hasEventBytes() {
+		return doc.containsKey("eventBytes");
+	}
+	
+	/**
+	 * 
+	 * @return the event data when it is bytes, or null otherwise
+	 */
+	public byte[] getEventBytes() {
+		return doc.getBytes("eventBytes");
+	}
 }
@@ -1,5 +1,6 @@
 package pb.protocols.session;
 
+import java.util.List;
 import java.util.logging.Logger;
 
 import pb.managers.Manager;
@@ -97,8 +98,8 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	@Override
 	public void startAsClient() {
-		//  send the server a start session request
-		sendRequest(new SessionStartRequest());
+		//  send the server a start session request, offering our features
+		sendRequest(new SessionStartRequest(endpoint.getSupportedFeatures()));
 	}
 
 	/**
@@ -150,6 +151,7 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=true;
+			endpoint.enableFeatures(((SessionStartReply)msg).getFeatures());
 			((ISessionProtocolHandler)manager).sessionStarted(endpoint);
 		} else if(msg instanceof SessionStopReply) {
 			if(!protocolRunning) {
@@ -178,7 +180,10 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=true;
-			endpoint.sendAndCancelTimeout(new SessionStartReply(),msg);
+			// the reply says which of the offered features we will both use
+			List<String> features = endpoint.negotiateFeatures(((SessionStartRequest)msg).getFeatures());
+			endpoint.sendAndCancelTimeout(new SessionStartReply(features),msg);
+			endpoint.enableFeatures(features);
 			((ISessionProtocolHandler)manager).sessionStarted(endpoint);
 		} else if(msg instanceof SessionStopRequest) {
 			if(!protocolRunning) {
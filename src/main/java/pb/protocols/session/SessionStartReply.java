@@ -1,5 +1,8 @@
 package pb.protocols.session;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import pb.protocols.Document;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
@@ -21,6 +24,15 @@ public class SessionStartReply extends Message {
 		super(name,SessionProtocol.protocolName,Message.Type.Reply);
 	}
 	
+	/**
+	 * Initialiser accepting the features that both endpoints support, e.g. length prefixed framing.
+	 * @param features the feature names
+	 */
+	public SessionStartReply(List<String> features) {
+		this();
+		doc.append("features",new ArrayList<String>(features));
+	}
+	
 	/**
 	 * Initialiser when given message parameters in a doc. Must throw
 	 * InvalidMessag if any of the required parameters are not
@@ -29,7 +41,16 @@ public class SessionStartReply extends Message {
 	 * @throws InvalidMessage when the doc does not contain all of the required parameters
 	 */
 	public SessionStartReply(Document doc) throws InvalidMessage {
-		super(name,SessionProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
+		super(name,SessionProtocol.protocolName,Message.Type.Reply,doc);
+		if(doc.containsKey("features")) Message.validateStringListType("features", doc);
 		this.doc=doc;
 	}
+	
+	/**
+	 * 
+	 * @return the features accepted, which is empty if none were given
+	 */
+	public List<String> getFeatures() {
+		return Message.getStringList("features", doc);
+	}
 }
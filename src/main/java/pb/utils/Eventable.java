@@ -1,52 +1,89 @@
 package pb.utils;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Logger;
 
 import pb.protocols.event.IEventCallback;
 
 /**
- * Simple eventable object. Does not provide for
- * canceling event callbacks.
+ * Simple eventable object. The callbacks for each event are held in an
+ * array that is never modified, adding or removing a callback replaces the
+ * array with a copy (copy-on-write). So emitting an event takes no lock and
+ * always sees a consistent snapshot of the callbacks, and a callback is free
+ * to add or remove callbacks, or to emit further events.
+ * <br/>
+ * By default the callbacks are called by the thread that emits the event. With
+ * {@link #setDispatchExecutor(Executor)} they are instead handed to an executor,
+ * one event at a time, so that the events of an eventable are still handled
+ * in the order they were emitted while those of different eventables are
+ * handled in parallel.
  * @author aaron
  *
  */
 public class Eventable extends Thread {
 	private static Logger log = Logger.getLogger(Eventable.class.getName());
 	
+	/**
+	 * Callbacks for an event that has none.
+	 */
+	private static final IEventCallback[] noCallbacks = new IEventCallback[0];
+	
 	/**
 	 * Event callbacks
 	 */
-	private Map<String,List<IEventCallback>> callbacks;
+	private final Map<String,IEventCallback[]> callbacks;
+	
+	/**
+	 * Calls the local callbacks when they are not called by the emitting
+	 * thread, or null to call them directly.
+	 */
+	private volatile Executor dispatcher=null;
 	
 	/**
 	 * Initializer
 	 */
 	public Eventable() {
-		callbacks=new HashMap<>();
+		callbacks=new ConcurrentHashMap<>();
+	}
+	
+	/**
+	 * Call the callbacks of {@link #localEmit(String, Object...)} on the given
+	 * executor rather than on the thread that emits the event, so that e.g. a
+	 * thread reading from a socket is not held up by slow callbacks. Events are
+	 * still handled one at a time and in order, regardless of how many threads
+	 * the executor has. Callbacks for "*" are always called directly. If the
+	 * executor rejects an event, e.g. once it is shut down, then
+	 * {@link #localEmit(String, Object...)} throws the
+	 * {@link java.util.concurrent.RejectedExecutionException}.
+	 * @param executor the executor to use, or null to call callbacks directly
+	 */
+	public void setDispatchExecutor(Executor executor) {
+		dispatcher = executor!=null ? new SerialExecutor(executor) : null;
 	}
 	
 	/**
 	 * Send event args to all of the callbacks registered
 	 * for event name, and to all callbacks registered for special
-	 * event "*".
+	 * event "*". The callbacks for "*" receive the event name followed
+	 * by the event args, in a single array that they all share, so they
+	 * must not modify it.
 	 * @param eventName event name
 	 * @param args event arguments
 	 * @return true if at least one callback received the event
 	 */
-	public synchronized boolean emit(String eventName, Object... args) {
+	public boolean emit(String eventName, Object... args) {
 		boolean hit=false;
-		if(callbacks.containsKey("*")) {
-			callbacks.get("*").forEach((callback)->{
-				// TODO: make this little bit of code more efficient
-				Object[] newargs=new Object[args.length+1];
-				newargs[0]=eventName;
-				for(int i=0;i<args.length;i++) newargs[i+1]=args[i];
-				callback.callback(newargs);
-			});
+		IEventCallback[] all = callbacks.getOrDefault("*",noCallbacks);
+		if(all.length>0) {
+			Object[] newargs=new Object[args.length+1];
+			newargs[0]=eventName;
+			System.arraycopy(args,0,newargs,1,args.length);
+			for(IEventCallback callback : all) callback.callback(newargs);
 			hit=true;
 		}
 		if(localEmit(eventName,args)) hit=true;
@@ -61,15 +98,18 @@ public class Eventable extends Thread {
 	 * @param args
 	 * @return true if at least one callback received the event
 	 */
-	public synchronized boolean localEmit(String eventName, Object... args) {
-		boolean hit=false;
-		if(callbacks.containsKey(eventName)) {
-			callbacks.get(eventName).forEach((callback)->{
-				callback.callback(args);
+	public boolean localEmit(String eventName, Object... args) {
+		IEventCallback[] local = callbacks.getOrDefault(eventName,noCallbacks);
+		if(local.length==0) return false;
+		Executor executor = dispatcher;
+		if(executor!=null) {
+			executor.execute(()->{
+				for(IEventCallback callback : local) callback.callback(args);
 			});
-			hit=true;
+		} else {
+			for(IEventCallback callback : local) callback.callback(args);
 		}
-		return hit;
+		return true;
 	}
 	
 	/**
@@ -79,11 +119,98 @@ public class Eventable extends Thread {
 	 * @param callback callback to handle event
 	 * @return this event handler for chaining
 	 */
-	public synchronized Eventable on(String eventName, IEventCallback callback) {
-		if(!callbacks.containsKey(eventName)) {
-			callbacks.put(eventName,new ArrayList<IEventCallback>());
-		}
-		callbacks.get(eventName).add(callback);
+	public Eventable on(String eventName, IEventCallback callback) {
+		callbacks.compute(eventName,(name,current)->{
+			if(current==null) return new IEventCallback[] {callback};
+			IEventCallback[] updated = Arrays.copyOf(current,current.length+1);
+			updated[current.length]=callback;
+			return updated;
+		});
+		return this;
+	}
+	
+	/**
+	 * Remove a callback for an event, that was added with
+	 * {@link #on(String, IEventCallback)}. If the callback was added more
+	 * than once then only one of them is removed.
+	 * @param eventName event name
+	 * @param callback the callback to remove
+	 * @return this event handler for chaining
+	 */
+	public Eventable off(String eventName, IEventCallback callback) {
+		callbacks.computeIfPresent(eventName,(name,current)->{
+			for(int i=0;i<current.length;i++) {
+				if(current[i]!=callback) continue;
+				if(current.length==1) return null;
+				IEventCallback[] updated = new IEventCallback[current.length-1];
+				System.arraycopy(current,0,updated,0,i);
+				System.arraycopy(current,i+1,updated,i,current.length-i-1);
+				return updated;
+			}
+			return current;
+		});
+		return this;
+	}
+	
+	/**
+	 * Remove all of the callbacks for an event.
+	 * @param eventName event name
+	 * @return this event handler for chaining
+	 */
+	public Eventable off(String eventName) {
+		callbacks.remove(eventName);
 		return this;
 	}
+	
+	/**
+	 * Runs tasks one at a time, in the order they were given, on
+	 * another executor.
+	 */
+	private static class SerialExecutor implements Executor {
+		private final Executor executor;
+		private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+		private boolean running = false;
+		
+		SerialExecutor(Executor executor) {
+			this.executor = executor;
+		}
+		
+		@Override
+		public void execute(Runnable task) {
+			synchronized(tasks) {
+				tasks.add(task);
+				if(running) return;
+				running = true;
+			}
+			try {
+				executor.execute(this::drain);
+			} catch (RejectedExecutionException e) {
+				// e.g. the executor has been shut down; the task is not run,
+				// and any queued after it are drained by the next that is
+				synchronized(tasks) {
+					tasks.removeLastOccurrence(task);
+					running = false;
+				}
+				throw e;
+			}
+		}
+		
+		private void drain() {
+			while(true) {
+				Runnable task;
+				synchronized(tasks) {
+					task = tasks.poll();
+					if(task==null) {
+						running = false;
+						return;
+					}
+				}
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					log.severe("event callback failed: "+e);
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,214 @@
+package pb.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import pb.protocols.ICallback;
+
+/**
+ * A hashed wheel timer, as used by {@link pb.utils.Utils#setTimeout(ICallback, long)}.
+ * Time is divided into ticks and the wheel has a bucket for each tick of one
+ * turn; a timeout goes into the bucket of the tick it is due in, along with the
+ * number of whole turns still to go. Scheduling and cancelling are O(1) and
+ * only touch lock-free queues, while a single worker thread moves new timeouts
+ * into their buckets, unlinks cancelled ones and expires the bucket of each
+ * tick. The callbacks of expired timeouts are handed to an executor, so that a
+ * slow callback does not hold up the others. Callbacks are called at most one
+ * tick late.
+ *
+ * @see {@link pb.utils.Timeout}
+ * @author aaron
+ *
+ */
+public class HashedWheelTimer {
+	private static Logger log = Logger.getLogger(HashedWheelTimer.class.getName());
+
+	/**
+	 * Maximum number of new timeouts to move into the wheel per tick, so that
+	 * a flood of new timeouts can't stall the expiry of existing ones.
+	 */
+	private static final int maxTransfersPerTick = 100000;
+
+	/**
+	 * A bucket of the wheel, a doubly linked list of timeouts that is only
+	 * used by the worker thread.
+	 */
+	static class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			if(head==null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		Timeout remove(Timeout timeout) {
+			Timeout next = timeout.next;
+			if(timeout.prev!=null) timeout.prev.next = next;
+			if(next!=null) next.prev = timeout.prev;
+			if(timeout==head) head = next;
+			if(timeout==tail) tail = timeout.prev;
+			timeout.prev = timeout.next = null;
+			timeout.bucket = null;
+			return next;
+		}
+	}
+
+	private final long tickDuration;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final Executor executor;
+	private final Queue<Timeout> timeouts = new ConcurrentLinkedQueue<>();
+	private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+	private final long startTime;
+	private final Thread worker;
+	private volatile boolean stopped = false;
+	private long tick = 0;
+
+	/**
+	 * Initialise the timer and start its worker thread.
+	 * @param tickDuration duration of a tick in milliseconds
+	 * @param ticksPerWheel number of buckets, rounded up to a power of two
+	 * @param executor to call the callbacks with
+	 */
+	public HashedWheelTimer(long tickDuration, int ticksPerWheel, Executor executor) {
+		this.tickDuration = TimeUnit.MILLISECONDS.toNanos(Math.max(1,tickDuration));
+		int size = Integer.highestOneBit(Math.max(1,ticksPerWheel)-1)<<1;
+		if(size<1) size = 1;
+		wheel = new Bucket[size];
+		for(int i=0;i<size;i++) wheel[i] = new Bucket();
+		mask = size-1;
+		this.executor = executor;
+		startTime = System.nanoTime();
+		worker = new Thread(this::run,"Timer");
+		worker.start();
+	}
+
+	/**
+	 * Schedule a callback.
+	 * @param callback the method to call
+	 * @param delay the delay in ms before calling the method
+	 * @return a handle to cancel the callback with
+	 */
+	public Timeout newTimeout(ICallback callback, long delay) {
+		long deadline = System.nanoTime()-startTime+TimeUnit.MILLISECONDS.toNanos(Math.max(0,delay));
+		Timeout timeout = new Timeout(this,callback,deadline);
+		if(stopped) {
+			timeout.cancel();
+		} else {
+			timeouts.add(timeout);
+		}
+		return timeout;
+	}
+
+	/**
+	 * Called by a timeout that has been cancelled, so that it is taken out of
+	 * the wheel on the next tick.
+	 * @param timeout
+	 */
+	void cancelled(Timeout timeout) {
+		timeout.callback = null;
+		cancelledTimeouts.add(timeout);
+	}
+
+	/**
+	 * Stop the worker thread, no more callbacks will be called.
+	 */
+	public void stop() {
+		stopped = true;
+		worker.interrupt();
+	}
+
+	private void run() {
+		while(!stopped) {
+			long deadline = waitForNextTick();
+			if(deadline<0) break;
+			removeCancelled();
+			transferTimeouts();
+			expire(wheel[(int)(tick & mask)],deadline);
+			tick++;
+		}
+		timeouts.clear();
+		cancelledTimeouts.clear();
+	}
+
+	/**
+	 * Sleep until the end of the current tick.
+	 * @return the time since the timer started, or -1 if stopped
+	 */
+	private long waitForNextTick() {
+		long deadline = tickDuration*(tick+1);
+		while(true) {
+			long current = System.nanoTime()-startTime;
+			long sleep = (deadline-current+999999)/1000000;
+			if(sleep<=0) return current;
+			try {
+				Thread.sleep(sleep);
+			} catch (InterruptedException e) {
+				if(stopped) return -1;
+			}
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while((timeout=cancelledTimeouts.poll())!=null) {
+			if(timeout.bucket!=null) timeout.bucket.remove(timeout);
+		}
+	}
+
+	private void transferTimeouts() {
+		for(int i=0;i<maxTransfersPerTick;i++) {
+			Timeout timeout = timeouts.poll();
+			if(timeout==null) break;
+			if(timeout.isCancelled()) continue;
+			long calculated = timeout.deadline/tickDuration;
+			timeout.remainingRounds = (calculated-tick)/wheel.length;
+			// if it is already due, put it in the current tick's bucket
+			long ticks = Math.max(calculated,tick);
+			wheel[(int)(ticks & mask)].add(timeout);
+		}
+	}
+
+	private void expire(Bucket bucket, long deadline) {
+		Timeout timeout = bucket.head;
+		while(timeout!=null) {
+			if(timeout.isCancelled()) {
+				timeout = bucket.remove(timeout);
+			} else if(timeout.remainingRounds<=0 && timeout.deadline<=deadline) {
+				Timeout next = bucket.remove(timeout);
+				ICallback callback = timeout.callback;
+				timeout.callback = null;
+				if(timeout.expire()) call(callback);
+				timeout = next;
+			} else {
+				timeout.remainingRounds--;
+				timeout = timeout.next;
+			}
+		}
+	}
+
+	private void call(ICallback callback) {
+		try {
+			executor.execute(()->{
+				try {
+					callback.callback();
+				} catch (RuntimeException e) {
+					log.severe("timeout callback failed: "+e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the executor has been shut down
+		}
+	}
+}
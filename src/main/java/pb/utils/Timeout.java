@@ -0,0 +1,92 @@
+package pb.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pb.protocols.ICallback;
+
+/**
+ * Handle for a callback scheduled with
+ * {@link pb.utils.Utils#setTimeout(ICallback, long)}, that can be used to
+ * cancel the callback before it is called.
+ *
+ * @see {@link pb.utils.HashedWheelTimer}
+ * @author aaron
+ *
+ */
+public class Timeout {
+	private static final int scheduled = 0;
+	private static final int cancelled = 1;
+	private static final int expired = 2;
+
+	/**
+	 * The timer that the callback is scheduled on.
+	 */
+	private final HashedWheelTimer timer;
+
+	/**
+	 * The callback, released when the timeout is cancelled or expires.
+	 */
+	ICallback callback;
+
+	/**
+	 * When the callback is due, in nanoseconds since the timer started.
+	 */
+	final long deadline;
+
+	/**
+	 * Number of turns of the wheel before the callback is due, maintained
+	 * by the timer's worker thread.
+	 */
+	long remainingRounds;
+
+	/**
+	 * Links in the bucket of the wheel, maintained by the timer's worker thread.
+	 */
+	Timeout next;
+	Timeout prev;
+	HashedWheelTimer.Bucket bucket;
+
+	private final AtomicInteger state = new AtomicInteger(scheduled);
+
+	Timeout(HashedWheelTimer timer, ICallback callback, long deadline) {
+		this.timer = timer;
+		this.callback = callback;
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Cancel the callback. The timer lets go of the callback soon after,
+	 * so that anything it refers to can be garbage collected.
+	 * @return true if the callback was cancelled, false if it has already
+	 * been called or cancelled
+	 */
+	public boolean cancel() {
+		if(!state.compareAndSet(scheduled, cancelled)) return false;
+		timer.cancelled(this);
+		return true;
+	}
+
+	/**
+	 *
+	 * @return true if the timeout was cancelled
+	 */
+	public boolean isCancelled() {
+		return state.get()==cancelled;
+	}
+
+	/**
+	 *
+	 * @return true if the callback has been handed over to be called
+	 */
+	public boolean isExpired() {
+		return state.get()==expired;
+	}
+
+	/**
+	 * Mark the timeout as expired.
+	 * @return true if it had not been cancelled
+	 */
+	boolean expire() {
+		return state.compareAndSet(scheduled, expired);
+	}
+}
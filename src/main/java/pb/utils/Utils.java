@@ -1,7 +1,9 @@
 package pb.utils;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
 
 import pb.protocols.ICallback;
 
@@ -13,6 +15,7 @@ import pb.protocols.ICallback;
  *
  */
 public class Utils {
+	private static Logger log = Logger.getLogger(Utils.class.getName());
 	private static Utils utils;
 	
 	/**
@@ -35,14 +38,53 @@ public class Utils {
 	 */
 	public static final int chunkSize = 16*1024;
 	
+	/**
+	 * Duration of a tick of the timer in ms, callbacks are called
+	 * at most this late.
+	 */
+	public static final long timerTick = 10;
+	
+	/**
+	 * Number of ticks in one turn of the timer's wheel.
+	 */
+	public static final int timerWheelSize = 512;
+	
+	/**
+	 * Calls the timer's callbacks, so that a slow callback doesn't hold
+	 * up the others.
+	 */
+	private ExecutorService callbackExecutor = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(),(runnable)->{
+		Thread thread = new Thread(runnable,"Timer-callback");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
 	/**
 	 * Use of a single timer object over the entire system helps
-	 * to reduce thread usage.
+	 * to reduce thread usage. Scheduling and cancelling are O(1),
+	 * so very many outstanding timeouts are cheap.
+	 */
+	private HashedWheelTimer timer = new HashedWheelTimer(timerTick,timerWheelSize,callbackExecutor);
+	
+	/**
+	 * Creates virtual threads when they have been enabled, or null
+	 * to use platform threads.
+	 */
+	private volatile ThreadFactory virtualThreadFactory=null;
+	
+	/**
+	 * Runs short lived tasks that may block, such as writing to a socket,
+	 * when virtual threads are not in use.
 	 */
-	private Timer timer = new Timer();
+	private ExecutorService executor = Executors.newCachedThreadPool((runnable)->{
+		Thread thread = new Thread(runnable,"Executor");
+		thread.setDaemon(true);
+		return thread;
+	});
 	
 	public Utils() {
-		timer=new Timer();
+		if(Boolean.getBoolean("pb.virtualThreads")) enableVirtualThreads();
 	}
 	
 	public static synchronized Utils getInstance() {
@@ -60,23 +102,75 @@ public class Utils {
 	 * </code>
 	 * @param callback the method to call
 	 * @param delay the delay in ms before calling the method
+	 * @return a handle that can be used to cancel the callback
 	 */
-	public void setTimeout(ICallback callback,long delay) {
+	public Timeout setTimeout(ICallback callback,long delay) {
 		// nicely, this is thread safe
-		timer.schedule(new TimerTask() {
-			@Override
-			public void run() {
-				callback.callback();
-			}
-			
-		}, delay);
+		return timer.newTimeout(callback, delay);
+	}
+	
+	/**
+	 * Use virtual threads for the threads that block on sockets, i.e. endpoints
+	 * and io threads, so that many mostly idle connections can be held without
+	 * a platform thread each. Virtual threads need Java 21 or later at runtime,
+	 * they are looked up reflectively so that the code still compiles and runs
+	 * with platform threads on older versions. Can also be enabled with
+	 * the system property {@code -Dpb.virtualThreads=true}.
+	 * @return true if virtual threads are now in use
+	 */
+	public boolean enableVirtualThreads() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			virtualThreadFactory = (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+					.getMethod("factory").invoke(builder);
+			return true;
+		} catch (ReflectiveOperationException e) {
+			log.warning("virtual threads are not available, using platform threads");
+			return false;
+		}
+	}
+	
+	/**
+	 * Start a new thread to execute the runnable, which is a virtual thread if
+	 * they have been enabled or a platform thread otherwise.
+	 * <br/>
+	 * Use this method like:
+	 * <code>
+	 * Thread thread = Utils.getInstance().startThread(()->{doSomething();},"name");
+	 * </code>
+	 * @param runnable what to run
+	 * @param name the name of the thread
+	 * @return the thread that was started, e.g. to join with
+	 */
+	public Thread startThread(Runnable runnable,String name) {
+		ThreadFactory factory = virtualThreadFactory;
+		Thread thread = factory!=null ? factory.newThread(runnable) : new Thread(runnable);
+		thread.setName(name);
+		thread.start();
+		return thread;
+	}
+	
+	/**
+	 * Execute a short lived task that may block, such as writing to a socket.
+	 * The task runs on a virtual thread if they have been enabled, or else
+	 * on a pooled platform thread.
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		ThreadFactory factory = virtualThreadFactory;
+		if(factory!=null) {
+			factory.newThread(task).start();
+		} else {
+			executor.execute(task);
+		}
 	}
 	
 	/**
 	 * Call before the system exits.
 	 */
 	public void cleanUp() {
-		timer.cancel();
-		System.gc(); // need to do this to cleanup timer tasks and allow jvm to quit
+		timer.stop();
+		callbackExecutor.shutdown();
+		executor.shutdown();
 	}
 }
@@ -0,0 +1,74 @@
+package pb.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pb.protocols.BinaryCodec;
+import pb.protocols.InvalidMessage;
+import pb.protocols.JsonCodec;
+import pb.protocols.Message;
+import pb.protocols.MessageCodec;
+import pb.protocols.event.EventRequest;
+import pb.protocols.keepalive.KeepAliveRequest;
+
+/**
+ * Compare the JSON and binary codecs, encoding and decoding the messages that
+ * are sent most: keep alives and events with a short string. Run with
+ * {@code java -cp <test classpath> org.openjdk.jmh.Main CodecBench}, and
+ * {@code -prof gc} for the bytes allocated per message.
+ *
+ * @author aaron
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBench {
+
+	@Param({"json", "binary"})
+	public String codecName;
+
+	@Param({"keepAlive", "event"})
+	public String messageName;
+
+	private MessageCodec codec;
+	private Message msg;
+	private byte[] encoded;
+
+	@Setup
+	public void setup() {
+		codec = codecName.equals("json") ? new JsonCodec() : new BinaryCodec();
+		if(messageName.equals("keepAlive")) {
+			msg = new KeepAliveRequest();
+		} else {
+			msg = new EventRequest("INDEX_UPDATE","localhost:4100:some_shared_file_name.txt");
+			((EventRequest) msg).setSeq(123456);
+		}
+		msg.setTimeoutId(42);
+		encoded = codec.encode(msg);
+	}
+
+	@Benchmark
+	public byte[] encode() {
+		return codec.encode(msg);
+	}
+
+	@Benchmark
+	public Message decode() throws InvalidMessage {
+		return codec.decode(encoded,0,encoded.length);
+	}
+}
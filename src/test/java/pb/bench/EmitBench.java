@@ -0,0 +1,109 @@
+package pb.bench;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import pb.protocols.event.IEventCallback;
+import pb.utils.Eventable;
+
+/**
+ * Throughput of {@link pb.utils.Eventable#emit(String, Object...)}, against
+ * the eventable it replaced, which held one lock for every emit and copied the
+ * arguments for each "*" callback. As on an endpoint, there is a "*" callback
+ * that forwards the event and two callbacks for the event itself. Run with
+ * {@code java -cp <test classpath> org.openjdk.jmh.Main EmitBench}, add
+ * {@code -t 4} for threads emitting on the same eventable at once.
+ *
+ * @author aaron
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EmitBench {
+
+	/**
+	 * The eventable before callbacks were copy-on-write.
+	 */
+	static class SynchronizedEventable {
+		private final Map<String,List<IEventCallback>> callbacks = new HashMap<>();
+
+		public synchronized boolean emit(String eventName, Object... args) {
+			boolean hit=false;
+			if(callbacks.containsKey("*")) {
+				callbacks.get("*").forEach((callback)->{
+					Object[] newargs=new Object[args.length+1];
+					newargs[0]=eventName;
+					for(int i=0;i<args.length;i++) newargs[i+1]=args[i];
+					callback.callback(newargs);
+				});
+				hit=true;
+			}
+			if(localEmit(eventName,args)) hit=true;
+			return hit;
+		}
+
+		public synchronized boolean localEmit(String eventName, Object... args) {
+			boolean hit=false;
+			if(callbacks.containsKey(eventName)) {
+				callbacks.get(eventName).forEach((callback)->callback.callback(args));
+				hit=true;
+			}
+			return hit;
+		}
+
+		public synchronized SynchronizedEventable on(String eventName, IEventCallback callback) {
+			callbacks.computeIfAbsent(eventName,(name)->new ArrayList<>()).add(callback);
+			return this;
+		}
+	}
+
+	interface Emitter {
+		boolean emit(String eventName, Object... args);
+	}
+
+	@Param({"copyOnWrite", "synchronized"})
+	public String eventableName;
+
+	private Emitter emitter;
+	private final Object[] args = { "localhost:4100:some_shared_file_name.txt" };
+
+	@Setup
+	public void setup(Blackhole blackhole) {
+		IEventCallback forward = (eventArgs)->blackhole.consume(eventArgs[0]);
+		IEventCallback local = (eventArgs)->blackhole.consume(eventArgs[0]);
+		if(eventableName.equals("copyOnWrite")) {
+			Eventable eventable = new Eventable();
+			eventable.on("*",forward).on("INDEX_UPDATE",local).on("INDEX_UPDATE",local);
+			emitter = eventable::emit;
+		} else {
+			SynchronizedEventable eventable = new SynchronizedEventable();
+			eventable.on("*",forward).on("INDEX_UPDATE",local).on("INDEX_UPDATE",local);
+			emitter = eventable::emit;
+		}
+	}
+
+	@Benchmark
+	public boolean emit() {
+		return emitter.emit("INDEX_UPDATE",args);
+	}
+}
@@ -0,0 +1,98 @@
+package pb.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pb.index.FilenameIndex;
+
+/**
+ * Search a million filenames for a term with {@link pb.index.FilenameIndex},
+ * and by checking every filename as {@link pb.IndexServer} did before it had
+ * the index. The terms are: one that a few filenames contain, one that many
+ * do, one that only occurs across a word boundary, and one that is too short
+ * for the index to help. Run with
+ * {@code java -cp <test classpath> org.openjdk.jmh.Main FilenameIndexBench}.
+ *
+ * @author aaron
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx3g"})
+public class FilenameIndexBench {
+	private static final String[] words = { "report", "final", "draft", "holiday", "photo",
+			"img", "notes", "lecture", "assignment", "project", "budget", "invoice", "scan",
+			"music", "track", "album", "video", "clip", "backup", "archive", "thesis",
+			"chapter", "slides", "summary", "data", "results", "figure", "table", "letter",
+			"contract", "minutes", "meeting", "plan", "design", "sketch", "model", "render" };
+	private static final String[] extensions = { ".txt", ".pdf", ".jpg", ".png", ".mp3",
+			".mp4", ".docx", ".zip", ".csv", ".tex" };
+
+	@Param({"1000000"})
+	public int filenames;
+
+	@Param({"2017_0042", "report", "ts_fig", "mp"})
+	public String term;
+
+	private List<String> names;
+	private FilenameIndex index;
+
+	/**
+	 * Names like "holiday_photo_2014_0815.jpg", nearly all different.
+	 */
+	static List<String> filenames(int count) {
+		Random random = new Random(42);
+		List<String> names = new ArrayList<>(count);
+		for(int i=0;i<count;i++) {
+			names.add(words[random.nextInt(words.length)]+"_"+words[random.nextInt(words.length)]
+					+"_"+(2000+random.nextInt(24))+"_"+String.format("%04d",i%10000)
+					+extensions[random.nextInt(extensions.length)]);
+		}
+		return names;
+	}
+
+	@Setup(Level.Trial)
+	public void setup() {
+		names = filenames(filenames);
+		index = new FilenameIndex();
+		long start = System.nanoTime();
+		index.addAll(names);
+		System.out.println("\nindexed "+index.size()+" filenames in "
+				+TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start)+" ms");
+	}
+
+	@Benchmark
+	public List<String> index() {
+		List<String> hits = new ArrayList<>();
+		index.search(term,hits);
+		return hits;
+	}
+
+	@Benchmark
+	public List<String> scan() {
+		List<String> hits = new ArrayList<>();
+		String lower = term.toLowerCase();
+		for(String name : names) {
+			if(name.toLowerCase().contains(lower)) hits.add(name);
+		}
+		return hits;
+	}
+}
@@ -0,0 +1,96 @@
+package pb.bench;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import pb.managers.ClientManager;
+
+/**
+ * Measure the memory that an IndexServer needs for each idle session. The
+ * server is started in a JVM of its own with the given options, then the
+ * sessions are opened from this JVM and left idle, and the resident set
+ * size and thread count of the server are read from {@code /proc} before
+ * and after. Linux only.
+ * <p>
+ * Usage: {@code IdleSessions sessions [IndexServer options]}, e.g.
+ * {@code IdleSessions 2000 -selectors 1}.
+ *
+ * @author aaron
+ *
+ */
+public class IdleSessions {
+	private static final int port = 4190;
+
+	public static void main(String[] args) throws Exception {
+		int sessions = Integer.parseInt(args[0]);
+		List<String> command = new ArrayList<>(Arrays.asList(
+				Paths.get(System.getProperty("java.home"),"bin","java").toString(),
+				"-Xmx512m","-cp",System.getProperty("java.class.path"),
+				"pb.IndexServer","-port",String.valueOf(port)));
+		command.addAll(Arrays.asList(args).subList(1,args.length));
+		Process server = new ProcessBuilder(command)
+				.redirectOutput(ProcessBuilder.Redirect.DISCARD)
+				.redirectError(ProcessBuilder.Redirect.DISCARD)
+				.start();
+		Logger.getLogger("").setLevel(Level.SEVERE);
+		List<ClientManager> clients = new ArrayList<>();
+		try {
+			waitForPort();
+			Thread.sleep(2000);
+			long rssBefore = status(server.pid(),"VmRSS:");
+			long threadsBefore = status(server.pid(),"Threads:");
+			CountDownLatch started = new CountDownLatch(sessions);
+			for(int i=0;i<sessions;i++) {
+				ClientManager client = new ClientManager("localhost",port);
+				client.on(ClientManager.sessionStarted,(eventArgs)->started.countDown());
+				client.start();
+				clients.add(client);
+			}
+			if(!started.await(120,TimeUnit.SECONDS)) {
+				System.out.println("only "+(sessions-started.getCount())+" sessions started");
+			}
+			Thread.sleep(5000);
+			long rssAfter = status(server.pid(),"VmRSS:");
+			long threadsAfter = status(server.pid(),"Threads:");
+			System.out.printf("%s: %d sessions, RSS %d -> %d KiB (%.1f KiB per session), threads %d -> %d%n",
+					String.join(" ",command.subList(command.indexOf("pb.IndexServer"),command.size())),
+					sessions,rssBefore,rssAfter,(rssAfter-rssBefore)/(double)sessions,
+					threadsBefore,threadsAfter);
+		} finally {
+			server.destroyForcibly();
+			System.exit(0);
+		}
+	}
+
+	private static void waitForPort() throws InterruptedException {
+		for(int i=0;i<100;i++) {
+			try(Socket socket = new Socket("localhost",port)) {
+				return;
+			} catch (IOException e) {
+				Thread.sleep(100);
+			}
+		}
+		throw new IllegalStateException("the server did not start");
+	}
+
+	/**
+	 * @return the number in the line of {@code /proc/pid/status} with the prefix
+	 */
+	private static long status(long pid,String prefix) throws IOException {
+		for(String line : Files.readAllLines(Paths.get("/proc",String.valueOf(pid),"status"))) {
+			if(line.startsWith(prefix)) {
+				return Long.parseLong(line.substring(prefix.length()).trim().split("\\s+")[0]);
+			}
+		}
+		throw new IOException("no "+prefix+" in the status of "+pid);
+	}
+}
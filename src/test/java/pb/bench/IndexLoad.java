@@ -0,0 +1,253 @@
+package pb.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import pb.IndexServer;
+import pb.index.IndexBatch;
+import pb.managers.ClientManager;
+import pb.managers.endpoint.Endpoint;
+import pb.protocols.Document;
+
+/**
+ * A load generator for an index server that is already running. Each client
+ * has a session of its own and is a peer that shares some files. It then
+ * either changes one of its files with an {@link pb.IndexServer#indexUpdateBatch}
+ * or queries the index with a {@link pb.IndexServer#queryIndexStream}, and
+ * waits for the reply before the next request. At the end it prints the
+ * requests per second of each kind and their latency. Run the server with its
+ * logging turned down, or the logging is what is measured, e.g.
+ * {@code java -Djava.util.logging.config.file=warning.properties pb.IndexServer -selectors 1}.
+ *
+ * @author aaron
+ *
+ */
+public class IndexLoad {
+
+	/**
+	 * A peer that the load is generated for.
+	 */
+	private static class LoadClient implements Runnable {
+		final int number;
+		final Endpoint endpoint;
+		final BlockingQueue<Document> replies = new LinkedBlockingQueue<>();
+		final List<Long> updateLatencies = new ArrayList<>();
+		final List<Long> queryLatencies = new ArrayList<>();
+		final String peer;
+		final List<String> files = new ArrayList<>();
+		String version = null;
+		int versions = 0;
+		int nextFile = 0;
+
+		LoadClient(int number, Endpoint endpoint) {
+			this.number = number;
+			this.endpoint = endpoint;
+			peer = "load"+number+":"+(10000+number);
+			endpoint.on(IndexServer.indexVersion,(eventArgs)->{
+				replies.add(Document.parse((String) eventArgs[0]));
+			}).on(IndexServer.queryResults,(eventArgs)->{
+				Document results = Document.parse((String) eventArgs[0]);
+				if(results.containsKey("end") && results.getBoolean("end")) replies.add(results);
+			}).on(IndexServer.indexUpdateError,(eventArgs)->{
+				log.severe("index update failed: "+eventArgs[0]);
+			}).on(IndexServer.queryError,(eventArgs)->{
+				log.severe("query failed: "+eventArgs[0]);
+			});
+		}
+
+		String newFile() {
+			return "load_"+number+"_file_"+(nextFile++)+"_"+words[nextFile%words.length]+".txt";
+		}
+
+		/**
+		 * Send the files, or a change to them, and wait for the new version.
+		 */
+		void update(List<String> adds, List<String> removes) throws InterruptedException {
+			files.removeAll(removes);
+			files.addAll(adds);
+			Document batch = new Document();
+			batch.append("peer",peer);
+			// the server does not check versions, so a count will do
+			String newVersion = String.valueOf(++versions);
+			batch.append("version",newVersion);
+			if(version==null) {
+				batch.append("full",true);
+			} else {
+				batch.append("base",version);
+			}
+			batch.append("add",new ArrayList<>(adds));
+			batch.append("remove",new ArrayList<>(removes));
+			endpoint.emit(IndexServer.indexUpdateBatch,IndexBatch.encode(batch));
+			Document reply = reply();
+			if(!newVersion.equals(reply.getString("version"))) {
+				throw new IllegalStateException("index has the wrong version of "+peer);
+			}
+			version = newVersion;
+		}
+
+		void query(String term) throws InterruptedException {
+			Document request = new Document();
+			request.append("query",term);
+			request.append("batch",1000);
+			request.append("credit",1000000);
+			endpoint.emit(IndexServer.queryIndexStream,request.toJson());
+			reply();
+		}
+
+		Document reply() throws InterruptedException {
+			Document reply = replies.poll(30,TimeUnit.SECONDS);
+			if(reply==null) throw new IllegalStateException("no reply from the index server");
+			return reply;
+		}
+
+		@Override
+		public void run() {
+			Random random = new Random(number);
+			try {
+				List<String> adds = new ArrayList<>();
+				for(int i=0;i<filesPerClient;i++) adds.add(newFile());
+				update(adds,List.of());
+				ready.countDown();
+				go.await();
+				while(System.nanoTime()<end) {
+					boolean measure = System.nanoTime()>=measureFrom;
+					long start = System.nanoTime();
+					if(random.nextInt(100)<updatePercent) {
+						String removed = files.get(random.nextInt(files.size()));
+						update(List.of(newFile()),List.of(removed));
+						if(measure) updateLatencies.add(System.nanoTime()-start);
+					} else {
+						// the files of one client, whose names the term is part of
+						query("_"+random.nextInt(clients)+"_file_"+random.nextInt(nextFile));
+						if(measure) queryLatencies.add(System.nanoTime()-start);
+					}
+				}
+			} catch (InterruptedException | RuntimeException e) {
+				log.severe("client "+number+" stopped: "+e);
+			} finally {
+				done.countDown();
+			}
+		}
+	}
+
+	private static Logger log = Logger.getLogger(IndexLoad.class.getName());
+	private static final String[] words = { "report", "photo", "notes", "track", "slides" };
+
+	private static int clients = 4;
+	private static int filesPerClient = 1000;
+	private static int updatePercent = 20;
+	private static long measureFrom;
+	private static long end;
+	private static CountDownLatch ready;
+	private static final CountDownLatch go = new CountDownLatch(1);
+	private static CountDownLatch done;
+
+	private static void help(Options options){
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp("pb.bench.IndexLoad", "Load generator for an index server\n\n", options, "", true);
+		System.exit(-1);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+		options.addOption("host",true,"index server host, a name or IP address");
+		options.addOption("port",true,"index server port, an integer");
+		options.addOption("clients",true,"number of clients, each with a session, an integer");
+		options.addOption("files",true,"files that each client shares, an integer");
+		options.addOption("updates",true,"percentage of requests that are updates, the rest are queries");
+		options.addOption("seconds",true,"seconds to measure for, after a warm up of as many again");
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd = null;
+		int port = 3101;
+		int seconds = 10;
+		try {
+			cmd = parser.parse(options,args);
+			if(cmd.hasOption("port")) port = Integer.parseInt(cmd.getOptionValue("port"));
+			if(cmd.hasOption("clients")) clients = Integer.parseInt(cmd.getOptionValue("clients"));
+			if(cmd.hasOption("files")) filesPerClient = Integer.parseInt(cmd.getOptionValue("files"));
+			if(cmd.hasOption("updates")) updatePercent = Integer.parseInt(cmd.getOptionValue("updates"));
+			if(cmd.hasOption("seconds")) seconds = Integer.parseInt(cmd.getOptionValue("seconds"));
+		} catch (ParseException | NumberFormatException e) {
+			help(options);
+		}
+		String host = cmd.getOptionValue("host","localhost");
+		Logger.getLogger("").setLevel(Level.WARNING);
+
+		ready = new CountDownLatch(clients);
+		done = new CountDownLatch(clients);
+		LoadClient[] loadClients = new LoadClient[clients];
+		CountDownLatch started = new CountDownLatch(clients);
+		List<ClientManager> managers = new ArrayList<>();
+		for(int i=0;i<clients;i++) {
+			int number = i;
+			ClientManager manager = new ClientManager(host,port);
+			manager.on(ClientManager.sessionStarted,(eventArgs)->{
+				loadClients[number] = new LoadClient(number,(Endpoint) eventArgs[0]);
+				started.countDown();
+			});
+			manager.start();
+			managers.add(manager);
+		}
+		if(!started.await(30,TimeUnit.SECONDS)) {
+			System.out.println("could not start the sessions with "+host+":"+port);
+			System.exit(-1);
+		}
+		for(LoadClient client : loadClients) {
+			new Thread(client,"LoadClient-"+client.number).start();
+		}
+		// once every client has sent its files, they all warm up and then
+		// measure for the same time
+		ready.await();
+		long duration = TimeUnit.SECONDS.toNanos(seconds);
+		measureFrom = System.nanoTime()+duration;
+		end = measureFrom+duration;
+		go.countDown();
+		done.await();
+		List<Long> updates = new ArrayList<>();
+		List<Long> queries = new ArrayList<>();
+		for(LoadClient client : loadClients) {
+			updates.addAll(client.updateLatencies);
+			queries.addAll(client.queryLatencies);
+		}
+		System.out.printf("%d clients, %d files each, %d%% updates, over %d s:%n",
+				clients,filesPerClient,updatePercent,seconds);
+		print("updates",updates,seconds);
+		print("queries",queries,seconds);
+		print("all",concat(updates,queries),seconds);
+		for(ClientManager manager : managers) manager.shutdown();
+		System.exit(0);
+	}
+
+	private static List<Long> concat(List<Long> a, List<Long> b) {
+		List<Long> all = new ArrayList<>(a);
+		all.addAll(b);
+		return all;
+	}
+
+	private static void print(String kind, List<Long> latencies, int seconds) {
+		if(latencies.isEmpty()) {
+			System.out.printf("  %-8s none%n",kind);
+			return;
+		}
+		long[] sorted = latencies.stream().mapToLong(Long::longValue).toArray();
+		Arrays.sort(sorted);
+		System.out.printf("  %-8s %9.0f per s, latency p50 %6.2f ms, p99 %6.2f ms%n",kind,
+				sorted.length/(double) seconds,
+				sorted[sorted.length/2]/1e6,sorted[(int) (sorted.length*0.99)]/1e6);
+	}
+}
@@ -0,0 +1,108 @@
+package pb.bench;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pb.utils.HashedWheelTimer;
+import pb.utils.Timeout;
+
+/**
+ * Compare the hashed wheel timer behind {@link pb.utils.Utils#setTimeout(pb.protocols.ICallback, long)}
+ * with the {@link java.util.Timer} it replaced, and with a
+ * {@link java.util.concurrent.ScheduledThreadPoolExecutor}, at what the
+ * endpoints mostly do with a timeout: schedule it when a request is sent and
+ * cancel it when the reply comes back. The timer already holds as many
+ * pending timeouts as there are connections, one keep alive each. Run with
+ * {@code java -cp <test classpath> org.openjdk.jmh.Main TimerBench}, add
+ * {@code -t 4} for contention.
+ *
+ * @author aaron
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class TimerBench {
+	private static final long requestTimeout = 20000;
+	private static final long keepAliveTimeout = 3600000;
+
+	@Param({"wheel", "javaTimer", "scheduledExecutor"})
+	public String timerName;
+
+	@Param({"10000"})
+	public int pending;
+
+	private HashedWheelTimer wheel;
+	private Timer javaTimer;
+	private ScheduledThreadPoolExecutor scheduledExecutor;
+
+	@Setup
+	public void setup() {
+		switch(timerName) {
+		case "wheel":
+			wheel = new HashedWheelTimer(10,512,Executors.newSingleThreadExecutor());
+			for(int i=0;i<pending;i++) wheel.newTimeout(()->{},keepAliveTimeout+i);
+			break;
+		case "javaTimer":
+			javaTimer = new Timer(true);
+			for(int i=0;i<pending;i++) javaTimer.schedule(task(),keepAliveTimeout+i);
+			break;
+		default:
+			scheduledExecutor = new ScheduledThreadPoolExecutor(1);
+			// as otherwise cancelled tasks stay queued until they are due
+			scheduledExecutor.setRemoveOnCancelPolicy(true);
+			for(int i=0;i<pending;i++) scheduledExecutor.schedule(()->{},keepAliveTimeout+i,TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		if(wheel!=null) wheel.stop();
+		if(javaTimer!=null) javaTimer.cancel();
+		if(scheduledExecutor!=null) scheduledExecutor.shutdownNow();
+	}
+
+	private static TimerTask task() {
+		return new TimerTask() {
+			@Override
+			public void run() {
+			}
+		};
+	}
+
+	@Benchmark
+	public boolean scheduleAndCancel() {
+		switch(timerName) {
+		case "wheel":
+			Timeout timeout = wheel.newTimeout(()->{},requestTimeout);
+			return timeout.cancel();
+		case "javaTimer":
+			TimerTask task = task();
+			javaTimer.schedule(task,requestTimeout);
+			return task.cancel();
+		default:
+			ScheduledFuture<?> future = scheduledExecutor.schedule(()->{},requestTimeout,TimeUnit.MILLISECONDS);
+			return future.cancel(false);
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package pb.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link FilenameIndex}: a search finds the same filenames as
+ * checking every filename for the term would, also while filenames are being
+ * added and after the index is built again.
+ *
+ * @author aaron
+ *
+ */
+public class FilenameIndexTest {
+	private static final String[] words = { "report", "Port", "final", "draft", "photo",
+			"IMG", "notes", "a", "résumé", "ΣΊΣΥΦΟΣ", "中文", "data", "aaa" };
+	private static final String[] separators = { "", "_", "-", " ", "." };
+
+	private static String filename(Random random) {
+		StringBuilder name = new StringBuilder();
+		int parts = 1+random.nextInt(3);
+		for(int i=0;i<parts;i++) {
+			if(i>0) name.append(separators[random.nextInt(separators.length)]);
+			name.append(words[random.nextInt(words.length)]);
+		}
+		if(random.nextBoolean()) name.append(random.nextInt(1000));
+		return name.append(random.nextBoolean() ? ".txt" : ".JPG").toString();
+	}
+
+	private static Set<String> scan(List<String> filenames, String term) {
+		Set<String> hits = new TreeSet<>();
+		for(String filename : filenames) {
+			if(filename.toLowerCase().contains(term.toLowerCase())) hits.add(filename);
+		}
+		return hits;
+	}
+
+	private static Set<String> search(FilenameIndex index, String term) {
+		Set<String> hits = new TreeSet<>();
+		index.search(term,hits);
+		return hits;
+	}
+
+	@Test
+	public void findsWhatAScanFinds() {
+		Random random = new Random(7);
+		FilenameIndex index = new FilenameIndex();
+		List<String> filenames = new ArrayList<>();
+		for(int i=0;i<5000;i++) {
+			String filename = filename(random);
+			if(index.add(filename)) filenames.add(filename);
+		}
+		assertEquals(filenames.size(),index.size());
+		String[] terms = { "", "a", "aa", "aaa", "aaaa", "port", "PORT", "report_final",
+				"rt.t", ".jpg", "résumé", "σίσυφος", "中文", "zzz", "12", "port 1" };
+		for(String term : terms) {
+			assertEquals(term,scan(filenames,term),search(index,term));
+		}
+		for(int i=0;i<500;i++) {
+			// a piece of a filename, so that most terms have hits
+			String filename = filenames.get(random.nextInt(filenames.size()));
+			int start = random.nextInt(filename.length());
+			String term = filename.substring(start,start+random.nextInt(filename.length()-start+1));
+			assertEquals(term,scan(filenames,term),search(index,term));
+		}
+	}
+
+	@Test
+	public void addsEachFilenameOnce() {
+		FilenameIndex index = new FilenameIndex();
+		assertTrue(index.add("report.txt"));
+		assertFalse(index.add("report.txt"));
+		assertTrue(index.add("Report.txt"));
+		assertEquals(1,index.addAll(List.of("report.txt","notes.txt","notes.txt")));
+		assertEquals(3,index.size());
+		assertTrue(index.contains("notes.txt"));
+		assertEquals(Set.of("report.txt","Report.txt"),search(index,"REPORT"));
+	}
+
+	@Test
+	public void retainsOnlyWhatItIsToldTo() {
+		Random random = new Random(11);
+		FilenameIndex index = new FilenameIndex();
+		List<String> filenames = new ArrayList<>();
+		for(int i=0;i<2000;i++) {
+			String filename = filename(random);
+			if(index.add(filename)) filenames.add(filename);
+		}
+		List<String> kept = new ArrayList<>();
+		for(String filename : filenames) {
+			if(filename.hashCode()%3==0) kept.add(filename);
+		}
+		assertEquals(filenames.size()-kept.size(),index.retain(kept::contains));
+		assertEquals(kept.size(),index.size());
+		for(String term : new String[] { "a", "port", "notes", ".txt" }) {
+			assertEquals(term,scan(kept,term),search(index,term));
+		}
+		// and it can still be added to
+		assertTrue(index.add("final_report_new.txt"));
+		assertTrue(search(index,"report_new").contains("final_report_new.txt"));
+	}
+
+	@Test
+	public void searchesWhileFilenamesAreAdded() throws InterruptedException {
+		FilenameIndex index = new FilenameIndex();
+		List<String> filenames = new ArrayList<>();
+		Random random = new Random(3);
+		for(int i=0;i<20000;i++) filenames.add(i+"_"+filename(random));
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread adder = new Thread(()->{
+			for(String filename : filenames) index.add(filename);
+		});
+		Thread searcher = new Thread(()->{
+			try {
+				while(index.size()<filenames.size()) {
+					int added = index.size();
+					Set<String> hits = search(index,"port");
+					// everything that was added before the search is found,
+					// and nothing that does not match
+					for(String filename : filenames.subList(0,added)) {
+						if(filename.toLowerCase().contains("port")) assertTrue(filename,hits.contains(filename));
+					}
+					for(String hit : hits) assertTrue(hit,hit.toLowerCase().contains("port"));
+				}
+			} catch (Throwable e) {
+				failure.set(e);
+			}
+		});
+		adder.start();
+		searcher.start();
+		adder.join();
+		searcher.join();
+		if(failure.get()!=null) throw new AssertionError(failure.get());
+		assertEquals(scan(filenames,"port"),search(index,"port"));
+	}
+}
@@ -0,0 +1,243 @@
+package pb.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link IndexStore}: the index comes back as it was after a
+ * restart, a record that was only partly written is dropped, and changes
+ * are logged again once a log can be started.
+ *
+ * @author aaron
+ *
+ */
+public class IndexStoreTest {
+
+	/**
+	 * An index kept in maps, as the index server keeps it.
+	 */
+	private static class MapIndex implements IndexStore.Index {
+		final Map<String,Set<String>> files = new HashMap<>();
+		final Map<String,Long> seen = new HashMap<>();
+		final Map<String,String> versions = new HashMap<>();
+
+		@Override
+		public void update(String peer, String version, List<String> removes, List<String> adds) {
+			Set<String> peerFiles = files.computeIfAbsent(peer,(p)->new TreeSet<>());
+			peerFiles.removeAll(removes);
+			peerFiles.addAll(adds);
+			if(version!=null) versions.put(peer,version);
+		}
+
+		@Override
+		public void seen(String peer, long seen) {
+			this.seen.merge(peer,seen,Math::max);
+		}
+
+		@Override
+		public void forget(String peer) {
+			files.remove(peer);
+			seen.remove(peer);
+			versions.remove(peer);
+		}
+
+		@Override
+		public Collection<String> peers() {
+			return files.keySet();
+		}
+
+		@Override
+		public long seenOf(String peer) {
+			return seen.getOrDefault(peer,0L);
+		}
+
+		@Override
+		public String versionOf(String peer) {
+			return versions.get(peer);
+		}
+
+		@Override
+		public Collection<String> filesOf(String peer) {
+			return files.getOrDefault(peer,Collections.emptySet());
+		}
+	}
+
+	private final Logger storeLog = Logger.getLogger(IndexStore.class.getName());
+	private final LinkedBlockingQueue<String> severe = new LinkedBlockingQueue<>();
+	private final Handler handler = new Handler() {
+		@Override
+		public void publish(LogRecord record) {
+			// stores of other tests may still be taking snapshots
+			if(record.getLevel()==Level.SEVERE && record.getMessage().contains(dir.toString())) {
+				severe.add(record.getMessage());
+			}
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	};
+	private Path dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("indexstore");
+		storeLog.addHandler(handler);
+	}
+
+	@After
+	public void tearDown() throws IOException, InterruptedException {
+		storeLog.removeHandler(handler);
+		// a snapshot may still be deleting logs
+		for(int attempt=0;;attempt++) {
+			try(Stream<Path> paths = Files.walk(dir)) {
+				paths.sorted(Collections.reverseOrder()).forEach((path)->path.toFile().delete());
+				return;
+			} catch (UncheckedIOException e) {
+				if(attempt==10) throw e;
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	private MapIndex reopen() throws IOException {
+		MapIndex index = new MapIndex();
+		IndexStore store = new IndexStore(dir,index);
+		store.load();
+		return index;
+	}
+
+	private static void change(IndexStore store, MapIndex index, String peer, String version,
+			List<String> removes, List<String> adds) {
+		index.update(peer,version,removes,adds);
+		store.update(peer,version,removes,adds);
+	}
+
+	@Test
+	public void keepsTheIndexAcrossRestarts() throws IOException, InterruptedException {
+		MapIndex index = new MapIndex();
+		IndexStore store = new IndexStore(dir,index);
+		store.load();
+		change(store,index,"host:1","v1",List.of(),List.of("a.txt","b.txt"));
+		change(store,index,"host:1","v2",List.of("a.txt"),List.of("c.txt"));
+		change(store,index,"host:2",null,List.of(),List.of("d.txt"));
+		index.seen("host:1",1000);
+		store.seen("host:1",1000);
+		index.forget("host:2");
+		store.forget("host:2");
+		MapIndex reloaded = reopen();
+		assertEquals(index.files,reloaded.files);
+		assertEquals(index.versions,reloaded.versions);
+		assertEquals(index.seen,reloaded.seen);
+		// the reload took a snapshot, wait for it and load from it
+		Path firstLog = dir.resolve("index.0.log");
+		for(int i=0;i<100 && Files.exists(firstLog);i++) Thread.sleep(50);
+		assertTrue(Files.exists(dir.resolve("index.snapshot")));
+		assertFalse(Files.exists(firstLog));
+		reloaded = reopen();
+		assertEquals(index.files,reloaded.files);
+		assertEquals(index.versions,reloaded.versions);
+		assertEquals(index.seen,reloaded.seen);
+	}
+
+	@Test
+	public void dropsARecordThatWasNotFullyWritten() throws IOException {
+		MapIndex index = new MapIndex();
+		IndexStore store = new IndexStore(dir,index);
+		store.load();
+		change(store,index,"host:1","v1",List.of(),List.of("a.txt"));
+		Path log = dir.resolve("index.0.log");
+		long size = Files.size(log);
+		store.update("host:1","v2",List.of(),List.of("b.txt"));
+		// as if the server stopped part way through the last record
+		try(FileChannel channel = FileChannel.open(log,StandardOpenOption.WRITE)) {
+			channel.truncate(size+(Files.size(log)-size)/2);
+		}
+		MapIndex reloaded = reopen();
+		assertEquals(Set.of("a.txt"),reloaded.files.get("host:1"));
+		assertEquals("v1",reloaded.versionOf("host:1"));
+	}
+
+	@Test
+	public void dropsAChangeWithABadChecksum() throws IOException {
+		MapIndex index = new MapIndex();
+		IndexStore store = new IndexStore(dir,index);
+		store.load();
+		change(store,index,"host:1","v1",List.of(),List.of("a.txt"));
+		Path log = dir.resolve("index.0.log");
+		store.update("host:1","v2",List.of(),List.of("b.txt"));
+		try(FileChannel channel = FileChannel.open(log,StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[] {'x'}),Files.size(log)-1);
+		}
+		MapIndex reloaded = reopen();
+		assertEquals(index.files,reloaded.files);
+		assertEquals("v1",reloaded.versionOf("host:1"));
+	}
+
+	@Test
+	public void logsAgainOnceALogCanBeStarted() throws IOException, InterruptedException {
+		MapIndex index = new MapIndex();
+		IndexStore store = new IndexStore(dir,index);
+		store.load();
+		change(store,index,"host:1","v1",List.of(),List.of("a.txt"));
+		// the second load logs to index.1.log and then takes a snapshot,
+		// which can't start index.2.log while a directory is in the way;
+		// the directory is made once the logs have been listed
+		Path blocker = dir.resolve("index.2.log");
+		index = new MapIndex() {
+			boolean blocked = false;
+
+			@Override
+			public void update(String peer, String version, List<String> removes, List<String> adds) {
+				super.update(peer,version,removes,adds);
+				if(!blocked) blocked = blocker.toFile().mkdir();
+			}
+		};
+		store = new IndexStore(dir,index);
+		store.load();
+		String message = severe.poll(5,TimeUnit.SECONDS);
+		assertTrue(message,message.startsWith("could not start a new log"));
+		change(store,index,"host:1",null,List.of(),List.of("lost.txt"));
+		message = severe.poll(5,TimeUnit.SECONDS);
+		assertTrue(message,message.startsWith("could not log a change"));
+		Files.delete(blocker);
+		change(store,index,"host:1","v2",List.of(),List.of("b.txt"));
+		assertNull(severe.poll());
+		MapIndex reloaded = reopen();
+		assertEquals(new TreeSet<>(Arrays.asList("a.txt","b.txt")),reloaded.files.get("host:1"));
+		assertEquals("v2",reloaded.versionOf("host:1"));
+	}
+}
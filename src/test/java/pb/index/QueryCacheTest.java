@@ -0,0 +1,184 @@
+package pb.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+import pb.protocols.Document;
+
+/**
+ * Tests of {@link QueryCache}: a kept query is answered without searching
+ * until a filename that could match it is added or removed, and then it is
+ * searched again.
+ *
+ * @author aaron
+ *
+ */
+public class QueryCacheTest {
+
+	/**
+	 * A set of filenames to search, counting the searches.
+	 */
+	private static class Files implements Function<String,List<String>> {
+		final Set<String> filenames = new HashSet<>();
+		int searches = 0;
+
+		@Override
+		public List<String> apply(String query) {
+			searches++;
+			Set<String> hits = new TreeSet<>();
+			for(String term : query.split(",")) {
+				for(String filename : filenames) {
+					if(filename.toLowerCase().contains(term)) hits.add(filename);
+				}
+			}
+			return new ArrayList<>(hits);
+		}
+	}
+
+	private static void add(Files files, QueryCache cache, String filename) {
+		files.filenames.add(filename);
+		cache.changed(filename);
+	}
+
+	private static void remove(Files files, QueryCache cache, String filename) {
+		files.filenames.remove(filename);
+		cache.changed(filename);
+	}
+
+	@Test
+	public void answersAKeptQueryWithoutSearching() {
+		QueryCache cache = new QueryCache();
+		Files files = new Files();
+		files.filenames.add("report.txt");
+		List<String> hits = cache.get("report",files);
+		assertSame(hits,cache.get("report",files));
+		// the same terms in another order or case are the same query
+		assertSame(hits,cache.get("REPORT,Report,report",files));
+		assertEquals(1,files.searches);
+		assertEquals(List.of("report.txt"),hits);
+	}
+
+	@Test
+	public void searchesAgainWhenAMatchingFilenameChanges() {
+		QueryCache cache = new QueryCache();
+		Files files = new Files();
+		add(files,cache,"report.txt");
+		cache.get("port,notes",files);
+		add(files,cache,"New Report.pdf");
+		assertEquals(List.of("New Report.pdf","report.txt"),cache.get("port,notes",files));
+		assertEquals(2,files.searches);
+		remove(files,cache,"report.txt");
+		assertEquals(List.of("New Report.pdf"),cache.get("port,notes",files));
+		add(files,cache,"notes.txt");
+		assertEquals(List.of("New Report.pdf","notes.txt"),cache.get("port,notes",files));
+		assertEquals(4,files.searches);
+	}
+
+	@Test
+	public void keepsAQueryWhenOtherFilenamesChange() {
+		QueryCache cache = new QueryCache();
+		Files files = new Files();
+		add(files,cache,"report.txt");
+		cache.get("report",files);
+		add(files,cache,"holiday.jpg");
+		remove(files,cache,"holiday.jpg");
+		cache.get("report",files);
+		assertEquals(1,files.searches);
+	}
+
+	@Test
+	public void searchesShortTermsAgainOnAnyChange() {
+		QueryCache cache = new QueryCache();
+		Files files = new Files();
+		add(files,cache,"report.txt");
+		cache.get("rt",files);
+		add(files,cache,"art.jpg");
+		assertEquals(List.of("art.jpg","report.txt"),cache.get("rt",files));
+		assertEquals(2,files.searches);
+	}
+
+	@Test
+	public void doesNotKeepHitsThatChangedDuringTheSearch() {
+		QueryCache cache = new QueryCache();
+		Files files = new Files();
+		add(files,cache,"report.txt");
+		// the filename is added after the search has looked at the filenames
+		Function<String,List<String>> slowSearch = (query)->{
+			List<String> hits = files.apply(query);
+			add(files,cache,"report2.txt");
+			return hits;
+		};
+		assertEquals(List.of("report.txt"),cache.get("report",slowSearch));
+		assertEquals(List.of("report.txt","report2.txt"),cache.get("report",files));
+		assertEquals(2,files.searches);
+	}
+
+	@Test
+	public void dropsTheLeastRecentlyUsedQuery() {
+		QueryCache cache = new QueryCache(2);
+		Files files = new Files();
+		cache.get("aaa",files);
+		cache.get("bbb",files);
+		cache.get("aaa",files);
+		cache.get("ccc",files);
+		assertEquals(3,files.searches);
+		cache.get("aaa",files);
+		assertEquals(3,files.searches);
+		cache.get("bbb",files);
+		assertEquals(4,files.searches);
+		Document stats = cache.getStats();
+		assertEquals(2,stats.getInteger("size"));
+		assertEquals(2,stats.getLong("hits"));
+		assertEquals(4,stats.getLong("misses"));
+		assertEquals(0,stats.getLong("stale"));
+		assertEquals(2,stats.getLong("evictions"));
+		assertEquals(33,stats.getLong("hitPercent"));
+	}
+
+	@Test
+	public void doesNotKeepQueriesWithTooManyHits() {
+		QueryCache cache = new QueryCache();
+		Function<String,List<String>> search = (query)->Collections.nCopies(QueryCache.maxHits+1,"file");
+		cache.get("file",search);
+		cache.get("file",search);
+		assertEquals(0,cache.getStats().getLong("hits"));
+	}
+
+	@Test
+	public void alwaysAnswersAsASearchWould() {
+		Random random = new Random(5);
+		QueryCache cache = new QueryCache(50);
+		Files files = new Files();
+		String[] words = { "report", "port", "final", "Photo", "img", "a", "notes", "résumé" };
+		List<String> queries = new ArrayList<>();
+		for(int i=0;i<100;i++) {
+			queries.add(words[random.nextInt(words.length)]+","
+					+words[random.nextInt(words.length)].substring(random.nextInt(2)));
+		}
+		for(int i=0;i<5000;i++) {
+			String filename = words[random.nextInt(words.length)]+random.nextInt(50)
+					+words[random.nextInt(words.length)]+".txt";
+			if(random.nextBoolean()) {
+				add(files,cache,filename);
+			} else {
+				remove(files,cache,filename);
+			}
+			String query = queries.get(random.nextInt(queries.size()));
+			assertEquals(query,files.apply(QueryCache.normalize(query)),cache.get(query,files));
+		}
+		// and some of the time the query was kept and still current
+		assertTrue(cache.getStats().getLong("hits")>0);
+	}
+}
@@ -0,0 +1,120 @@
+package pb.managers.endpoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import pb.protocols.BinaryCodec;
+import pb.protocols.InvalidMessage;
+import pb.protocols.JsonCodec;
+import pb.protocols.Message;
+import pb.protocols.MessageCodec;
+import pb.protocols.event.EventRequest;
+
+/**
+ * Tests of {@link Framing}: both kinds of frame, with each codec, are read
+ * back as they were written, and bad frames are rejected.
+ *
+ * @author aaron
+ *
+ */
+public class FramingTest {
+
+	private static Message message() {
+		EventRequest msg = new EventRequest("SOME_EVENT","some data");
+		msg.setTimeoutId(9);
+		return msg;
+	}
+
+	@Test
+	public void decodesEachKindOfFrame() throws IOException, InvalidMessage {
+		MessageCodec[] codecs = { null, Framing.getCodec(JsonCodec.frameType),
+				Framing.getCodec(BinaryCodec.frameType) };
+		for(MessageCodec codec : codecs) {
+			Message msg = message();
+			ByteBuffer frame = Framing.encode(msg,codec);
+			assertEquals(frame.remaining(),Framing.frameSize(frame,Framing.maxFrameSize));
+			Message decoded = Framing.decode(frame,frame.remaining());
+			assertEquals(0,frame.remaining());
+			assertEquals(msg.toJsonString(),decoded.toJsonString());
+		}
+	}
+
+	@Test
+	public void decodesFramesOneAfterAnother() throws IOException, InvalidMessage {
+		ByteBuffer first = Framing.encode(message(),null);
+		ByteBuffer second = Framing.encode(message(),Framing.getCodec(BinaryCodec.frameType));
+		ByteBuffer in = ByteBuffer.allocate(first.remaining()+second.remaining()+1);
+		in.put(first).put(second).put((byte) 0).flip();
+		Framing.decode(in,Framing.frameSize(in,Framing.maxFrameSize));
+		Framing.decode(in,Framing.frameSize(in,Framing.maxFrameSize));
+		// one byte is not enough to know the size of the next frame
+		assertEquals(-1,Framing.frameSize(in,Framing.maxFrameSize));
+	}
+
+	@Test
+	public void needsTheWholeHeader() throws IOException {
+		ByteBuffer frame = Framing.encode(message(),Framing.getCodec(JsonCodec.frameType));
+		for(int length=0;length<Framing.headerSize;length++) {
+			ByteBuffer part = ByteBuffer.wrap(frame.array(),0,length);
+			assertEquals(-1,Framing.frameSize(part,Framing.maxFrameSize));
+		}
+	}
+
+	@Test
+	public void rejectsFramesOverTheLimit() {
+		ByteBuffer header = ByteBuffer.allocate(Framing.headerSize);
+		header.putShort((short) Framing.marker).put(JsonCodec.frameType)
+			.putInt(Framing.preSessionFrameSize+1).flip();
+		try {
+			Framing.frameSize(header,Framing.preSessionFrameSize);
+			fail("accepted a frame larger than the limit");
+		} catch (IOException e) {
+			// expected
+		}
+		try {
+			Framing.checkSize(-1,Framing.maxFrameSize);
+			fail("accepted a negative size");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void rejectsBadPayloads() {
+		byte[][] payloads = { {}, {1,(byte)0xff,(byte)0xff,(byte)0xff,(byte)0xff,0x0f,0},
+				"{\"name\":\"NotAMessage\"}".getBytes(), "not json".getBytes() };
+		for(byte type=-1;type<=2;type++) {
+			for(byte[] payload : payloads) {
+				try {
+					Message msg = Framing.decode(type,payload,0,payload.length);
+					fail("decoded "+msg.toJsonString());
+				} catch (InvalidMessage e) {
+					// expected
+				}
+			}
+		}
+		try {
+			Framing.decodeLegacy(new byte[] {0,5,'h','e','l','l','o'},0,7);
+			fail("decoded a legacy frame that is not JSON");
+		} catch (InvalidMessage e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void keepsTheLegacyFrameLimit() throws IOException {
+		StringBuilder big = new StringBuilder();
+		while(big.length()<70000) big.append("0123456789");
+		try {
+			Framing.encode(new EventRequest("BIG",big.toString()),null);
+			fail("encoded a message too large for a legacy frame");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
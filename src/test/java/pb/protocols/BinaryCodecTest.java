@@ -0,0 +1,181 @@
+package pb.protocols;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import pb.protocols.event.EventReply;
+import pb.protocols.event.EventRequest;
+import pb.protocols.keepalive.KeepAliveRequest;
+import pb.protocols.session.SessionStartRequest;
+
+/**
+ * Tests of {@link BinaryCodec}: messages come back the same as they were
+ * sent, and bad input is only ever an {@link InvalidMessage}.
+ *
+ * @author aaron
+ *
+ */
+public class BinaryCodecTest {
+
+	private final BinaryCodec codec = new BinaryCodec();
+
+	private Message roundTrip(Message msg) throws InvalidMessage {
+		byte[] encoded = codec.encode(msg);
+		// not at the start of the buffer, as when decoding a frame
+		byte[] frame = new byte[encoded.length+3];
+		System.arraycopy(encoded,0,frame,3,encoded.length);
+		return codec.decode(frame,3,encoded.length);
+	}
+
+	@Test
+	public void roundTripsMessages() throws InvalidMessage {
+		KeepAliveRequest keepAlive = new KeepAliveRequest();
+		keepAlive.setTimeoutId(42);
+		EventRequest event = new EventRequest("SOME_EVENT","some data, not interned");
+		event.setSeq(1L<<40);
+		List<Message> messages = List.of(keepAlive,event,new EventReply(7),
+				new SessionStartRequest(List.of("frames","binary")));
+		for(Message msg : messages) {
+			Message decoded = roundTrip(msg);
+			assertEquals(msg.getClass(),decoded.getClass());
+			assertEquals(msg.doc.obj,decoded.doc.obj);
+		}
+	}
+
+	@Test
+	public void roundTripsValuesOfEveryType() throws InvalidMessage {
+		EventRequest msg = new EventRequest("E","");
+		Document inner = new Document();
+		inner.append("negative",-123456789L);
+		inner.append("flag",false);
+		msg.doc.append("inner",inner);
+		msg.doc.append("list",new ArrayList<>(Arrays.asList("a","b","EventRequest")));
+		msg.doc.append("max",Long.MAX_VALUE);
+		msg.doc.append("min",Long.MIN_VALUE);
+		msg.doc.append("yes",true);
+		msg.doc.append("unicode","é中😀");
+		Message decoded = roundTrip(msg);
+		assertEquals(msg.doc.obj,decoded.doc.obj);
+	}
+
+	@Test
+	public void roundTripsBytes() throws InvalidMessage {
+		byte[] data = new byte[300];
+		new Random(1).nextBytes(data);
+		EventRequest fromArray = new EventRequest("CHUNK",data,10,200);
+		EventRequest decoded = (EventRequest) roundTrip(fromArray);
+		assertTrue(decoded.hasEventBytes());
+		assertArrayEquals(Arrays.copyOfRange(data,10,210),decoded.getEventBytes());
+		ByteBuffer buffer = ByteBuffer.allocateDirect(data.length).put(data);
+		buffer.position(5);
+		decoded = (EventRequest) roundTrip(new EventRequest("CHUNK",buffer));
+		assertArrayEquals(Arrays.copyOfRange(data,5,data.length),decoded.getEventBytes());
+		assertEquals(5,buffer.position());
+	}
+
+	@Test
+	public void rejectsNegativeKeyId() {
+		assertInvalid(bytes(1,0xff,0xff,0xff,0xff,0x0f,0));
+	}
+
+	@Test
+	public void rejectsUnknownIds() {
+		// key id past the interned keys
+		assertInvalid(bytes(1,11,0));
+		// interned value past the interned values
+		assertInvalid(bytes(1,1,2,99));
+		// unknown tag
+		assertInvalid(bytes(1,1,42));
+	}
+
+	@Test
+	public void rejectsDeepNesting() {
+		int depth = 200000;
+		byte[] nested = new byte[depth*3];
+		for(int i=0;i<depth;i++) {
+			nested[3*i] = 1;
+			nested[3*i+1] = 1;
+			nested[3*i+2] = 7;
+		}
+		assertInvalid(nested);
+		byte[] lists = new byte[3+depth*2];
+		lists[0] = 1;
+		lists[1] = 1;
+		for(int i=0;i<depth;i++) {
+			lists[2+2*i] = 8;
+			lists[3+2*i] = 1;
+		}
+		assertInvalid(lists);
+	}
+
+	@Test
+	public void rejectsSizesLargerThanTheInput() {
+		// a billion fields, a billion list items, a string and bytes past the end
+		assertInvalid(bytes(0x80,0x94,0xeb,0xdc,0x03));
+		assertInvalid(bytes(1,1,8,0x80,0x94,0xeb,0xdc,0x03,0));
+		assertInvalid(bytes(1,1,1,10,'a'));
+		assertInvalid(bytes(1,1,9,10,1));
+		// a varint that is too long
+		assertInvalid(bytes(1,1,3,0xff,0xff,0xff,0xff,0xff,0xff,0xff,0xff,0xff,0xff,0x01));
+	}
+
+	@Test
+	public void rejectsTruncatedAndTrailingInput() {
+		EventRequest msg = new EventRequest("SOME_EVENT","some data");
+		msg.setTimeoutId(3);
+		byte[] encoded = codec.encode(msg);
+		for(int length=0;length<encoded.length;length++) {
+			assertInvalid(Arrays.copyOf(encoded,length));
+		}
+		assertInvalid(Arrays.copyOf(encoded,encoded.length+1));
+	}
+
+	@Test
+	public void rejectsRandomInput() {
+		Random random = new Random(1234);
+		byte[] valid = codec.encode(new EventRequest("SOME_EVENT","some data"));
+		for(int i=0;i<20000;i++) {
+			byte[] input;
+			if(i%2==0) {
+				input = new byte[random.nextInt(64)];
+				random.nextBytes(input);
+			} else {
+				// a valid message with a few bytes changed
+				input = valid.clone();
+				for(int j=0;j<3;j++) input[random.nextInt(input.length)] = (byte) random.nextInt();
+			}
+			try {
+				codec.decode(input,0,input.length);
+			} catch (InvalidMessage e) {
+				// expected
+			} catch (RuntimeException | StackOverflowError e) {
+				fail("decoding "+Arrays.toString(input)+" threw "+e);
+			}
+		}
+	}
+
+	private void assertInvalid(byte[] input) {
+		try {
+			codec.decode(input,0,input.length);
+			fail("decoded "+Arrays.toString(input));
+		} catch (InvalidMessage e) {
+			// expected
+		}
+	}
+
+	private static byte[] bytes(int... values) {
+		byte[] bytes = new byte[values.length];
+		for(int i=0;i<values.length;i++) bytes[i] = (byte) values[i];
+		return bytes;
+	}
+}
@@ -0,0 +1,121 @@
+package pb.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link HashedWheelTimer}: callbacks are called once they are due
+ * and not before, including after more than one turn of the wheel, and not at
+ * all once cancelled or once the timer is stopped.
+ *
+ * @author aaron
+ *
+ */
+public class HashedWheelTimerTest {
+	private static final long tick = 5;
+
+	private ExecutorService executor;
+	private HashedWheelTimer timer;
+
+	@Before
+	public void setUp() {
+		executor = Executors.newFixedThreadPool(4);
+		// a small wheel, so that the delays below go round it several times
+		timer = new HashedWheelTimer(tick,8,executor);
+	}
+
+	@After
+	public void tearDown() {
+		timer.stop();
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void callsCallbacksWhenTheyAreDue() throws InterruptedException {
+		long[] delays = { 0, 3, 20, 41, 150, 333 };
+		LinkedBlockingQueue<Long> late = new LinkedBlockingQueue<>();
+		List<Timeout> timeouts = new ArrayList<>();
+		for(long delay : delays) {
+			long start = System.nanoTime();
+			timeouts.add(timer.newTimeout(()->{
+				late.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start)-delay);
+			},delay));
+		}
+		for(int i=0;i<delays.length;i++) {
+			Long ms = late.poll(2,TimeUnit.SECONDS);
+			assertNotNull("a callback was not called",ms);
+			assertTrue("called "+(-ms)+" ms early",ms>=0);
+			// a tick late at most, with room for a slow machine
+			assertTrue("called "+ms+" ms late",ms<=tick+200);
+		}
+		for(Timeout timeout : timeouts) {
+			assertTrue(timeout.isExpired());
+			assertFalse(timeout.cancel());
+		}
+	}
+
+	@Test
+	public void doesNotCallCancelledCallbacks() throws InterruptedException {
+		AtomicInteger calls = new AtomicInteger();
+		CountDownLatch last = new CountDownLatch(1);
+		for(int i=0;i<1000;i++) {
+			Timeout timeout = timer.newTimeout(calls::incrementAndGet,i%100);
+			assertTrue(timeout.cancel());
+			assertTrue(timeout.isCancelled());
+			assertFalse(timeout.cancel());
+		}
+		timer.newTimeout(last::countDown,150);
+		assertTrue(last.await(2,TimeUnit.SECONDS));
+		assertEquals(0,calls.get());
+	}
+
+	@Test
+	public void keepsGoingWhenACallbackFails() throws InterruptedException {
+		CountDownLatch called = new CountDownLatch(1);
+		timer.newTimeout(()->{ throw new IllegalStateException("failed on purpose"); },0);
+		timer.newTimeout(called::countDown,20);
+		assertTrue(called.await(2,TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void aSlowCallbackDoesNotHoldUpOthers() throws InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch called = new CountDownLatch(1);
+		timer.newTimeout(()->{
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				// the test is over
+			}
+		},0);
+		timer.newTimeout(called::countDown,20);
+		assertTrue(called.await(2,TimeUnit.SECONDS));
+		release.countDown();
+	}
+
+	@Test
+	public void callsNothingOnceStopped() throws InterruptedException {
+		LinkedBlockingQueue<String> calls = new LinkedBlockingQueue<>();
+		timer.newTimeout(()->calls.add("before"),50);
+		timer.stop();
+		Timeout after = timer.newTimeout(()->calls.add("after"),0);
+		assertTrue(after.isCancelled());
+		assertNull(calls.poll(200,TimeUnit.MILLISECONDS));
+	}
+}